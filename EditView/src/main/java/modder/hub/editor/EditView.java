@@ -47,6 +47,7 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.text.SpannableString;
 import android.text.Spanned;
@@ -74,6 +75,7 @@ import android.widget.ListPopupWindow;
 import android.widget.OverScroller;
 import android.widget.PopupWindow;
 import android.widget.TextView;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -81,9 +83,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 import modder.hub.editor.R;
 import modder.hub.editor.buffer.GapBuffer;
+import modder.hub.editor.buffer.MappedTextBuffer;
+import modder.hub.editor.buffer.TextBuffer;
+import modder.hub.editor.buffer.TextBufferView;
+import modder.hub.editor.buffer.TextChangeEvent;
+import modder.hub.editor.buffer.TextChangeListener;
+import modder.hub.editor.buffer.UndoJournal;
 import modder.hub.editor.component.ClipboardPanel;
 import modder.hub.editor.component.Magnifier;
 import modder.hub.editor.highlight.MHSyntaxHighlightEngine;
@@ -118,7 +127,7 @@ public class EditView extends View {
     // ---------- Fields (state, resources, helpers) ----------
     private Paint mPaint;
     private TextPaint mTextPaint;
-    private GapBuffer mGapBuffer;
+    private TextBuffer mGapBuffer;
 
     // cursor and select handle drawable resources
     private Drawable mDrawableCursorRes;
@@ -146,10 +155,28 @@ public class EditView extends View {
     private ScaleGestureDetector mScaleGestureDetector;
     private ClipboardManager mClipboard;
     private ArrayList<Pair<Integer, Integer>> mReplaceList;
+    // set while replaceFirst() moves the matches itself
+    private boolean mReplacingMatch = false;
 
     private boolean mCursorVisiable = true;
     private boolean mHandleMiddleVisable = false;
     private boolean isEditedMode = true;
+    // set while showing a MappedTextBuffer: read-only, no highlighting and no autocomplete
+    private boolean mViewerMode = false;
+    // a line of a mapped file is decoded and measured this many chars at a time
+    private static final int VIEWER_CHUNK_CHARS = 256;
+    private final char[] mViewerChars = new char[VIEWER_CHUNK_CHARS];
+
+    // the buffer a background thread is filling, see beginLoading()
+    private TextBuffer mLoadingBuffer;
+    // chunks posted by the loading thread that the UI thread has not appended yet
+    private static final int MAX_PENDING_CHUNKS = 4;
+    private final Semaphore mPendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    // uptime the last load started at; the time until its first frame with text and until it
+    // was complete, in ms, or -1 while not known
+    private long mLoadStartTime;
+    private long mLoadFirstFrameTime = -1;
+    private long mLoadTime = -1;
     private boolean isSelectMode = false;
 
     private long mLastScroll;
@@ -175,12 +202,21 @@ public class EditView extends View {
 
     // Auto-complete
     private Set<String> mWordSet = new HashSet<>();
+    // buffer version mWordSet was scanned from
+    private long mWordSetVersion;
+    // words added by edits since the running scan took its snapshot
+    private Set<String> mRecentWords = new HashSet<>();
+    // chars deleted since the last scan, their words may still be in mWordSet
+    private int mWordSetRemovedChars;
     private ListPopupWindow mAutoCompletePopup;
     private ArrayAdapter<String> mAutoCompleteAdapter;
 
     private static final Pattern WORD_PATTERN = Pattern.compile("\\w+");
     private static final int MIN_WORD_LEN = 2; // Filter short words
     private static final int WORD_UPDATE_DELAY = 200; // ms throttle
+    // edits bigger than this rescan the whole text instead of the changed lines
+    private static final int WORD_RESCAN_CHARS = 64 * 1024;
+    private static final int WORD_RESCAN_REMOVED = 4096;
     private Runnable mWordUpdateRunnable = new Runnable() {
         @Override
         public void run() {
@@ -210,6 +246,32 @@ public class EditView extends View {
         }
     };
 
+    // keeps highlighting, find results and the word set in step with buffer edits
+    private final TextChangeListener mBufferListener = new TextChangeListener() {
+        @Override
+        public void onTextChanged(TextBuffer buffer, TextChangeEvent event) {
+            onBufferChanged(event);
+        }
+    };
+
+    // the line count of a MappedTextBuffer grows while its lines are indexed
+    private final MappedTextBuffer.IndexListener mIndexListener =
+            new MappedTextBuffer.IndexListener() {
+        @Override
+        public void onIndexProgress(MappedTextBuffer buffer, int lineCount, boolean finished) {
+            postInvalidate();
+        }
+    };
+
+    // tokens arrive from the highlighter's worker thread
+    private final MHSyntaxHighlightEngine.HighlightListener mHighlightListener =
+            new MHSyntaxHighlightEngine.HighlightListener() {
+        @Override
+        public void onLinesHighlighted(int firstLine, int lastLine) {
+            postInvalidate();
+        }
+    };
+
     // ---------- Blink / auto-hide ----------
     // cursor blink runnable toggling visibility
     private Runnable blinkAction = new Runnable() {
@@ -269,9 +331,15 @@ public class EditView extends View {
 
         // Initialize Gapbuffer
         mGapBuffer = new GapBuffer();
+        mGapBuffer.addTextChangeListener(mBufferListener);
         mCursorLine = getLineCount();
         setBackgroundColor(Color.WHITE);
 
+        // the text of huge undo steps goes to app-private files instead of the heap
+        if (UndoJournal.getDirectory() == null) {
+            UndoJournal.setDirectory(new File(context.getCacheDir(), "undo"));
+        }
+
         screenWidth = ScreenUtils.getScreenWidth(context);
         screenHeight = ScreenUtils.getScreenHeight(context);
 
@@ -442,6 +510,11 @@ public class EditView extends View {
         drawCursor(canvas);
 
         canvas.restore();
+
+        if (mLoadStartTime > 0 && mLoadFirstFrameTime < 0 && mGapBuffer.length() > 0) {
+            mLoadFirstFrameTime = SystemClock.uptimeMillis() - mLoadStartTime;
+            Log.i(TAG, "first frame " + mLoadFirstFrameTime + " ms after the load started");
+        }
     }
 
     // Draw the editor content (helper)
@@ -665,6 +738,10 @@ public class EditView extends View {
         int leftMargin = 10; // ✅ Space from left edge for line numbers
         int rightMargin = 13; // Space between line numbers and separator
 
+        if (mHighlighter != null && !mViewerMode) {
+            mHighlighter.setVisibleLines(startLine, endLine);
+        }
+
         for (int i = startLine; i <= endLine; i++) {
             int paintY = i * getLineHeight() - (int) mTextPaint.descent();
             mTextPaint.setColor(Color.parseColor("#B0B0B0"));
@@ -680,10 +757,14 @@ public class EditView extends View {
 
             // Draw text content
             int contentStartX = separatorX + separatorWidth + 10;
+            if (mViewerMode) {
+                // lines of a mapped file can be hundreds of MB, only what is on screen is read
+                lineWidth = Math.max(drawViewerLine(canvas, i, contentStartX, paintY), lineWidth);
+                continue;
+            }
             String text = getLine(i);
-            lineWidth = Math.max(measureText(text), lineWidth);
 
-            if (mHighlighter != null && text != null && !text.isEmpty()) {
+            if (mHighlighter != null && !mViewerMode && text != null && !text.isEmpty()) {
                 int lineHeight = getLineHeight();
                 int top = (i - 1) * lineHeight;
                 int bottom = i * lineHeight;
@@ -692,9 +773,11 @@ public class EditView extends View {
                 // Special Cases, like for smali print method line bg
                 // Bugs : You cant see the selected visual when you select method line
                 mHighlighter.drawLineBackground(canvas, text, i, left, top, right, bottom);
-                // Draw line text
-                mHighlighter.drawLineText(canvas, text, i, contentStartX, paintY);
+                // Draw line text, replayed from the highlighter's picture of it if unchanged
+                int drawnWidth = mHighlighter.drawLineText(canvas, text, i, contentStartX, paintY);
+                lineWidth = Math.max(drawnWidth, lineWidth);
             } else {
+                lineWidth = Math.max(measureText(text), lineWidth);
                 mTextPaint.setColor(Color.BLACK);
                 canvas.drawText(text, contentStartX, paintY, mTextPaint);
             }
@@ -704,6 +787,29 @@ public class EditView extends View {
         mPaint.setStrokeWidth(0);
     }
 
+    // Draw the on-screen part of a line of the mapped viewer. Returns the width of the line, or
+    // if it goes on past the screen, the width drawn plus a screen to scroll on into it
+    private int drawViewerLine(Canvas canvas, int line, int x, int y) {
+        MappedTextBuffer buffer = (MappedTextBuffer) mGapBuffer;
+        int right = getScrollX() + getWidth();
+        mTextPaint.setColor(Color.BLACK);
+        int column = 0;
+        float chunkX = x;
+        while (chunkX < right) {
+            int count = buffer.getLineChars(line, column, mViewerChars);
+            float width = mTextPaint.measureText(mViewerChars, 0, count);
+            if (chunkX + width > getScrollX()) {
+                canvas.drawText(mViewerChars, 0, count, chunkX, y, mTextPaint);
+            }
+            chunkX += width;
+            column += count;
+            if (count < VIEWER_CHUNK_CHARS) {
+                return (int) Math.ceil(chunkX) - x;
+            }
+        }
+        return (int) chunkX - x + getWidth();
+    }
+
     // ---------- Input Handling (touch/keyboard/IME) ----------
     // Handle touch events (dispatch gesture detectors)
     @Override
@@ -905,26 +1011,126 @@ public class EditView extends View {
 
     // ---------- Text and Buffer Operations ----------
     // Set an external buffer
-    public void setBuffer(GapBuffer buffer) {
+    public void setBuffer(TextBuffer buffer) {
+        mGapBuffer.removeTextChangeListener(mBufferListener);
+        if (mGapBuffer instanceof MappedTextBuffer) {
+            ((MappedTextBuffer) mGapBuffer).setIndexListener(null);
+        }
+        if (mGapBuffer != buffer) closeBuffer(mGapBuffer);
         mGapBuffer = buffer;
+        mGapBuffer.addTextChangeListener(mBufferListener);
+        setViewerMode(buffer instanceof MappedTextBuffer);
+        if (mViewerMode) {
+            ((MappedTextBuffer) buffer).setIndexListener(mIndexListener);
+        }
+        mWordSetVersion = 0;
         clearSyntaxCache();
         dismissAutoComplete();
+        post(mWordUpdateRunnable);
         invalidate();
     }
 
+    // The outgoing document's undo history and journal files go with it. Closed on the UI thread
+    // once the current frame is done, setBuffer() may be called from a loader thread.
+    private void closeBuffer(final TextBuffer buffer) {
+        mSelectionHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                buffer.close();
+            }
+        });
+    }
+
     // Get current buffer
-    public GapBuffer getBuffer() {
+    public TextBuffer getBuffer() {
         return this.mGapBuffer;
     }
 
     // Set text directly
     public void setText(String text) {
+        mGapBuffer.removeTextChangeListener(mBufferListener);
+        if (mGapBuffer instanceof MappedTextBuffer) {
+            ((MappedTextBuffer) mGapBuffer).setIndexListener(null);
+        }
+        closeBuffer(mGapBuffer);
         mGapBuffer = new GapBuffer(text);
+        mGapBuffer.addTextChangeListener(mBufferListener);
+        setViewerMode(false);
+        mWordSetVersion = 0;
         clearSyntaxCache();
         dismissAutoComplete();
+        post(mWordUpdateRunnable);
         invalidate();
     }
 
+    // ---------- Progressive loading ----------
+    // Show buffer while a background thread fills it with appendLoadedText(). Can be called from
+    // any thread; editing stays off until endLoading()
+    public void beginLoading(final TextBuffer buffer) {
+        final long startTime = SystemClock.uptimeMillis();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                setBuffer(buffer);
+                mLoadingBuffer = buffer;
+                isEditedMode = false;
+                mLoadStartTime = startTime;
+                mLoadFirstFrameTime = -1;
+                mLoadTime = -1;
+            }
+        });
+    }
+
+    // Append the next chunk of the loading text on the UI thread. Called from the loading thread,
+    // which waits here while MAX_PENDING_CHUNKS chunks are not appended yet
+    public void appendLoadedText(final String text) throws InterruptedException {
+        mPendingChunks.acquire();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingChunks.release();
+                if (!isLoading()) return; // another buffer was set meanwhile
+                // not captured: loading is not an edit that can be undone
+                mGapBuffer.append(text, false);
+                invalidate();
+            }
+        });
+    }
+
+    // The whole text was appended; editing is unlocked. Can be called from any thread
+    public void endLoading() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isLoading()) return;
+                mLoadingBuffer = null;
+                mLoadTime = SystemClock.uptimeMillis() - mLoadStartTime;
+                Log.i(TAG, "loaded " + mGapBuffer.length() + " chars in " + mLoadTime + " ms");
+                if (mGapBuffer instanceof GapBuffer) {
+                    // drop what the array was sized beyond the text
+                    ((GapBuffer) mGapBuffer).compact();
+                }
+                isEditedMode = !mViewerMode;
+                post(mWordUpdateRunnable);
+            }
+        });
+    }
+
+    // Check if the buffer is still being filled by a background thread
+    public boolean isLoading() {
+        return mLoadingBuffer != null && mLoadingBuffer == mGapBuffer;
+    }
+
+    // Time from beginLoading() to the first frame that showed text, in ms, or -1
+    public long getLoadFirstFrameTime() {
+        return mLoadFirstFrameTime;
+    }
+
+    // Time from beginLoading() to endLoading(), in ms, or -1
+    public long getLoadTime() {
+        return mLoadTime;
+    }
+
     // Set font size in px with bounds and adjust scroll to keep relative position
     public void setTextSize(float px) {
         float min = ScreenUtils.dip2px(getContext(), 10);
@@ -962,7 +1168,7 @@ public class EditView extends View {
 
     // Toggle edit mode
     public void setEditedMode(boolean editMode) {
-        isEditedMode = editMode;
+        isEditedMode = editMode && !mViewerMode && !isLoading();
     }
 
     // Get edit mode
@@ -970,6 +1176,22 @@ public class EditView extends View {
         return isEditedMode;
     }
 
+    // Viewer mode is on while the buffer is a MappedTextBuffer
+    private void setViewerMode(boolean viewerMode) {
+        if (viewerMode == mViewerMode) return;
+        mViewerMode = viewerMode;
+        isEditedMode = !viewerMode;
+        if (viewerMode) {
+            mWordSet = new HashSet<>();
+            mRecentWords.clear();
+        }
+    }
+
+    // Check if the buffer is shown read-only as a MappedTextBuffer
+    public boolean isViewerMode() {
+        return mViewerMode;
+    }
+
     // Set typeface
     public void setTypeface(Typeface typeface) {
         mTextPaint.setTypeface(typeface);
@@ -1153,7 +1375,6 @@ public class EditView extends View {
             adjustCursorPosition();
             scrollToVisable();
             dismissAutoComplete();
-            postDelayed(mWordUpdateRunnable, WORD_UPDATE_DELAY);
             postInvalidate();
         }
     }
@@ -1423,7 +1644,11 @@ public class EditView extends View {
 
     // Syntax Helpers
     public void setSyntaxLanguageFileName(String languageFile) {
+        // stop the old engine's background work on this buffer
+        if (mHighlighter != null) mHighlighter.setBuffer(null);
         mHighlighter = new MHSyntaxHighlightEngine(getContext(), mTextPaint, languageFile, isSyntaxDarkMode);
+        mHighlighter.setBuffer(mGapBuffer);
+        mHighlighter.setHighlightListener(mHighlightListener);
     }
 
     // Syntax dark mode helper
@@ -1517,19 +1742,30 @@ public class EditView extends View {
     }
 
     // ---------- Syntax / Highlights ----------
-    // Clear syntax highlight cache
+    // Clear syntax highlight cache, the highlighter follows the new buffer from its first line
     private void clearSyntaxCache() {
         if (mHighlighter != null) {
-            mHighlighter.clearCache();
+            mHighlighter.setBuffer(mGapBuffer);
         }
     }
 
     // Call this method whenever the text content changes
     public void onTextChanged() {
-        clearSyntaxCache(); // keep cache fresh
+        // the caches follow the buffer through onBufferChanged()
         mTextListener.onTextChanged();
     }
 
+    // Called by the buffer after every edit, undo and redo; a batch edit arrives as one event
+    private void onBufferChanged(TextChangeEvent event) {
+        if (mHighlighter != null) {
+            mHighlighter.onLinesChanged(event.startLine, event.oldLineCount, event.newLineCount);
+        }
+        if (!mReplacingMatch) {
+            updateMatches(event);
+        }
+        updateWordSet(event);
+    }
+
     // ---------- Insert / Delete with handling ----------
     // Insert text with auto-indent, autocomplete and selection handling
     private void insert(String text) {
@@ -1639,7 +1875,6 @@ public class EditView extends View {
 
         onCursorOrSelectionChanged();
 
-        clearSyntaxCache();
         onTextChanged();
         scrollToVisable();
 
@@ -1751,7 +1986,7 @@ public class EditView extends View {
         if (!mReplaceList.isEmpty())
             mReplaceList.clear();
 
-        Matcher matcher = Pattern.compile(regex).matcher(mGapBuffer.toString());
+        Matcher matcher = Pattern.compile(regex).matcher(new TextBufferView(mGapBuffer));
 
         while (matcher.find()) {
             mReplaceList.add(new Pair<Integer, Integer>(matcher.start(), matcher.end()));
@@ -1764,9 +1999,11 @@ public class EditView extends View {
             int start = mReplaceList.get(0).first;
             int end = mReplaceList.get(0).second;
 
+            mReplacingMatch = true;
             mGapBuffer.beginBatchEdit();
             mGapBuffer.replace(start, end, replacement, true);
             mGapBuffer.endBatchEdit();
+            mReplacingMatch = false;
 
             int length = replacement.length();
             setCursorPosition(start + length);
@@ -1791,6 +2028,25 @@ public class EditView extends View {
         postInvalidate();
     }
 
+    // Keep the matches in step with an edit: the ones it touched are dropped, later ones move
+    private void updateMatches(TextChangeEvent event) {
+        if (mReplaceList.isEmpty()) return;
+
+        int changeEnd = event.offset + event.removedLength;
+        int delta = event.getCharDelta();
+        int kept = 0;
+        for (int i = 0; i < mReplaceList.size(); ++i) {
+            Pair<Integer, Integer> match = mReplaceList.get(i);
+            if (match.second < event.offset) {
+                mReplaceList.set(kept++, match);
+            } else if (match.first > changeEnd) {
+                mReplaceList.set(kept++,
+                        new Pair<Integer, Integer>(match.first + delta, match.second + delta));
+            }
+        }
+        mReplaceList.subList(kept, mReplaceList.size()).clear();
+    }
+
     // Replace all matches iteratively
     public void replaceAll(String replacement) {
         while (!mReplaceList.isEmpty() && isEditedMode) {
@@ -2051,13 +2307,18 @@ public class EditView extends View {
         removeCallbacks(mWordUpdateRunnable);
         if (!isEditedMode) return;
 
+        // the worker reads a snapshot, so typing never waits for the scan
+        mRecentWords.clear();
+        mWordSetRemovedChars = 0;
+        final TextBuffer buffer = mGapBuffer;
+        final TextBuffer snapshot = buffer.snapshot();
         new Thread(new Runnable() {
             @Override
             public void run() {
                 // Off UI for large files
-                String fullText = mGapBuffer.toString();
                 final Set<String> words = new HashSet<>();
-                java.util.regex.Matcher matcher = WORD_PATTERN.matcher(fullText);
+                java.util.regex.Matcher matcher =
+                        WORD_PATTERN.matcher(new TextBufferView(snapshot));
 
                 while (matcher.find()) {
                     String word = matcher.group();
@@ -2065,11 +2326,17 @@ public class EditView extends View {
                         words.add(word);
                     }
                 }
+                snapshot.release();
 
                 post(new Runnable() {
                     @Override
                     public void run() {
-                        // Back to UI
+                        // Back to UI. A scan of newer text may have finished first
+                        if (buffer != mGapBuffer || snapshot.getVersion() < mWordSetVersion) {
+                            return;
+                        }
+                        mWordSetVersion = snapshot.getVersion();
+                        words.addAll(mRecentWords);
                         mWordSet = words;
                         if (!mCurrentPrefix.isEmpty()) {
                             showAutoComplete(mCurrentPrefix);
@@ -2080,6 +2347,32 @@ public class EditView extends View {
         }).start();
     }
 
+    // Add the words of the lines an edit produced. Deleted words stay until the next full scan
+    private void updateWordSet(TextChangeEvent event) {
+        mWordSetRemovedChars += event.removedLength;
+        if (event.insertedLength > WORD_RESCAN_CHARS
+                || mWordSetRemovedChars > WORD_RESCAN_REMOVED) {
+            removeCallbacks(mWordUpdateRunnable);
+            postDelayed(mWordUpdateRunnable, WORD_UPDATE_DELAY);
+            return;
+        }
+
+        // a word ending where the edit ends is most likely still being typed
+        int editEnd = event.offset + event.insertedLength;
+        int lastLine = Math.min(event.startLine + event.newLineCount - 1, getLineCount());
+        for (int line = event.startLine; line <= lastLine; line++) {
+            int lineStart = mGapBuffer.getLineOffset(line);
+            Matcher matcher = WORD_PATTERN.matcher(mGapBuffer.getLine(line));
+            while (matcher.find()) {
+                String word = matcher.group();
+                if (word.length() >= MIN_WORD_LEN && lineStart + matcher.end() != editEnd) {
+                    mWordSet.add(word);
+                    mRecentWords.add(word);
+                }
+            }
+        }
+    }
+
     // Get the current identifier-like prefix near caret
     private String getCurrentPrefix() {
         if (mCursorIndex <= 0) return "";
@@ -4016,7 +4309,7 @@ public class EditView extends View {
         @Override
         public int getCursorCapsMode(int reqModes) {
             // This helps with auto-capitalization
-            return TextUtils.getCapsMode(mGapBuffer.toString(), mCursorIndex, reqModes);
+            return TextUtils.getCapsMode(mGapBuffer, mCursorIndex, reqModes);
         }
     }
 }
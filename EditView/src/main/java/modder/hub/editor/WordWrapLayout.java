@@ -37,16 +37,18 @@ package modder.hub.editor;
 
 import android.util.Log;
 import modder.hub.editor.EditView;
-import modder.hub.editor.GapBuffer;
+import modder.hub.editor.buffer.TextBuffer;
+import modder.hub.editor.buffer.TextChangeEvent;
+import modder.hub.editor.buffer.TextChangeListener;
 import java.util.ArrayList;
 import java.util.List;
 
 // Not ready yet
-public class WordWrapLayout {
+public class WordWrapLayout implements TextChangeListener {
     private static final String TAG = "WordWrapLayout";
 
     private EditView mEditView;
-    private GapBuffer mGapBuffer;
+    private TextBuffer mGapBuffer;
     private List<RowRegion> mRowTable;
     private int mEditorWidth;
     private boolean mEnabled = false;
@@ -61,8 +63,10 @@ public class WordWrapLayout {
     public void setEnabled(boolean enabled) {
         this.mEnabled = enabled;
         if (enabled) {
+            mGapBuffer.addTextChangeListener(this);
             breakAllLines();
         } else {
+            mGapBuffer.removeTextChangeListener(this);
             mRowTable.clear();
         }
     }
@@ -84,23 +88,24 @@ public class WordWrapLayout {
         mRowTable.clear();
 
         for (int line = 1; line <= mGapBuffer.getLineCount(); line++) {
-            breakLine(line);
+            breakLine(line, mRowTable);
         }
 
         Log.d(TAG, "Word wrap completed. Total rows: " + mRowTable.size());
     }
 
-    private void breakLine(int lineNumber) {
+    // Appends the rows of lineNumber to rows
+    private void breakLine(int lineNumber, List<RowRegion> rows) {
         if (!mEnabled) return;
 
         String lineText = mGapBuffer.getLine(lineNumber);
+        int lineStart = mGapBuffer.getLineOffset(lineNumber);
         if (lineText == null || lineText.isEmpty()) {
             // Empty line still needs one row
-            mRowTable.add(new RowRegion(lineNumber, 0, 0));
+            rows.add(new RowRegion(lineNumber, lineStart, lineStart));
             return;
         }
 
-        int lineStart = mGapBuffer.getLineOffset(lineNumber);
         int currentPos = 0;
         int lineLength = lineText.length();
 
@@ -112,13 +117,13 @@ public class WordWrapLayout {
                 breakPoint = Math.min(currentPos + 1, lineLength);
             }
 
-            mRowTable.add(new RowRegion(lineNumber, lineStart + currentPos, lineStart + breakPoint));
+            rows.add(new RowRegion(lineNumber, lineStart + currentPos, lineStart + breakPoint));
             currentPos = breakPoint;
         }
 
         // If we didn't add any rows (shouldn't happen), add at least one
-        if (mRowTable.isEmpty() || mRowTable.get(mRowTable.size() - 1).line != lineNumber) {
-            mRowTable.add(new RowRegion(lineNumber, lineStart, lineStart + lineLength));
+        if (rows.isEmpty() || rows.get(rows.size() - 1).line != lineNumber) {
+            rows.add(new RowRegion(lineNumber, lineStart, lineStart + lineLength));
         }
     }
 
@@ -166,32 +171,46 @@ public class WordWrapLayout {
                 c == '!' || c == '?' || c == ')' || c == ']' || c == '}';
     }
 
-    public void onTextChanged(int startLine, int endLine) {
+    // Re-breaks only the lines an edit replaced; the rows below just move
+    @Override
+    public void onTextChanged(TextBuffer buffer, TextChangeEvent event) {
         if (!mEnabled) return;
 
-        // Remove affected rows
-        for (int i = mRowTable.size() - 1; i >= 0; i--) {
-            RowRegion region = mRowTable.get(i);
-            if (region.line >= startLine && region.line <= endLine) {
-                mRowTable.remove(i);
+        int first = findFirstRow(event.startLine);
+        int last = findFirstRow(event.startLine + event.oldLineCount);
+
+        int lineDelta = event.getLineDelta();
+        int charDelta = event.getCharDelta();
+        if (lineDelta != 0 || charDelta != 0) {
+            for (int i = last; i < mRowTable.size(); i++) {
+                RowRegion region = mRowTable.get(i);
+                region.line += lineDelta;
+                region.start += charDelta;
+                region.end += charDelta;
             }
         }
 
-        // Re-break affected lines
-        for (int line = startLine; line <= endLine; line++) {
-            breakLine(line);
+        List<RowRegion> rows = new ArrayList<>();
+        for (int line = event.startLine; line < event.startLine + event.newLineCount; line++) {
+            breakLine(line, rows);
         }
+        mRowTable.subList(first, last).clear();
+        mRowTable.addAll(first, rows);
+    }
 
-        // Update line numbers for subsequent lines
-        int delta = endLine - startLine;
-        if (delta != 0) {
-            for (int i = 0; i < mRowTable.size(); i++) {
-                RowRegion region = mRowTable.get(i);
-                if (region.line > endLine) {
-                    region.line += delta;
-                }
+    // Index of the first row of line, or of the row after it if line has none
+    private int findFirstRow(int line) {
+        int low = 0;
+        int high = mRowTable.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mRowTable.get(middle).line < line) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
         }
+        return low;
     }
 
     public int getRowCount() {
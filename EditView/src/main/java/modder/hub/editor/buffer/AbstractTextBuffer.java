@@ -0,0 +1,341 @@
+package modder.hub.editor.buffer;
+
+import java.util.ArrayList;
+
+/**
+ * Base class for TextBuffer implementations. It owns the undo stack and the selection snapshots
+ * restored by undo/redo, so a buffer only has to provide the text operations.
+ *
+ * <p>The undo stack records edits lazily: the affected text is only copied when it is really
+ * needed. Buffers that can recover the latest deleted text cheaply (e.g. because it is still in
+ * the gap) override the undoLast* hooks.
+ *
+ * <p>Snapshots are instances of the same class that share the storage of the buffer they were
+ * taken from. The buffer must never modify storage a snapshot can still see; each implementation
+ * copies what it is about to change instead.
+ *
+ * <p>Implementations report every edit with beginChange()/endChange(). The changes are merged while
+ * a batch edit, an undo/redo group or a replace() is in progress and reach the
+ * TextChangeListeners as one event when it ends.
+ */
+public abstract class AbstractTextBuffer implements TextBuffer {
+
+    UndoStack _undoStack = new UndoStack(this);
+
+    // bumped by every edit; volatile so other threads can compare against it without locking
+    volatile long _version;
+    // set on snapshots
+    boolean _readOnly;
+
+    private final ArrayList<TextChangeListener> _listeners = new ArrayList<>();
+    // > 0 while edits are merged into one change event
+    private int _changeGroupDepth;
+    // the edit between beginChange() and endChange()
+    private int _editOffset;
+    private int _editRemoved;
+    private int _editStartLine;
+    private int _editOldLines;
+    // the merged change that has not been reported yet
+    private boolean _changePending;
+    private int _changeOffset;
+    private int _changeRemoved;
+    private int _changeInserted;
+    private int _changeStartLine;
+    private int _changeOldLines;
+    private int _changeNewLines;
+
+    // Selection snapshots produced by last undo/redo
+    int _lastUndoSelStart = -1;
+    int _lastUndoSelEnd = -1;
+    boolean _lastUndoSelMode = false;
+
+    int _lastRedoSelStart = -1;
+    int _lastRedoSelEnd = -1;
+    boolean _lastRedoSelMode = false;
+
+    @Override
+    public long getVersion() {
+        return _version;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public void close() {
+        _undoStack.close();
+    }
+
+    @Override
+    public void addTextChangeListener(TextChangeListener listener) {
+        if (!_listeners.contains(listener)) {
+            _listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeTextChangeListener(TextChangeListener listener) {
+        _listeners.remove(listener);
+    }
+
+    /**
+     * Must be called at the start of every modification, before the text changes. The modification
+     * replaces removedLength chars at offset; endChange() must follow once it is done.
+     */
+    final void beginChange(int offset, int removedLength) {
+        if (_readOnly) {
+            throw new UnsupportedOperationException("snapshots are read-only");
+        }
+        ++_version;
+        if (_listeners.isEmpty()) {
+            return;
+        }
+        _editOffset = offset;
+        _editRemoved = removedLength;
+        _editStartLine = findLineNumber(offset);
+        _editOldLines = findLineNumber(offset + removedLength) - _editStartLine + 1;
+    }
+
+    /** Must be called at the end of every modification, after insertedLength chars were added */
+    final void endChange(int insertedLength) {
+        if (_listeners.isEmpty() || (_editRemoved == 0 && insertedLength == 0)) {
+            return;
+        }
+        int newLines = findLineNumber(_editOffset + insertedLength) - _editStartLine + 1;
+        mergeChange(_editOffset, _editRemoved, insertedLength,
+                _editStartLine, _editOldLines, newLines);
+        if (_changeGroupDepth == 0 && !_undoStack.isBatchEdit()) {
+            fireChange();
+        }
+    }
+
+    /** Edits until the matching endChangeGroup() are reported as one change */
+    final void beginChangeGroup() {
+        ++_changeGroupDepth;
+    }
+
+    final void endChangeGroup() {
+        if (--_changeGroupDepth == 0 && !_undoStack.isBatchEdit()) {
+            fireChange();
+        }
+    }
+
+    /*
+     * Folds an edit into the pending change. Both are described in the coordinates of the text
+     * they apply to, so the parts of the new edit that lie outside the pending change are mapped
+     * back through it. Edits that do not touch are merged with the unchanged text in between.
+     */
+    private void mergeChange(int offset, int removed, int inserted,
+            int startLine, int oldLines, int newLines) {
+        if (!_changePending) {
+            _changePending = true;
+            _changeOffset = offset;
+            _changeRemoved = removed;
+            _changeInserted = inserted;
+            _changeStartLine = startLine;
+            _changeOldLines = oldLines;
+            _changeNewLines = newLines;
+            return;
+        }
+
+        // [start, end) covers both in the text between the two edits
+        int start = Math.min(_changeOffset, offset);
+        int end = Math.max(_changeOffset + _changeInserted, offset + removed);
+        _changeRemoved = end - _changeInserted + _changeRemoved - start;
+        _changeInserted = end - removed + inserted - start;
+        _changeOffset = start;
+
+        int firstLine = Math.min(_changeStartLine, startLine);
+        int endLine = Math.max(_changeStartLine + _changeNewLines, startLine + oldLines);
+        _changeOldLines = endLine - _changeNewLines + _changeOldLines - firstLine;
+        _changeNewLines = endLine - oldLines + newLines - firstLine;
+        _changeStartLine = firstLine;
+    }
+
+    private void fireChange() {
+        if (!_changePending) {
+            return;
+        }
+        _changePending = false;
+        TextChangeEvent event = new TextChangeEvent(_changeOffset, _changeRemoved,
+                _changeInserted, _changeStartLine, _changeOldLines, _changeNewLines, _version);
+        // a copy, listeners may unregister themselves
+        for (TextChangeListener listener : new ArrayList<>(_listeners)) {
+            listener.onTextChanged(this, event);
+        }
+    }
+
+    /**
+     * Returns the text of the range [start, end) that was most recently deleted with capture set to
+     * true. If several adjacent deletions were merged into one undo action, [start, end) covers all
+     * of them.
+     *
+     * <p>Only UndoStack should use this method.
+     */
+    protected abstract String getDeletedText(int start, int end);
+
+    /**
+     * Reverts the latest captured insertion of [start, end). The buffer has not been edited since.
+     *
+     * <p>Only UndoStack should use this method.
+     */
+    protected void undoLastInsert(int start, int end) {
+        // dummy timestamp of 0
+        delete(start, end, false, 0);
+    }
+
+    /**
+     * Reverts the latest captured deletion by putting data back at start. The buffer has not been
+     * edited since.
+     *
+     * <p>Only UndoStack should use this method.
+     */
+    protected void undoLastDelete(int start, String data) {
+        // dummy timestamp of 0
+        insert(start, data, false, 0);
+    }
+
+    @Override
+    public boolean canUndo() {
+        return _undoStack.canUndo();
+    }
+
+    @Override
+    public boolean canRedo() {
+        return _undoStack.canRedo();
+    }
+
+    @Override
+    public int undo() {
+        // clear last redo snapshot (avoid stale)
+        _lastUndoSelStart = _lastUndoSelEnd = -1;
+        _lastUndoSelMode = false;
+        beginChangeGroup();
+        int pos = _undoStack.undo();
+        endChangeGroup();
+        // _undoStack will fill _lastUndo* fields
+        return pos;
+    }
+
+    @Override
+    public int redo() {
+        _lastRedoSelStart = _lastRedoSelEnd = -1;
+        _lastRedoSelMode = false;
+        beginChangeGroup();
+        int pos = _undoStack.redo();
+        endChangeGroup();
+        return pos;
+    }
+
+    /**
+     * Sets how many chars of inserted and deleted text the undo history may keep in total. When it
+     * holds more, the oldest undo steps are dropped.
+     */
+    public void setUndoBudget(long chars) {
+        _undoStack.setMaxRetainedChars(chars);
+    }
+
+    public long getUndoBudget() {
+        return _undoStack.getMaxRetainedChars();
+    }
+
+    /** Returns the number of undo and redo steps currently kept */
+    public int getUndoEntryCount() {
+        return _undoStack.getEntryCount();
+    }
+
+    /** Returns the number of chars of text the undo history currently keeps */
+    public long getUndoRetainedChars() {
+        return _undoStack.getRetainedChars();
+    }
+
+    /**
+     * Sets how many chars of text the undo history may keep in the UndoJournal, which holds the
+     * text of large edits. Beyond it the oldest undo steps are dropped as well.
+     */
+    public void setUndoDiskBudget(long chars) {
+        _undoStack.setMaxSpilledChars(chars);
+    }
+
+    public long getUndoDiskBudget() {
+        return _undoStack.getMaxSpilledChars();
+    }
+
+    /** Returns the number of chars of text the undo history currently keeps in the UndoJournal */
+    public long getUndoSpilledChars() {
+        return _undoStack.getSpilledChars();
+    }
+
+    /** Returns how many times old undo steps were dropped to stay within the budgets */
+    public int getUndoTrimCount() {
+        return _undoStack.getTrimCount();
+    }
+
+    /**
+     * Editor should call this BEFORE starting an operation (or batch). This tells the undo stack
+     * what the selection was before the edit.
+     */
+    @Override
+    public void markSelectionBefore(int selStart, int selEnd, boolean selMode) {
+        _undoStack.setPendingSelectionBefore(selStart, selEnd, selMode);
+    }
+
+    /**
+     * Editor should call this AFTER finishing an operation (or batch). This lets the undo stack
+     * record the selection state after edit.
+     */
+    @Override
+    public void markSelectionAfter(int selStart, int selEnd, boolean selMode) {
+        _undoStack.setPendingSelectionAfter(selStart, selEnd, selMode);
+    }
+
+    // getters for editor to read the selection restored by last undo/redo
+    @Override
+    public int getLastUndoSelectionStart() {
+        return _lastUndoSelStart;
+    }
+
+    @Override
+    public int getLastUndoSelectionEnd() {
+        return _lastUndoSelEnd;
+    }
+
+    @Override
+    public boolean getLastUndoSelectionMode() {
+        return _lastUndoSelMode;
+    }
+
+    @Override
+    public int getLastRedoSelectionStart() {
+        return _lastRedoSelStart;
+    }
+
+    @Override
+    public int getLastRedoSelectionEnd() {
+        return _lastRedoSelEnd;
+    }
+
+    @Override
+    public boolean getLastRedoSelectionMode() {
+        return _lastRedoSelMode;
+    }
+
+    @Override
+    public void beginBatchEdit() {
+        _undoStack.beginBatchEdit();
+    }
+
+    @Override
+    public void endBatchEdit() {
+        _undoStack.endBatchEdit();
+        if (_changeGroupDepth == 0) {
+            fireChange();
+        }
+    }
+
+    @Override
+    public boolean isBatchEdit() {
+        return _undoStack.isBatchEdit();
+    }
+}
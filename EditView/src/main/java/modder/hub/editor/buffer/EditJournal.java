@@ -0,0 +1,697 @@
+package modder.hub.editor.buffer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the edits made to an open document, so unsaved changes survive the process
+ * being killed. Every change event of the buffer becomes one record (offset, removed length,
+ * inserted text) appended to a file next to the document.
+ *
+ * <pre>
+ * EditJournal journal = new EditJournal(file);
+ * buffer = journal.recover(loader.loadGapBuffer());  // replays what a previous run left
+ * journal.start(buffer);
+ * ...
+ * journal.beginSave();      // on the thread that edits, when the save snapshot is taken
+ * journal.endSave(saved);   // once the file was written
+ * ...
+ * journal.close();
+ * </pre>
+ *
+ * <p>Records are written by a background thread. It collects everything that arrives within the
+ * commit delay and syncs the file once for the whole group, so typing does not wait for the disk.
+ * A crash loses at most the edits of the last group.
+ *
+ * <p>After getCompactThreshold() edits the journal is rewritten as a snapshot of the whole text, so
+ * recovery never replays more than that many records. A save starts a new journal against the
+ * saved file; it replaces the old one only once the save succeeded.
+ *
+ * <p>Each record carries a CRC32. Recovery stops at the first record that is incomplete or damaged
+ * and continues the journal from there.
+ */
+public class EditJournal implements TextChangeListener {
+
+    public static final int DEFAULT_COMPACT_THRESHOLD = 20000;
+    public static final long DEFAULT_COMMIT_DELAY = 100;
+
+    private static final int MAGIC = 0x4D48454A; // "MHEJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private static final byte EDIT = 1;
+    private static final byte SNAPSHOT = 2;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // what the writer thread is asked to do
+    private static final int OP_EDIT = 0;
+    private static final int OP_COMPACT = 1;
+    private static final int OP_BEGIN_SAVE = 2;
+    private static final int OP_END_SAVE = 3;
+    private static final int OP_STOP = 4;
+
+    private final File _document;
+    private final File _file;
+    private int _compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+    private long _commitDelay = DEFAULT_COMMIT_DELAY;
+
+    private TextBuffer _buffer;
+    private final LinkedBlockingQueue<Item> _queue = new LinkedBlockingQueue<>();
+    private Thread _writer;
+    /* edits since the last snapshot, counted on the editing thread */
+    private int _edits;
+    /* where recover() found the last good record, or -1 if there was no usable journal */
+    private long _recoveredEnd = -1;
+    private int _recoveredRecords;
+    /* set when recover() found a journal it could not use; start() overwrites it */
+    private boolean _discarded;
+    private volatile IOException _error;
+
+    // writer thread state
+    private FileChannel _channel;
+    /* the journal that replaces _channel once the save in progress succeeds */
+    private FileChannel _pending;
+    /* records in _channel, a journal without any is deleted on close */
+    private int _records;
+    private int _pendingRecords;
+    /* the version of the document the journal applies to, kept in every header written */
+    private long _documentLength;
+    private long _documentModified;
+    private final ByteBuffer _out = ByteBuffer.allocate(CHUNK_SIZE);
+    private final CRC32 _crc = new CRC32();
+    /* start of the bytes in _out not yet added to _crc */
+    private int _crcMark;
+
+    public EditJournal(File document) {
+        _document = document.getAbsoluteFile();
+        _file = journalFileFor(_document);
+    }
+
+    /** Returns the journal file kept for document */
+    public static File journalFileFor(File document) {
+        document = document.getAbsoluteFile();
+        return new File(document.getParentFile(), "." + document.getName() + ".edits");
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    /** Sets after how many edits the journal is rewritten as a snapshot */
+    public void setCompactThreshold(int edits) {
+        _compactThreshold = edits;
+    }
+
+    public int getCompactThreshold() {
+        return _compactThreshold;
+    }
+
+    /** Sets how long, in milliseconds, edits are collected before they are synced as a group */
+    public void setCommitDelay(long millis) {
+        _commitDelay = millis;
+    }
+
+    /**
+     * Returns true if recover() found a journal written against another version of the document.
+     * Its edits were not replayed, and start() replaces it.
+     */
+    public boolean hasDiscardedEdits() {
+        return _discarded;
+    }
+
+    /** Returns the error that stopped the journal, or null */
+    public IOException getError() {
+        return _error;
+    }
+
+    /**
+     * Replays the journal left by a previous run onto buffer, which must hold the document as it is
+     * on disk. A journal written against another version of the document is ignored, see
+     * hasDiscardedEdits().
+     *
+     * @return buffer, holding the recovered text
+     */
+    public TextBuffer recover(TextBuffer buffer) throws IOException {
+        _recoveredEnd = -1;
+        _discarded = false;
+        if (!_file.isFile()) {
+            return buffer;
+        }
+        try (FileInputStream stream = new FileInputStream(_file)) {
+            Reader reader = new Reader(stream.getChannel());
+            if (!reader.require(HEADER_SIZE) || reader.getInt() != MAGIC
+                    || reader.getInt() != VERSION) {
+                _discarded = true;
+                return buffer;
+            }
+            long documentLength = reader.getLong();
+            long documentModified = reader.getLong();
+            if (documentLength != _document.length()
+                    || documentModified != _document.lastModified()) {
+                // the document was changed behind our back, the offsets mean nothing anymore
+                _discarded = true;
+                return buffer;
+            }
+
+            // check the CRCs first, so a damaged journal does not leave the buffer half replayed
+            long end = reader.validate();
+            reader.seek(HEADER_SIZE);
+            int records = 0;
+            int edits = 0;
+            while (reader.position() < end) {
+                long start = reader.position();
+                reader.require(5);
+                if (reader.getByte() == SNAPSHOT) {
+                    // streamed into the caller's buffer, which may be a rope kept out of one array
+                    buffer.delete(0, buffer.length(), false);
+                    char[] chunk = new char[CHUNK_SIZE / 2];
+                    for (int left = reader.getInt(); left > 0; ) {
+                        int n = Math.min(left, chunk.length);
+                        reader.getChars(chunk, 0, n);
+                        buffer.insert(buffer.length(), new String(chunk, 0, n), false);
+                        left -= n;
+                    }
+                    edits = 0;
+                } else {
+                    int offset = reader.getInt();
+                    reader.require(8);
+                    int removed = reader.getInt();
+                    char[] text = new char[reader.getInt()];
+                    reader.getChars(text, 0, text.length);
+                    if (offset < 0 || removed < 0 || offset + removed > buffer.length()) {
+                        // does not fit the text; continue the journal before it
+                        end = start;
+                        break;
+                    }
+                    if (removed > 0) {
+                        buffer.delete(offset, offset + removed, false);
+                    }
+                    if (text.length > 0) {
+                        buffer.insert(offset, new String(text), false);
+                    }
+                    edits++;
+                }
+                reader.require(4);
+                reader.getInt(); // the CRC, checked by validate()
+                records++;
+            }
+            _recoveredEnd = end;
+            _recoveredRecords = records;
+            _edits = edits;
+            _documentLength = documentLength;
+            _documentModified = documentModified;
+        }
+        return buffer;
+    }
+
+    /**
+     * Starts journaling the edits of buffer. Continues the journal found by recover(), otherwise
+     * starts a new one against the document as it is on disk.
+     */
+    public synchronized void start(TextBuffer buffer) throws IOException {
+        if (_writer != null) {
+            throw new IllegalStateException("already started");
+        }
+        FileChannel channel = new RandomAccessFile(_file, "rw").getChannel();
+        try {
+            if (_recoveredEnd > 0) {
+                // drop the torn tail
+                channel.truncate(_recoveredEnd);
+                channel.position(_recoveredEnd);
+                _records = _recoveredRecords;
+            } else {
+                _edits = 0;
+                _documentLength = _document.length();
+                _documentModified = _document.lastModified();
+                channel.truncate(0);
+                writeHeader(channel, _documentLength, _documentModified);
+                _records = 0;
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        _channel = channel;
+        _buffer = buffer;
+        buffer.addTextChangeListener(this);
+        _writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "EditJournal");
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    @Override
+    public void onTextChanged(TextBuffer buffer, TextChangeEvent event) {
+        Item item = new Item(OP_EDIT);
+        item.offset = event.offset;
+        item.removed = event.removedLength;
+        // copied now, the buffer moves on while the writer catches up
+        item.text = buffer.substring(event.offset, event.offset + event.insertedLength);
+        _queue.add(item);
+
+        if (++_edits >= _compactThreshold) {
+            _edits = 0;
+            Item compact = new Item(OP_COMPACT);
+            compact.snapshot = buffer.snapshot();
+            _queue.add(compact);
+        }
+    }
+
+    /**
+     * Marks the state of the buffer that is being saved. Call it on the editing thread when the
+     * snapshot for the save is taken, so the edits made during the save stay in the journal.
+     */
+    public void beginSave() {
+        _queue.add(new Item(OP_BEGIN_SAVE));
+    }
+
+    /** Finishes the save started with beginSave(). Only a successful save resets the journal. */
+    public void endSave(boolean saved) {
+        Item item = new Item(OP_END_SAVE);
+        item.saved = saved;
+        _queue.add(item);
+    }
+
+    /**
+     * Stops journaling and waits until every edit is on disk. The journal file stays if it holds
+     * unsaved edits.
+     */
+    public synchronized void close() {
+        if (_writer == null) {
+            return;
+        }
+        _buffer.removeTextChangeListener(this);
+        _queue.add(new Item(OP_STOP));
+        try {
+            _writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _writer = null;
+        _buffer = null;
+    }
+
+    /* The writer thread: group commit of everything that arrives within the commit delay */
+    private void write() {
+        boolean running = true;
+        while (running) {
+            try {
+                Item item = _queue.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_commitDelay);
+                while (item != null) {
+                    if (item.op == OP_STOP) {
+                        running = false;
+                        break;
+                    }
+                    process(item);
+                    long wait = deadline - System.nanoTime();
+                    item = wait > 0 ? _queue.poll(wait, TimeUnit.NANOSECONDS) : _queue.poll();
+                }
+                if (_error == null) {
+                    flushOut();
+                    _channel.force(false);
+                    if (_pending != null) {
+                        _pending.force(false);
+                    }
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                _error = e;
+            }
+        }
+        finish();
+    }
+
+    private void process(Item item) throws IOException {
+        if (_error != null) {
+            // the journal is broken; keep draining so nothing piles up
+            if (item.snapshot != null) {
+                item.snapshot.release();
+            }
+            return;
+        }
+        switch (item.op) {
+            case OP_EDIT:
+                putEdit(item);
+                _records++;
+                if (_pending != null) {
+                    _pendingRecords++;
+                }
+                break;
+            case OP_COMPACT:
+                try {
+                    compact(item.snapshot);
+                } finally {
+                    item.snapshot.release();
+                }
+                break;
+            case OP_BEGIN_SAVE:
+                beginPending();
+                break;
+            case OP_END_SAVE:
+                endPending(item.saved);
+                break;
+        }
+    }
+
+    /* Replaces the journal with one holding only a snapshot of the text */
+    private void compact(TextBuffer snapshot) throws IOException {
+        flushOut();
+        File temp = new File(_file.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+        FileChannel pending = _pending;
+        FileChannel old = _channel;
+        try {
+            channel.truncate(0);
+            // the snapshot still applies only to the document it was edited from
+            writeHeader(channel, _documentLength, _documentModified);
+            // only the new file gets the snapshot
+            _channel = channel;
+            _pending = null;
+            putSnapshot(snapshot);
+            flushOut();
+            channel.force(false);
+            if (!temp.renameTo(_file)) {
+                throw new IOException("cannot replace " + _file);
+            }
+        } catch (IOException e) {
+            _channel = old;
+            channel.close();
+            temp.delete();
+            throw e;
+        } finally {
+            _pending = pending;
+        }
+        old.close();
+        _records = 1;
+    }
+
+    private void beginPending() throws IOException {
+        flushOut();
+        if (_pending != null) {
+            // a save that never ended
+            closePending(false);
+        }
+        _pending = new RandomAccessFile(pendingFile(), "rw").getChannel();
+        _pending.truncate(0);
+        // the header is written once the saved file is known
+        writeHeader(_pending, 0, 0);
+        _pendingRecords = 0;
+    }
+
+    private void endPending(boolean saved) throws IOException {
+        if (_pending == null) {
+            return;
+        }
+        flushOut();
+        closePending(saved);
+    }
+
+    private void closePending(boolean saved) throws IOException {
+        FileChannel pending = _pending;
+        _pending = null;
+        if (!saved) {
+            pending.close();
+            pendingFile().delete();
+            return;
+        }
+        long documentLength = _document.length();
+        long documentModified = _document.lastModified();
+        ByteBuffer header = header(documentLength, documentModified);
+        while (header.hasRemaining()) {
+            pending.write(header, header.position());
+        }
+        pending.force(false);
+        if (!pendingFile().renameTo(_file)) {
+            pending.close();
+            throw new IOException("cannot replace " + _file);
+        }
+        _documentLength = documentLength;
+        _documentModified = documentModified;
+        _channel.close();
+        _channel = pending;
+        _records = _pendingRecords;
+    }
+
+    /* Flushes and closes everything; a journal without unsaved edits is removed */
+    private void finish() {
+        try {
+            if (_error == null) {
+                flushOut();
+            }
+            if (_pending != null) {
+                _pending.close();
+                pendingFile().delete();
+                _pending = null;
+            }
+            _channel.force(false);
+            _channel.close();
+            if (_error == null && _records == 0) {
+                _file.delete();
+            }
+        } catch (IOException e) {
+            _error = e;
+        }
+        // snapshots of compactions that were never reached
+        Item item;
+        while ((item = _queue.poll()) != null) {
+            if (item.snapshot != null) {
+                item.snapshot.release();
+            }
+        }
+    }
+
+    private File pendingFile() {
+        return new File(_file.getPath() + ".save");
+    }
+
+    private void putEdit(Item item) throws IOException {
+        beginRecord();
+        ensure(13);
+        _out.put(EDIT);
+        _out.putInt(item.offset);
+        _out.putInt(item.removed);
+        _out.putInt(item.text.length());
+        String text = item.text;
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            ensure(2);
+            int end = i + Math.min(length - i, _out.remaining() / 2);
+            for (; i < end; ++i) {
+                _out.putChar(text.charAt(i));
+            }
+        }
+        endRecord();
+    }
+
+    private void putSnapshot(TextBuffer snapshot) throws IOException {
+        beginRecord();
+        ensure(5);
+        _out.put(SNAPSHOT);
+        _out.putInt(snapshot.length());
+        SegmentIterator segments = new SegmentIterator(snapshot, 0, snapshot.length());
+        while (segments.next()) {
+            TextSegment segment = segments.segment;
+            char[] array = segment.array;
+            int i = segment.offset;
+            int segmentEnd = i + segment.count;
+            while (i < segmentEnd) {
+                ensure(2);
+                int end = i + Math.min(segmentEnd - i, _out.remaining() / 2);
+                for (; i < end; ++i) {
+                    _out.putChar(array[i]);
+                }
+            }
+        }
+        endRecord();
+    }
+
+    private void beginRecord() {
+        _crc.reset();
+        _crcMark = _out.position();
+    }
+
+    private void endRecord() throws IOException {
+        _crc.update(_out.array(), _crcMark, _out.position() - _crcMark);
+        _crcMark = _out.position();
+        int crc = (int) _crc.getValue();
+        ensure(4);
+        _out.putInt(crc);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (_out.remaining() < bytes) {
+            flushOut();
+        }
+    }
+
+    /* Writes _out to the journal and to the pending one */
+    private void flushOut() throws IOException {
+        _crc.update(_out.array(), _crcMark, _out.position() - _crcMark);
+        _crcMark = 0;
+        _out.flip();
+        int limit = _out.limit();
+        while (_out.hasRemaining()) {
+            _channel.write(_out);
+        }
+        if (_pending != null) {
+            _out.position(0);
+            _out.limit(limit);
+            while (_out.hasRemaining()) {
+                _pending.write(_out);
+            }
+        }
+        _out.clear();
+    }
+
+    private static void writeHeader(FileChannel channel, long documentLength,
+            long documentModified) throws IOException {
+        ByteBuffer header = header(documentLength, documentModified);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static ByteBuffer header(long documentLength, long documentModified) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(documentLength).putLong(documentModified);
+        header.flip();
+        return header;
+    }
+
+    /* A request for the writer thread */
+    private static final class Item {
+        final int op;
+        int offset;
+        int removed;
+        String text;
+        TextBuffer snapshot;
+        boolean saved;
+
+        Item(int op) {
+            this.op = op;
+        }
+    }
+
+    /* Reads records through a buffer, adding every byte taken to a CRC */
+    private static final class Reader {
+        private final FileChannel _channel;
+        private final ByteBuffer _in = ByteBuffer.allocate(CHUNK_SIZE);
+        private final CRC32 _crc = new CRC32();
+        /* file position of the end of _in's content */
+        private long _filePosition;
+
+        Reader(FileChannel channel) {
+            _channel = channel;
+            _in.limit(0);
+        }
+
+        long position() {
+            return _filePosition - _in.remaining();
+        }
+
+        void seek(long position) throws IOException {
+            _channel.position(position);
+            _filePosition = position;
+            _in.clear().limit(0);
+        }
+
+        /* Makes sure count bytes (at most CHUNK_SIZE) are buffered. False at the end of file. */
+        boolean require(int count) throws IOException {
+            if (_in.remaining() >= count) {
+                return true;
+            }
+            _in.compact();
+            while (_in.position() < count) {
+                int read = _channel.read(_in);
+                if (read < 0) {
+                    break;
+                }
+                _filePosition += read;
+            }
+            _in.flip();
+            return _in.remaining() >= count;
+        }
+
+        byte getByte() {
+            _crc.update(_in.array(), _in.position(), 1);
+            return _in.get();
+        }
+
+        int getInt() {
+            _crc.update(_in.array(), _in.position(), 4);
+            return _in.getInt();
+        }
+
+        long getLong() {
+            _crc.update(_in.array(), _in.position(), 8);
+            return _in.getLong();
+        }
+
+        /* Reads chars into dest, or skips them if dest is null. False at the end of file. */
+        boolean getChars(char[] dest, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (!require(2)) {
+                    return false;
+                }
+                int n = Math.min(count, _in.remaining() / 2);
+                _crc.update(_in.array(), _in.position(), n * 2);
+                if (dest != null) {
+                    for (int end = offset + n; offset < end; ++offset) {
+                        dest[offset] = _in.getChar();
+                    }
+                } else {
+                    _in.position(_in.position() + n * 2);
+                }
+                count -= n;
+            }
+            return true;
+        }
+
+        /* Checks the records after the header. Returns the end of the last intact one. */
+        long validate() throws IOException {
+            long end = position();
+            while (require(5)) {
+                _crc.reset();
+                byte op = getByte();
+                int length;
+                if (op == SNAPSHOT) {
+                    length = getInt();
+                } else if (op == EDIT) {
+                    if (!require(12)) {
+                        break;
+                    }
+                    getInt();
+                    getInt();
+                    length = getInt();
+                } else {
+                    break;
+                }
+                if (length < 0 || !getChars(null, 0, length) || !require(4)) {
+                    break;
+                }
+                int expected = (int) _crc.getValue();
+                if (getInt() != expected) {
+                    break;
+                }
+                end = position();
+            }
+            return end;
+        }
+    }
+}
@@ -1,44 +1,75 @@
 package modder.hub.editor.buffer;
 
-import java.util.LinkedList;
-import modder.hub.editor.utils.Pair;
-
 /**
  * GapBuffer is a threadsafe EditBuffer that is optimized for editing with a cursor which tends to
  * make a sequence of inserts and deletes at the same place in the buffer
  *
  * <p>have all methods work with charOffsets and move all gap handling to getRealIndex()
+ *
+ * <p>Text loaded by TextFileLoader that fits into Latin-1 is stored one byte per char, like the
+ * compact strings of the JDK. The first insertion of a wider char switches the whole array to
+ * UTF-16; isLatin1() tells which storage is in use.
  */
 
 /** Re modification done by @developer-krushna Optimized some code config Known bugs are fixed */
-public class GapBuffer implements CharSequence {
+public class GapBuffer extends AbstractTextBuffer {
+
+    public static final int DEFAULT_MIN_GAP_SIZE = 64;
+    public static final int DEFAULT_MAX_GAP_SIZE = 1024 * 1024;
 
+    // exactly one of them holds the text; see isLatin1()
     private char[] _contents;
+    private byte[] _latin1;
     private int _gapStartIndex;
     private int _gapEndIndex;
-    private int _lineCount;
-    private BufferCache _cache;
-    private UndoStack _undoStack;
-
-    // Selection snapshots produced by last undo/redo
-    private int _lastUndoSelStart = -1;
-    private int _lastUndoSelEnd = -1;
-    private boolean _lastUndoSelMode = false;
-
-    private int _lastRedoSelStart = -1;
-    private int _lastRedoSelEnd = -1;
-    private boolean _lastRedoSelMode = false;
+    private LineIndex _lineIndex;
+
+    // growth policy, see setGrowthPolicy()
+    private int _minGapSize = DEFAULT_MIN_GAP_SIZE;
+    private int _maxGapSize = DEFAULT_MAX_GAP_SIZE;
+
+    // statistics, see getGapMoveCount() and friends
+    private long _gapMoves;
+    private long _gapMovedChars;
+    private long _reallocations;
+
+    // Snapshots read _contents outside the gap they were taken with. While any may be alive,
+    // only [_sharedGapStart, _sharedGapEnd) may be written; see unshareContents()
+    private boolean _sharedContents;
+    private int _sharedGapStart;
+    private int _sharedGapEnd;
+    /* unreleased snapshots of the current _contents; _shareGeneration counts the arrays */
+    private int _liveSnapshots;
+    private int _shareGeneration;
+
+    // on a snapshot: where it came from, until release()
+    private GapBuffer _source;
+    private int _sourceGeneration;
 
     private final int EOF = '\uFFFF';
     private final int NEWLINE = '\n';
 
+    // longest run getSegment() widens from Latin-1 storage at a time
+    private static final int LATIN1_SEGMENT_SIZE = 8192;
+
     public GapBuffer() {
         _contents = new char[16]; // init size 16
-        _lineCount = 1;
         _gapStartIndex = 0;
         _gapEndIndex = _contents.length;
-        _cache = new BufferCache();
-        _undoStack = new UndoStack();
+        _lineIndex = new LineIndex();
+    }
+
+    /**
+     * Creates an empty buffer that takes capacity chars, plus the gap the growth policy leaves for
+     * typing, before the array has to grow. Meant for text that is appended as it comes in, like
+     * a file being loaded; like a loaded file the array holds one byte per char until the first
+     * char beyond Latin-1.
+     */
+    public GapBuffer(int capacity) {
+        _latin1 = new byte[capacity + gapSizeFor(capacity)];
+        _gapStartIndex = 0;
+        _gapEndIndex = _latin1.length;
+        _lineIndex = new LineIndex();
     }
 
     public GapBuffer(String buffer) {
@@ -47,16 +78,99 @@ public class GapBuffer implements CharSequence {
     }
 
     public GapBuffer(char[] buffer) {
+        // the whole array is text; the gap starts out empty at the end
         _contents = buffer;
-        _lineCount = 1;
-        _cache = new BufferCache();
-        _undoStack = new UndoStack();
-        for (char c : _contents) {
-            if (c == NEWLINE)
-                _lineCount++;
+        _gapStartIndex = buffer.length;
+        _gapEndIndex = buffer.length;
+        _lineIndex = new LineIndex();
+        addLines(0, 0, buffer.length);
+    }
+
+    /**
+     * Takes over contents, whose first length chars are the text and the rest the gap.
+     * lineIndex must already hold the line starts of the text.
+     */
+    GapBuffer(char[] contents, int length, LineIndex lineIndex) {
+        _contents = contents;
+        _gapStartIndex = length;
+        _gapEndIndex = contents.length;
+        _lineIndex = lineIndex;
+        // the caller may have sized the array generously
+        compactIfSparse();
+    }
+
+    /** Like GapBuffer(char[], int, LineIndex), for Latin-1 text stored one byte per char */
+    GapBuffer(byte[] contents, int length, LineIndex lineIndex) {
+        _latin1 = contents;
+        _gapStartIndex = length;
+        _gapEndIndex = contents.length;
+        _lineIndex = lineIndex;
+        compactIfSparse();
+    }
+
+    /* Creates a read-only snapshot of source */
+    private GapBuffer(GapBuffer source) {
+        _contents = source._contents;
+        _latin1 = source._latin1;
+        _gapStartIndex = source._gapStartIndex;
+        _gapEndIndex = source._gapEndIndex;
+        _version = source._version;
+        _readOnly = true;
+        _source = source;
+        _sourceGeneration = source._shareGeneration;
+        // built on first use, by the reading thread
+        _lineIndex = null;
+    }
+
+    /**
+     * Takes O(1) time. Typing at the cursor afterwards only writes into the gap, which the snapshot
+     * does not see. The first edit that has to write elsewhere copies the array, unless every
+     * snapshot has been released by then.
+     */
+    public synchronized GapBuffer snapshot() {
+        if (_readOnly) {
+            return this;
+        }
+
+        if (_sharedContents) {
+            // every live snapshot must keep its view; only the common part of their gaps is free
+            _sharedGapStart = Math.max(_sharedGapStart, _gapStartIndex);
+            _sharedGapEnd = Math.min(_sharedGapEnd, _gapEndIndex);
+        } else {
+            _sharedContents = true;
+            _sharedGapStart = _gapStartIndex;
+            _sharedGapEnd = _gapEndIndex;
+        }
+        ++_liveSnapshots;
+        return new GapBuffer(this);
+    }
+
+    @Override
+    public void release() {
+        GapBuffer source;
+        synchronized (this) {
+            source = _source;
+            _source = null;
+        }
+        if (source != null) {
+            source.snapshotReleased(_sourceGeneration);
+        }
+    }
+
+    private synchronized void snapshotReleased(int generation) {
+        // snapshots of an array that was already left behind do not count
+        if (generation == _shareGeneration && --_liveSnapshots == 0) {
+            stopSharing();
         }
     }
 
+    /* Forgets all snapshots of the current _contents */
+    private void stopSharing() {
+        _sharedContents = false;
+        _liveSnapshots = 0;
+        ++_shareGeneration;
+    }
+
     /**
      * Returns a string of text corresponding to the line with index lineNumber.
      *
@@ -81,90 +195,7 @@ public class GapBuffer implements CharSequence {
         if (lineNumber <= 0 || lineNumber > getLineCount()) {
             throw new IllegalArgumentException("line index is invalid");
         }
-
-        int lineIndex = --lineNumber;
-        // start search from nearest known lineIndex~charOffset pair
-        Pair<Integer, Integer> cacheEntry = _cache.getNearestLine(lineIndex);
-        int cacheLine = cacheEntry.first;
-        int cacheOffset = cacheEntry.second;
-
-        int offset = 0;
-        if (lineIndex > cacheLine) {
-            offset = findCharOffset(lineIndex, cacheLine, cacheOffset);
-        } else if (lineIndex < cacheLine) {
-            offset = findCharOffsetBackward(lineIndex, cacheLine, cacheOffset);
-        } else {
-            offset = cacheOffset;
-        }
-
-        if (offset >= 0) {
-            // seek successful
-            _cache.updateEntry(lineIndex, offset);
-        }
-        return offset;
-    }
-
-    /*
-     * Precondition: startOffset is the offset of startLine
-     */
-    private int findCharOffset(int targetLine, int startLine, int startOffset) {
-        assert isValid(startOffset);
-
-        int currLine = startLine;
-        int offset = getRealIndex(startOffset);
-
-        while ((currLine < targetLine) && (offset < _contents.length)) {
-            if (_contents[offset] == NEWLINE) {
-                ++currLine;
-            }
-            ++offset;
-
-            // skip the gap
-            if (offset == _gapStartIndex) {
-                offset = _gapEndIndex;
-            }
-        }
-
-        if (currLine != targetLine) {
-            return -1;
-        }
-        return getLogicalIndex(offset);
-    }
-
-    /*
-     * Precondition: startOffset is the offset of startLine
-     */
-    private int findCharOffsetBackward(int targetLine, int startLine, int startOffset) {
-        assert isValid(startOffset);
-
-        if (targetLine == 0) {
-            return 0; // line index 0 always has 0 offset
-        }
-
-        int currLine = startLine;
-        int offset = getRealIndex(startOffset);
-        while (currLine > (targetLine - 1) && offset >= 0) {
-            // skip behind the gap
-            if (offset == _gapEndIndex) {
-                offset = _gapStartIndex;
-            }
-            --offset;
-
-            if (_contents[offset] == NEWLINE) {
-                --currLine;
-            }
-        }
-
-        int charOffset;
-        if (offset >= 0) {
-            // now at the '\n' of the line before targetLine
-            charOffset = getLogicalIndex(offset);
-            ++charOffset;
-        } else {
-            // assert isValid(offset);
-            charOffset = -1;
-        }
-        return charOffset;
+        return lineIndex().getLineStart(lineNumber - 1);
     }
 
     /**
@@ -177,54 +208,7 @@ public class GapBuffer implements CharSequence {
         if (charOffset < 0) return 1;
         if (charOffset >= length()) return getLineCount();
 
-        Pair<Integer, Integer> cachedEntry = _cache.getNearestCharOffset(charOffset);
-        int line = cachedEntry.first;
-        int offset = getRealIndex(cachedEntry.second);
-        int targetOffset = getRealIndex(charOffset);
-        int lastKnownLine = -1;
-        int lastKnownCharOffset = -1;
-
-        if (targetOffset > offset) {
-            // search forward
-            while ((offset < targetOffset) && (offset < _contents.length)) {
-                if (_contents[offset] == NEWLINE) {
-                    ++line;
-                    lastKnownLine = line;
-                    lastKnownCharOffset = getLogicalIndex(offset) + 1;
-                }
-
-                ++offset;
-                // skip the gap
-                if (offset == _gapStartIndex) {
-                    offset = _gapEndIndex;
-                }
-            }
-        } else if (targetOffset < offset) {
-            // search backward
-            while ((offset > targetOffset) && (offset > 0)) {
-                // skip behind the gap
-                if (offset == _gapEndIndex) {
-                    offset = _gapStartIndex;
-                }
-                --offset;
-
-                if (_contents[offset] == NEWLINE) {
-                    lastKnownLine = line;
-                    lastKnownCharOffset = getLogicalIndex(offset) + 1;
-                    --line;
-                }
-            }
-        }
-
-        if (offset == targetOffset) {
-            if (lastKnownLine != -1) {
-                // cache the lookup entry
-                _cache.updateEntry(lastKnownLine, lastKnownCharOffset);
-            }
-            return line + 1;
-        } else {
-            return 1; // Return 1 instead of 0 for invalid cases
-        }
+        return lineIndex().findLine(charOffset) + 1;
     }
 
     /**
@@ -234,22 +218,12 @@ public class GapBuffer implements CharSequence {
      * @return The number of chars in lineNumber, or 0 if the line does not exist.
      */
     public synchronized int getLineLength(int lineNumber) {
-        int lineLength = 0;
-        int pos = getLineOffset(lineNumber);
-        pos = getRealIndex(pos);
-
-        // TODO consider adding check for (pos < _contents.length) in case EOF is not properly set
-        while (pos < _contents.length &&
-                _contents[pos] != NEWLINE &&
-                _contents[pos] != EOF) {
-            ++lineLength;
-            ++pos;
-            // skip the gap
-            if (pos == _gapStartIndex) {
-                pos = _gapEndIndex;
-            }
+        int start = getLineOffset(lineNumber);
+        if (lineNumber == getLineCount()) {
+            return length() - start;
         }
-        return lineLength;
+        // exclude the trailing newline
+        return lineIndex().getLineStart(lineNumber) - 1 - start;
     }
 
     /**
@@ -268,10 +242,13 @@ public class GapBuffer implements CharSequence {
         int realIndex = getRealIndex(charOffset);
 
         // Double-check real index bounds
-        if (realIndex < 0 || realIndex >= _contents.length) {
+        if (realIndex < 0 || realIndex >= capacity()) {
             return '\0';
         }
 
+        if (_latin1 != null) {
+            return (char) (_latin1[realIndex] & 0xFF);
+        }
         return _contents[realIndex];
     }
 
@@ -287,19 +264,58 @@ public class GapBuffer implements CharSequence {
         if (end > length()) end = length();
         if (start >= end) return "";
 
-        int count = end - start;
-        int realIndex = getRealIndex(start);
-        char[] chars = new char[count];
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    public synchronized void getChars(int start, int end, char[] dest, int destOffset) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end);
+        }
+
+        // the part before the gap, then the part after it
+        if (start < _gapStartIndex) {
+            int count = Math.min(end, _gapStartIndex) - start;
+            copyChars(start, dest, destOffset, count);
+            start += count;
+            destOffset += count;
+        }
+        if (start < end) {
+            copyChars(start + gapSize(), dest, destOffset, end - start);
+        }
+    }
 
+    /* Copies count chars of the array from realIndex on, widening Latin-1 storage */
+    private void copyChars(int realIndex, char[] dest, int destOffset, int count) {
+        if (_latin1 == null) {
+            System.arraycopy(_contents, realIndex, dest, destOffset, count);
+            return;
+        }
+        byte[] bytes = _latin1;
         for (int i = 0; i < count; ++i) {
-            if (realIndex >= _contents.length) break; // Safety check
-            chars[i] = _contents[realIndex];
-            // skip the gap
-            if (++realIndex == _gapStartIndex) {
-                realIndex = _gapEndIndex;
-            }
+            dest[destOffset + i] = (char) (bytes[realIndex + i] & 0xFF);
         }
-        return new String(chars);
+    }
+
+    public synchronized boolean getSegment(int charOffset, TextSegment segment) {
+        if (charOffset < 0 || charOffset >= length()) {
+            return false;
+        }
+
+        int realIndex = isBeforeGap(charOffset) ? charOffset : charOffset + gapSize();
+        int count = isBeforeGap(charOffset) ? _gapStartIndex - charOffset
+                : capacity() - realIndex;
+        if (_latin1 != null) {
+            // there is no char[] to hand out; widen a window into the segment's own array
+            count = Math.min(count, LATIN1_SEGMENT_SIZE);
+            char[] chars = segment.scratch(count);
+            copyChars(realIndex, chars, 0, count);
+            segment.set(chars, 0, count, charOffset);
+        } else {
+            segment.set(_contents, realIndex, count, charOffset);
+        }
+        return true;
     }
 
     public synchronized String substring(int start, int end) {
@@ -320,15 +336,24 @@ public class GapBuffer implements CharSequence {
 
     public synchronized GapBuffer insert(int offset, String str,
             boolean capture, long timestamp) {
+        beginChange(offset, 0);
         int length = str.length();
         if (capture && length > 0) {
             _undoStack.captureInsert(offset, offset + length, timestamp);
         }
+        if (length == 0) {
+            // moving the gap would overwrite the deleted text kept there for undo
+            return GapBuffer.this;
+        }
 
-        int insertIndex = getRealIndex(offset);
+        // not getRealIndex(): it clamps offset == length() onto the last char
+        int insertIndex = isBeforeGap(offset) ? offset : offset + gapSize();
 
-        // shift gap to insertion point
-        if (insertIndex != _gapEndIndex) {
+        if (length >= gapSize()) {
+            // the gap is moved to the insertion point while copying
+            reallocate(offset, length + gapSizeFor(length() + length));
+        } else if (insertIndex != _gapEndIndex) {
+            // shift gap to insertion point
             if (isBeforeGap(insertIndex)) {
                 shiftGapLeft(insertIndex);
             } else {
@@ -336,20 +361,26 @@ public class GapBuffer implements CharSequence {
             }
         }
 
-        if (length >= gapSize()) {
-            expandBuffer(length - gapSize());
-        }
-
-        for (int i = 0; i < length; ++i) {
-            char c = str.charAt(i);
-            if (c == NEWLINE) {
-                ++_lineCount;
+        unshareContents(_gapStartIndex, _gapStartIndex + length);
+        int narrow = 0;
+        if (_latin1 != null) {
+            byte[] bytes = _latin1;
+            int gapStart = _gapStartIndex;
+            while (narrow < length && str.charAt(narrow) <= 0xFF) {
+                bytes[gapStart + narrow] = (byte) str.charAt(narrow);
+                narrow++;
+            }
+            if (narrow < length) {
+                inflate();
             }
-            _contents[_gapStartIndex] = c;
-            ++_gapStartIndex;
         }
+        if (narrow < length) {
+            str.getChars(narrow, length, _contents, _gapStartIndex + narrow);
+        }
+        _gapStartIndex += length;
 
-        _cache.invalidateCache(offset);
+        addLines(offset, _gapStartIndex - length, length);
+        endChange(length);
         return GapBuffer.this;
     }
 
@@ -374,9 +405,13 @@ public class GapBuffer implements CharSequence {
 
     public synchronized GapBuffer delete(int start, int end,
             boolean capture, long timestamp) {
+        beginChange(start, end - start);
         if (capture && start < end) {
             _undoStack.captureDelete(start, end, timestamp);
         }
+        if (start >= end) {
+            return GapBuffer.this;
+        }
 
         int newGapStart = end;
 
@@ -390,24 +425,40 @@ public class GapBuffer implements CharSequence {
         }
 
         // increase gap size
-        int len = end - start;
-        for (int i = 0; i < len; ++i) {
-            --_gapStartIndex;
-            if (_contents[_gapStartIndex] == NEWLINE) {
-                --_lineCount;
-            }
-        }
+        _gapStartIndex -= end - start;
+
+        removeLines(start, end);
 
-        _cache.invalidateCache(start);
+        // give the memory of big deletions back
+        compactIfSparse();
+        endChange(0);
         return GapBuffer.this;
     }
 
     public synchronized GapBuffer replace(int start, int end, String str, boolean capture) {
+        beginChangeGroup();
         delete(start, end, capture);
         insert(start, str, capture);
+        endChangeGroup();
         return GapBuffer.this;
     }
 
+    // the deleted chars are still at the start of the gap
+    @Override
+    protected String getDeletedText(int start, int end) {
+        return new String(gapSubSequence(end - start));
+    }
+
+    @Override
+    protected void undoLastInsert(int start, int end) {
+        shiftGapStart(-(end - start));
+    }
+
+    @Override
+    protected void undoLastDelete(int start, String data) {
+        shiftGapStart(data.length());
+    }
+
     /**
      * Gets charCount number of consecutive characters starting from _gapStartIndex.
      *
@@ -415,11 +466,89 @@ public class GapBuffer implements CharSequence {
      */
     private char[] gapSubSequence(int charCount) {
         char[] chars = new char[charCount];
+        copyChars(_gapStartIndex, chars, 0, charCount);
+        return chars;
+    }
 
-        for (int i = 0; i < charCount; ++i) {
-            chars[i] = _contents[_gapStartIndex + i];
+    /**
+     * Sets how much room for typing is left whenever the array has to be reallocated: as many
+     * chars as the text is long, so small buffers double, but at least minGapSize and at most
+     * maxGapSize, so big buffers grow by a fixed step instead of doubling hundreds of megabytes.
+     * A gap that grows beyond twice maxGapSize (and the text length) through deletions is
+     * compacted.
+     */
+    public synchronized void setGrowthPolicy(int minGapSize, int maxGapSize) {
+        if (minGapSize < 1 || maxGapSize < minGapSize) {
+            throw new IllegalArgumentException(
+                    "invalid gap sizes " + minGapSize + ", " + maxGapSize);
         }
-        return chars;
+        _minGapSize = minGapSize;
+        _maxGapSize = maxGapSize;
+    }
+
+    /** Shrinks the gap to what the growth policy leaves after a reallocation */
+    public synchronized void compact() {
+        if (_readOnly) {
+            return;
+        }
+
+        // the start of the gap may still hold the latest deletion, see getDeletedText()
+        int newGapSize = Math.max(gapSizeFor(length()),
+                Math.min(gapSize(), UndoStack.MAX_UNDO_SIZE));
+        if (newGapSize < gapSize()) {
+            reallocate(_gapStartIndex, newGapSize);
+        }
+    }
+
+    /*
+     * Compacts once the gap is larger than both twice the maximum gap and the text. Waiting until
+     * at least half of the array is gap keeps the cost of the copies linear in the number of
+     * deleted chars.
+     */
+    private void compactIfSparse() {
+        if (gapSize() > Math.max(2L * _maxGapSize, length())) {
+            compact();
+        }
+    }
+
+    /** Returns the number of times the gap was moved */
+    public synchronized long getGapMoveCount() {
+        return _gapMoves;
+    }
+
+    /** Returns the number of chars copied to move the gap */
+    public synchronized long getGapMovedChars() {
+        return _gapMovedChars;
+    }
+
+    /** Returns the number of times the array was reallocated, to grow, compact or unshare it */
+    public synchronized long getReallocationCount() {
+        return _reallocations;
+    }
+
+    public synchronized int getGapSize() {
+        return gapSize();
+    }
+
+    /** Returns the size of the array in chars, gap included */
+    public synchronized int getCapacity() {
+        return capacity();
+    }
+
+    /** Returns true while the text is stored one byte per char */
+    public synchronized boolean isLatin1() {
+        return _latin1 != null;
+    }
+
+    /** Returns the size of the array in bytes */
+    public synchronized long getStorageBytes() {
+        return _latin1 != null ? _latin1.length : 2L * _contents.length;
+    }
+
+    public synchronized void resetStats() {
+        _gapMoves = 0;
+        _gapMovedChars = 0;
+        _reallocations = 0;
     }
 
     /**
@@ -430,73 +559,179 @@ public class GapBuffer implements CharSequence {
      * insertions/deletions. No error checking is done.
      */
     private synchronized void shiftGapStart(int displacement) {
-        if (displacement >= 0)
-            _lineCount += countNewlines(_gapStartIndex, displacement);
-        else
-            _lineCount -= countNewlines(_gapStartIndex + displacement, -displacement);
-
-        _gapStartIndex += displacement;
-        _cache.invalidateCache(getLogicalIndex(_gapStartIndex - 1) + 1);
+        // the logical offset of the gap start is _gapStartIndex itself
+        if (displacement >= 0) {
+            beginChange(_gapStartIndex, 0);
+            _gapStartIndex += displacement;
+            addLines(_gapStartIndex - displacement, _gapStartIndex - displacement, displacement);
+            endChange(displacement);
+        } else {
+            beginChange(_gapStartIndex + displacement, -displacement);
+            _gapStartIndex += displacement;
+            removeLines(_gapStartIndex, _gapStartIndex - displacement);
+            endChange(0);
+        }
     }
 
-    // does NOT skip the gap when examining consecutive positions
-    private int countNewlines(int start, int totalChars) {
-        int newlines = 0;
-        for (int i = start; i < (start + totalChars); ++i) {
-            if (_contents[i] == NEWLINE) {
-                ++newlines;
+    /**
+     * Updates the line index after length chars were inserted at charOffset. The inserted chars
+     * are read from _contents starting at realIndex, which must not straddle the gap.
+     */
+    private void addLines(int charOffset, int realIndex, int length) {
+        int line = _lineIndex.findLine(charOffset);
+        _lineIndex.shiftLines(line, length);
+
+        if (_latin1 != null) {
+            byte[] bytes = _latin1;
+            for (int i = 0; i < length; ++i) {
+                if (bytes[realIndex + i] == NEWLINE) {
+                    _lineIndex.insertLine(++line, charOffset + i + 1);
+                }
             }
+            return;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (_contents[realIndex + i] == NEWLINE) {
+                _lineIndex.insertLine(++line, charOffset + i + 1);
+            }
+        }
+    }
+
+    /** Updates the line index after the chars [start, end) were deleted */
+    private void removeLines(int start, int end) {
+        int startLine = _lineIndex.findLine(start);
+        int endLine = _lineIndex.findLine(end);
+        // lines starting inside (start, end] lose their preceding newline
+        _lineIndex.removeLines(startLine + 1, endLine + 1);
+        _lineIndex.shiftLines(startLine, start - end);
+    }
+
+    /**
+     * Called before writing into _contents[from, to). If a snapshot may still see any of it, the
+     * array is copied first and the snapshots keep the old one.
+     */
+    private void unshareContents(int from, int to) {
+        if (_sharedContents && (from < _sharedGapStart || to > _sharedGapEnd)) {
+            reallocate(_gapStartIndex, gapSize());
         }
+    }
 
-        return newlines;
+    /* Builds the line index of a snapshot */
+    private LineIndex lineIndex() {
+        if (_lineIndex == null) {
+            LineIndex index = new LineIndex();
+            int line = 0;
+            for (int i = 0; i < _gapStartIndex; ++i) {
+                if (rawChar(i) == NEWLINE) {
+                    index.insertLine(++line, i + 1);
+                }
+            }
+            for (int i = _gapEndIndex; i < capacity(); ++i) {
+                if (rawChar(i) == NEWLINE) {
+                    index.insertLine(++line, i - gapSize() + 1);
+                }
+            }
+            _lineIndex = index;
+        }
+        return _lineIndex;
     }
 
     /** Adjusts gap so that _gapStartIndex is at newGapStart */
     private void shiftGapLeft(int newGapStart) {
-        while (_gapStartIndex > newGapStart) {
-            _gapEndIndex--;
-            _gapStartIndex--;
-            _contents[_gapEndIndex] = _contents[_gapStartIndex];
-        }
+        int count = _gapStartIndex - newGapStart;
+        unshareContents(_gapEndIndex - count, _gapEndIndex);
+        System.arraycopy(storage(), newGapStart, storage(), _gapEndIndex - count, count);
+        _gapStartIndex = newGapStart;
+        _gapEndIndex -= count;
+
+        ++_gapMoves;
+        _gapMovedChars += count;
     }
 
     /** Adjusts gap so that _gapEndIndex is at newGapEnd */
     private void shiftGapRight(int newGapEnd) {
-        while (_gapEndIndex < newGapEnd) {
-            _contents[_gapStartIndex] = _contents[_gapEndIndex];
-            _gapStartIndex++;
-            _gapEndIndex++;
-        }
+        int count = newGapEnd - _gapEndIndex;
+        unshareContents(_gapStartIndex, _gapStartIndex + count);
+        System.arraycopy(storage(), _gapEndIndex, storage(), _gapStartIndex, count);
+        _gapStartIndex += count;
+        _gapEndIndex = newGapEnd;
+
+        ++_gapMoves;
+        _gapMovedChars += count;
     }
 
     /**
-     * Copies _contents into a buffer that is larger by Math.max(minIncrement, _contents.length * 2
-     * + 2) bytes.
-     *
-     * <p>_allocMultiplier doubles on every call to this method, to avoid the overhead of repeated
-     * allocations.
+     * Copies the text into a new array with a gap of newGapSize chars at charOffset. If the gap
+     * stays where it is, the chars at its start are kept for getDeletedText().
      */
-    private void expandBuffer(int minIncrement) {
-        // TODO handle new size > MAX_INT or allocation failure
-        int incrSize = Math.max(minIncrement, _contents.length * 2 + 2);
-        char[] temp = new char[_contents.length + incrSize];
-        // check the maxiunm size
-        assert temp.length <= Integer.MAX_VALUE;
+    private void reallocate(int charOffset, int newGapSize) {
+        int length = length();
+        int capacity = length + newGapSize;
+        Object contents = storage();
+        Object temp = _latin1 != null ? new byte[capacity] : new char[capacity];
+        int newGapEnd = charOffset + newGapSize;
+
+        if (charOffset <= _gapStartIndex) {
+            System.arraycopy(contents, 0, temp, 0, charOffset);
+            System.arraycopy(contents, charOffset, temp, newGapEnd, _gapStartIndex - charOffset);
+        } else {
+            System.arraycopy(contents, 0, temp, 0, _gapStartIndex);
+            System.arraycopy(contents, _gapEndIndex, temp, _gapStartIndex,
+                    charOffset - _gapStartIndex);
+        }
+        int tail = length - Math.max(charOffset, _gapStartIndex);
+        System.arraycopy(contents, capacity() - tail, temp, capacity - tail, tail);
+
+        if (charOffset == _gapStartIndex) {
+            int undoChars = Math.min(Math.min(gapSize(), newGapSize), UndoStack.MAX_UNDO_SIZE);
+            System.arraycopy(contents, _gapStartIndex, temp, _gapStartIndex, undoChars);
+        }
 
-        int i = 0;
-        while (i < _gapStartIndex) {
-            temp[i] = _contents[i];
-            ++i;
+        if (_latin1 != null) {
+            _latin1 = (byte[]) temp;
+        } else {
+            _contents = (char[]) temp;
         }
+        _gapStartIndex = charOffset;
+        _gapEndIndex = newGapEnd;
+        ++_reallocations;
+        // snapshots keep the old array
+        stopSharing();
+    }
 
-        i = _gapEndIndex;
-        while (i < _contents.length) {
-            temp[i + incrSize] = _contents[i];
-            ++i;
+    /*
+     * Switches Latin-1 storage to UTF-16. The gap is copied too, it may still hold the deleted text
+     * getDeletedText() reads.
+     */
+    private void inflate() {
+        byte[] bytes = _latin1;
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i] = (char) (bytes[i] & 0xFF);
         }
+        _contents = chars;
+        _latin1 = null;
+        ++_reallocations;
+        // snapshots keep the old array
+        stopSharing();
+    }
+
+    /* The array holding the text, for System.arraycopy() */
+    private Object storage() {
+        return _latin1 != null ? _latin1 : _contents;
+    }
+
+    private int capacity() {
+        return _latin1 != null ? _latin1.length : _contents.length;
+    }
 
-        _gapEndIndex += incrSize;
-        _contents = temp;
+    private char rawChar(int realIndex) {
+        return _latin1 != null ? (char) (_latin1[realIndex] & 0xFF) : _contents[realIndex];
+    }
+
+    /* The gap a reallocation leaves for a text of length chars */
+    private int gapSizeFor(int length) {
+        return Math.min(Math.max(length, _minGapSize), _maxGapSize);
     }
 
     private boolean isValid(int charOffset) {
@@ -510,14 +745,14 @@ public class GapBuffer implements CharSequence {
     private int getRealIndex(int index) {
         // Handle all edge cases
         if (index < 0) return 0;
-        if (index >= length()) return _contents.length - 1;
+        if (index >= length()) return capacity() - 1;
 
         if (isBeforeGap(index)) {
             return index;
         } else {
             int realIndex = index + gapSize();
             // Ensure we don't go beyond array bounds
-            return Math.min(realIndex, _contents.length - 1);
+            return Math.min(realIndex, capacity() - 1);
         }
     }
 
@@ -533,478 +768,19 @@ public class GapBuffer implements CharSequence {
     }
 
     public synchronized int getLineCount() {
-        return _lineCount;
+        return lineIndex().getLineCount();
     }
 
     @Override
     public synchronized int length() {
         // TODO: Implement this method
-        return _contents.length - gapSize();
+        return capacity() - gapSize();
     }
 
     @Override
     public synchronized String toString() {
-        // TODO: Implement this method
-        StringBuffer buf = new StringBuffer();
-        int len = this.length();
-        for (int i = 0; i < len; i++) {
-            buf.append(charAt(i));
-        }
-        return new String(buf);
-    }
-
-    public boolean canUndo() {
-        return _undoStack.canUndo();
-    }
-
-    public boolean canRedo() {
-        return _undoStack.canRedo();
-    }
-
-    public int undo() {
-        // clear last redo snapshot (avoid stale)
-        _lastUndoSelStart = _lastUndoSelEnd = -1;
-        _lastUndoSelMode = false;
-        int pos = _undoStack.undo();
-        // _undoStack will fill _lastUndo* fields (via inner class)
-        return pos;
-    }
-
-    public int redo() {
-        _lastRedoSelStart = _lastRedoSelEnd = -1;
-        _lastRedoSelMode = false;
-        int pos = _undoStack.redo();
-        return pos;
-    }
-
-    /**
-     * Editor should call this BEFORE starting an operation (or batch). This tells the undo stack
-     * what the selection was before the edit.
-     */
-    public void markSelectionBefore(int selStart, int selEnd, boolean selMode) {
-        _undoStack.setPendingSelectionBefore(selStart, selEnd, selMode);
-    }
-
-    /**
-     * Editor should call this AFTER finishing an operation (or batch). This lets the undo stack
-     * record the selection state after edit.
-     */
-    public void markSelectionAfter(int selStart, int selEnd, boolean selMode) {
-        _undoStack.setPendingSelectionAfter(selStart, selEnd, selMode);
-    }
-
-    // getters for editor to read the selection restored by last undo/redo
-    public int getLastUndoSelectionStart() {
-        return _lastUndoSelStart;
-    }
-
-    public int getLastUndoSelectionEnd() {
-        return _lastUndoSelEnd;
-    }
-
-    public boolean getLastUndoSelectionMode() {
-        return _lastUndoSelMode;
-    }
-
-    public int getLastRedoSelectionStart() {
-        return _lastRedoSelStart;
-    }
-
-    public int getLastRedoSelectionEnd() {
-        return _lastRedoSelEnd;
-    }
-
-    public boolean getLastRedoSelectionMode() {
-        return _lastRedoSelMode;
-    }
-
-    public void beginBatchEdit() {
-        _undoStack.beginBatchEdit();
-    }
-
-    public void endBatchEdit() {
-        _undoStack.endBatchEdit();
-    }
-
-    public boolean isBatchEdit() {
-        return _undoStack.isBatchEdit();
-    }
-
-    class UndoStack {
-        private boolean _isBatchEdit;
-        /* for grouping batch operations */
-        private int _groupId;
-        /* where new entries should go */
-        private int _top;
-        /* timestamp for the previous edit operation */
-        private long _lastEditTime = -1L; // Initialize to -1 to distinguish from valid timestamps
-
-        private LinkedList<Action> _stack = new LinkedList<>();
-
-        private static final int MAX_UNDO_SIZE = 50000; // Max chars per undo action (~100KB);
-        // adjust as needed
-
-        public final long MERGE_TIME = 1000000000;
-
-        // Pending selection snapshots (set by GapBuffer.markSelectionBefore/After)
-        private int _pendingSelBeforeStart = -1;
-        private int _pendingSelBeforeEnd = -1;
-        private boolean _pendingSelBeforeMode = false;
-
-        private int _pendingSelAfterStart = -1;
-        private int _pendingSelAfterEnd = -1;
-        private boolean _pendingSelAfterMode = false;
-
-        /**
-         * Undo the previous insert/delete operation
-         *
-         * @return The suggested position of the caret after the undo, or -1 if there is nothing to
-         *     undo
-         */
-        public int undo() {
-            if (canUndo()) {
-                Action lastUndo = _stack.get(_top - 1);
-                int group = lastUndo._group;
-                do {
-                    Action action = _stack.get(_top - 1);
-                    if (action._group != group) {
-                        break;
-                    }
-
-                    lastUndo = action;
-                    action.undo();
-                    _top--;
-                } while (canUndo());
-
-                // After undoing the group, tell outer GapBuffer what selection to restore:
-                // Use the 'before' snapshot of the last undone action (represents state prior to
-                // the group)
-                _lastUndoSelStart = lastUndo._selBeforeStart;
-                _lastUndoSelEnd = lastUndo._selBeforeEnd;
-                _lastUndoSelMode = lastUndo._selBeforeMode;
-
-                return lastUndo.findUndoPosition();
-            }
-            return -1;
-        }
-
-        /**
-         * Redo the previous insert/delete operation
-         *
-         * @return The suggested position of the caret after the redo, or -1 if there is nothing to
-         *     redo
-         */
-        public int redo() {
-            if (canRedo()) {
-                Action lastRedo = _stack.get(_top);
-                int group = lastRedo._group;
-                do {
-                    Action action = _stack.get(_top);
-                    if (action._group != group) {
-                        break;
-                    }
-
-                    lastRedo = action;
-                    action.redo();
-                    _top++;
-                } while (canRedo());
-
-                // After redoing the group, use the 'after' snapshot of the last redone action
-                _lastRedoSelStart = lastRedo._selAfterStart;
-                _lastRedoSelEnd = lastRedo._selAfterEnd;
-                _lastRedoSelMode = lastRedo._selAfterMode;
-
-                return lastRedo.findRedoPosition();
-            }
-            return -1;
-        }
-
-        // setters used by GapBuffer.markSelectionBefore/After
-        public void setPendingSelectionBefore(int s, int e, boolean mode) {
-            _pendingSelBeforeStart = s;
-            _pendingSelBeforeEnd = e;
-            _pendingSelBeforeMode = mode;
-        }
-
-        public void setPendingSelectionAfter(int s, int e, boolean mode) {
-            _pendingSelAfterStart = s;
-            _pendingSelAfterEnd = e;
-            _pendingSelAfterMode = mode;
-        }
-
-        /**
-         * extract common parts of captureInsert and captureDelete
-         *
-         * <p>Records an insert operation. Should be called before the insertion is actually done.
-         */
-        public void captureInsert(int start, int end, long time) {
-            int len = end - start;
-            boolean mergeSuccess = false;
-
-            if (canUndo()) {
-                Action action = _stack.get(_top - 1);
-                if (action instanceof InsertAction &&
-                        (time - _lastEditTime) < MERGE_TIME &&
-                        start == action._end &&
-                        (action._end - action._start + len <= MAX_UNDO_SIZE)) {
-                    action._end += len;
-                    mergeSuccess = true;
-                } else {
-                    action.recordData();
-                }
-            }
-
-            if (!mergeSuccess && len <= MAX_UNDO_SIZE) {
-                InsertAction a = new InsertAction(start, end, _groupId);
-                // copy pending selection-before into action
-                a._selBeforeStart = _pendingSelBeforeStart;
-                a._selBeforeEnd = _pendingSelBeforeEnd;
-                a._selBeforeMode = _pendingSelBeforeMode;
-                // also copy pending selection-after (if editor already set it)
-                a._selAfterStart = _pendingSelAfterStart;
-                a._selAfterEnd = _pendingSelAfterEnd;
-                a._selAfterMode = _pendingSelAfterMode;
-
-                push(a);
-
-                if (!_isBatchEdit) {
-                    _groupId++;
-                }
-            }
-            _lastEditTime = time;
-        }
-
-        /** Records a delete operation. Should be called before the deletion is actually done. */
-        public void captureDelete(int start, int end, long time) {
-            int len = end - start;
-            boolean mergeSuccess = false;
-
-            if (canUndo()) {
-                Action action = _stack.get(_top - 1);
-                if (action instanceof DeleteAction &&
-                        (time - _lastEditTime) < MERGE_TIME &&
-                        end == action._start &&
-                        (action._end - start <= MAX_UNDO_SIZE)) {
-                    action._start = start;
-                    mergeSuccess = true;
-                } else {
-                    action.recordData();
-                }
-            }
-
-            if (!mergeSuccess && len <= MAX_UNDO_SIZE) {
-                DeleteAction a = new DeleteAction(start, end, _groupId);
-                a._selBeforeStart = _pendingSelBeforeStart;
-                a._selBeforeEnd = _pendingSelBeforeEnd;
-                a._selBeforeMode = _pendingSelBeforeMode;
-
-                a._selAfterStart = _pendingSelAfterStart;
-                a._selAfterEnd = _pendingSelAfterEnd;
-                a._selAfterMode = _pendingSelAfterMode;
-
-                push(a);
-
-                if (!_isBatchEdit) {
-                    _groupId++;
-                }
-            }
-            _lastEditTime = time;
-        }
-
-        private void push(Action action) {
-            trimStack();
-            _top++;
-            _stack.add(action);
-        }
-
-        private void trimStack() {
-            while (_stack.size() > _top) {
-                _stack.removeLast();
-            }
-        }
-
-        public final boolean canUndo() {
-            return _top > 0;
-        }
-
-        public final boolean canRedo() {
-            return _top < _stack.size();
-        }
-
-        public boolean isBatchEdit() {
-            return _isBatchEdit;
-        }
-
-        public void beginBatchEdit() {
-            _isBatchEdit = true;
-        }
-
-        public void endBatchEdit() {
-            _isBatchEdit = false;
-            _groupId++;
-        }
-
-        private abstract class Action {
-            /* Start position of the edit */
-            public int _start;
-            /* End position of the edit */
-            public int _end;
-            /* Contents of the affected segment */
-            public String _data;
-            /* Group ID. Commands of the same group are undo/redo as a unit */
-            public int _group;
-            /* 750ms in nanoseconds */
-            public final long MERGE_TIME = 750000000L; // Fixed to 750ms as per comment
-
-            // Selection snapshot BEFORE this action (or group)
-            public int _selBeforeStart = -1;
-            public int _selBeforeEnd = -1;
-            public boolean _selBeforeMode = false;
-
-            // Selection snapshot AFTER this action
-            public int _selAfterStart = -1;
-            public int _selAfterEnd = -1;
-            public boolean _selAfterMode = false;
-
-            public abstract void undo();
-
-            public abstract void redo();
-
-            /* Populates _data with the affected text */
-            public abstract void recordData();
-
-            public abstract int findUndoPosition();
-
-            public abstract int findRedoPosition();
-
-            /**
-             * Attempts to merge in an edit. This will only be successful if the new edit is
-             * continuous. See {@link UndoStack} for the requirements of a continuous edit.
-             *
-             * @param start Start position of the new edit
-             * @param length Length of the newly edited segment
-             * @param time Timestamp when the new edit was made. There are no restrictions on the
-             *     units used, as long as it is consistently used in the whole program
-             * @return Whether the merge was successful
-             */
-            public abstract boolean merge(int start, int end, long time);
-        }
-
-        private class InsertAction extends Action {
-            /** Corresponds to an insertion of text of size length just before start position. */
-            public InsertAction(int start, int end, int group) {
-                this._start = start;
-                this._end = end;
-                this._group = group;
-            }
-
-            @Override
-            public boolean merge(int start, int end, long time) {
-                if (_lastEditTime < 0) {
-                    return false;
-                }
-
-                if ((time - _lastEditTime) < MERGE_TIME
-                        && start == _end) {
-                    _end += end - start;
-                    trimStack();
-                    return true;
-                }
-                return false;
-            }
-
-            @Override
-            public void recordData() {
-                // TODO handle memory allocation failure
-                _data = substring(_start, _end);
-            }
-
-            @Override
-            public void undo() {
-                if (_data == null) {
-                    recordData();
-                    shiftGapStart(-(_end - _start));
-                } else {
-                    // dummy timestamp of 0
-                    delete(_start, _end, false, 0);
-                }
-            }
-
-            @Override
-            public void redo() {
-                // dummy timestamp of 0
-                insert(_start, _data, false, 0);
-            }
-
-            @Override
-            public int findRedoPosition() {
-                return _end;
-            }
-
-            @Override
-            public int findUndoPosition() {
-                return _start;
-            }
-        }
-
-        private class DeleteAction extends Action {
-            /**
-             * Corresponds to an deletion of text of size length starting from start position,
-             * inclusive.
-             */
-            public DeleteAction(int start, int end, int group) {
-                this._start = start;
-                this._end = end;
-                this._group = group;
-            }
-
-            @Override
-            public boolean merge(int start, int end, long time) {
-                if (_lastEditTime < 0) {
-                    return false;
-                }
-
-                if ((time - _lastEditTime) < MERGE_TIME
-                        && end == _start) {
-                    _start = start;
-                    trimStack();
-                    return true;
-                }
-                return false;
-            }
-
-            @Override
-            public void recordData() {
-                // TODO handle memory allocation failure
-                _data = new String(gapSubSequence(_end - _start));
-            }
-
-            @Override
-            public void undo() {
-                if (_data == null) {
-                    recordData();
-                    shiftGapStart(_end - _start);
-                } else {
-                    // dummy timestamp of 0
-                    insert(_start, _data, false, 0);
-                }
-            }
-
-            @Override
-            public void redo() {
-                // dummy timestamp of 0
-                delete(_start, _end, false, 0);
-            }
-
-            @Override
-            public int findRedoPosition() {
-                return _start;
-            }
-
-            @Override
-            public int findUndoPosition() {
-                return _end;
-            }
-        } // end inner class
+        char[] chars = new char[length()];
+        getChars(0, chars.length, chars, 0);
+        return new String(chars);
     }
 }
@@ -0,0 +1,210 @@
+package modder.hub.editor.buffer;
+
+/**
+ * LineIndex keeps the char offset of the first character of every line so that line <-> offset
+ * lookups do not have to walk the text.
+ *
+ * <p>Line starts are stored in a gap array of ints, so inserting or removing lines near the last
+ * edit is cheap. Edits move the starts of every following line; instead of touching all of them
+ * at once, the pending displacement is kept in _stepLength and only applied to entries after
+ * _stepLine when a lookup or a later edit needs them. Typing on one line therefore costs O(1) and
+ * offset -> line lookups are a binary search.
+ *
+ * <p>Line indices here are 0-based; line 0 always starts at offset 0.
+ */
+class LineIndex {
+    private int[] _starts;
+    private int _gapStart;
+    private int _gapEnd;
+
+    /* entries after _stepLine still have _stepLength to be added to them */
+    private int _stepLine;
+    private int _stepLength;
+
+    public LineIndex() {
+        this(16);
+    }
+
+    public LineIndex(int capacity) {
+        _starts = new int[Math.max(capacity, 2)];
+        _starts[0] = 0; // line 0 always starts at offset 0
+        _gapStart = 1;
+        _gapEnd = _starts.length;
+        _stepLine = 0;
+        _stepLength = 0;
+    }
+
+    public int getLineCount() {
+        return _starts.length - (_gapEnd - _gapStart);
+    }
+
+    /** Returns the offset of the first char of line. No bounds checking is done. */
+    public int getLineStart(int line) {
+        int start = get(line);
+        if (line > _stepLine) {
+            start += _stepLength;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the line that charOffset is on. Offsets past the last line start map onto the last
+     * line; negative offsets map onto line 0.
+     */
+    public int findLine(int charOffset) {
+        int lineCount = getLineCount();
+        if (lineCount <= 1 || charOffset <= 0) {
+            return 0;
+        }
+        if (charOffset >= getLineStart(lineCount - 1)) {
+            return lineCount - 1;
+        }
+
+        int low = 0;
+        int high = lineCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (getLineStart(middle) <= charOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Moves the start of every line after line by delta chars */
+    public void shiftLines(int line, int delta) {
+        if (delta == 0) {
+            return;
+        }
+
+        if (_stepLength != 0) {
+            if (line >= _stepLine) {
+                applyStep(line);
+                _stepLength += delta;
+            } else if (line >= _stepLine - getLineCount() / 10) {
+                // close enough behind the step to unapply a few entries
+                backStep(line);
+                _stepLength += delta;
+            } else {
+                applyStep(getLineCount() - 1);
+                _stepLine = line;
+                _stepLength = delta;
+            }
+        } else {
+            _stepLine = line;
+            _stepLength = delta;
+        }
+    }
+
+    /** Adds a new line at index line, starting at charOffset */
+    public void insertLine(int line, int charOffset) {
+        if (_stepLine < line) {
+            applyStep(line);
+        }
+        insertAt(line, charOffset);
+        _stepLine++;
+    }
+
+    /** Removes lines [fromLine, toLine) */
+    public void removeLines(int fromLine, int toLine) {
+        if (fromLine >= toLine) {
+            return;
+        }
+        if (toLine > _stepLine) {
+            applyStep(toLine);
+        }
+
+        moveGap(toLine);
+        _gapStart = fromLine;
+        _stepLine -= toLine - fromLine;
+        if (_stepLine < 0) {
+            _stepLine = 0;
+        }
+    }
+
+    /** Removes every line except line 0 */
+    public void clear() {
+        _gapStart = 1;
+        _gapEnd = _starts.length;
+        _stepLine = 0;
+        _stepLength = 0;
+    }
+
+    /* Adds _stepLength to entries (_stepLine, line] */
+    private void applyStep(int line) {
+        int lineCount = getLineCount();
+        if (line >= lineCount) {
+            line = lineCount - 1;
+        }
+        if (_stepLength != 0) {
+            add(_stepLine + 1, line + 1, _stepLength);
+        }
+        _stepLine = line;
+        if (_stepLine >= lineCount - 1) {
+            _stepLine = lineCount - 1;
+            _stepLength = 0;
+        }
+    }
+
+    /* Subtracts _stepLength from entries (line, _stepLine] */
+    private void backStep(int line) {
+        if (_stepLength != 0) {
+            add(line + 1, _stepLine + 1, -_stepLength);
+        }
+        _stepLine = line;
+    }
+
+    /* Adds delta to the stored entries [from, to) */
+    private void add(int from, int to, int delta) {
+        int i = from;
+        int beforeGap = Math.min(to, _gapStart);
+        for (; i < beforeGap; ++i) {
+            _starts[i] += delta;
+        }
+        int gapSize = _gapEnd - _gapStart;
+        for (; i < to; ++i) {
+            _starts[i + gapSize] += delta;
+        }
+    }
+
+    private int get(int line) {
+        if (line < _gapStart) {
+            return _starts[line];
+        }
+        return _starts[line + _gapEnd - _gapStart];
+    }
+
+    private void insertAt(int line, int value) {
+        if (_gapStart == _gapEnd) {
+            expand();
+        }
+        moveGap(line);
+        _starts[_gapStart++] = value;
+    }
+
+    /* Moves the gap so that it starts just before line */
+    private void moveGap(int line) {
+        if (line < _gapStart) {
+            int count = _gapStart - line;
+            System.arraycopy(_starts, line, _starts, _gapEnd - count, count);
+            _gapStart -= count;
+            _gapEnd -= count;
+        } else if (line > _gapStart) {
+            int count = line - _gapStart;
+            System.arraycopy(_starts, _gapEnd, _starts, _gapStart, count);
+            _gapStart += count;
+            _gapEnd += count;
+        }
+    }
+
+    private void expand() {
+        int[] temp = new int[_starts.length * 2 + 2];
+        int tail = _starts.length - _gapEnd;
+        System.arraycopy(_starts, 0, temp, 0, _gapStart);
+        System.arraycopy(_starts, _gapEnd, temp, temp.length - tail, tail);
+        _gapEnd = temp.length - tail;
+        _starts = temp;
+    }
+}
@@ -0,0 +1,529 @@
+package modder.hub.editor.buffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A read-only TextBuffer over a file that is too big for the heap. The file is mapped with
+ * FileChannel.map() a window at a time and only the chars that are asked for are decoded, so
+ * showing a page of a multi-gigabyte file reads just that page.
+ *
+ * <p>Every byte is one char: the text is decoded with a single-byte charset. For ASCII-compatible
+ * multi-byte charsets such as UTF-8 the ASCII bytes are right and the others are shown as Latin-1.
+ * Char offsets are ints, so only the first Integer.MAX_VALUE bytes of a larger file are shown; see
+ * isTruncated().
+ *
+ * <p>Line starts are found by a background thread that keeps the offset of every LINE_SAMPLE_STEP
+ * th line only; the lines in between are found by scanning from the sample before them. Until the
+ * thread is done getLineCount() is the number of lines found so far and grows, which an
+ * IndexListener is told about. Edits throw UnsupportedOperationException and there is no undo.
+ */
+public class MappedTextBuffer extends AbstractTextBuffer implements Closeable {
+
+    /** Told about the progress of the line index */
+    public interface IndexListener {
+        /**
+         * Called from the indexing thread whenever more lines were found, and once more with
+         * finished set when the whole file was indexed
+         */
+        void onIndexProgress(MappedTextBuffer buffer, int lineCount, boolean finished);
+    }
+
+    /* the offset of every LINE_SAMPLE_STEP th line start is kept */
+    static final int LINE_SAMPLE_STEP = 128;
+
+    private static final int WINDOW_SHIFT = 26;
+    private static final int WINDOW_SIZE = 1 << WINDOW_SHIFT;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+    // mapped windows kept referenced; the others are unmapped once collected
+    private static final int MAX_MAPPED_WINDOWS = 4;
+
+    // longest run getSegment() decodes at a time
+    private static final int SEGMENT_SIZE = 8192;
+    private static final int INDEX_CHUNK_SIZE = 1024 * 1024;
+    // line starts kept around the page shown last
+    private static final int PAGE_CACHE_LINES = 512;
+    // least time between two progress reports
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private final File _file;
+    private final FileChannel _channel;
+    // file position of char 0, after a byte order mark
+    private final long _base;
+    private final int _length;
+    private final boolean _truncated;
+    private final char[] _decodeTable;
+
+    private final Window[] _windows;
+    private final int[] _mappedOrder = new int[MAX_MAPPED_WINDOWS];
+    private int _mappedCount;
+    // the window read last, checked before taking the lock
+    private volatile Window _lastWindow;
+
+    // guarded by this
+    private int[] _samples = new int[1024];
+    private int _sampleCount = 1;
+    private int _lineCount = 1;
+    private boolean _indexed;
+    // _pageOffsets[i] is the start of line _pageLine + i
+    private final int[] _pageOffsets = new int[PAGE_CACHE_LINES];
+    private int _pageLine = 1;
+    private int _pageCount;
+
+    private volatile IndexListener _indexListener;
+    private volatile boolean _closed;
+    private Thread _indexer;
+
+    private static final class Window {
+        final int index;
+        final ByteBuffer bytes;
+
+        Window(int index, ByteBuffer bytes) {
+            this.index = index;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Opens file for reading with charset. The line index is built once startIndexing() is called.
+     */
+    public MappedTextBuffer(File file, Charset charset) throws IOException {
+        _file = file;
+        _channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            long size = _channel.size();
+            _base = hasUtf8ByteOrderMark(_channel, size) ? 3 : 0;
+            _truncated = size - _base > Integer.MAX_VALUE;
+            _length = (int) Math.min(size - _base, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            _channel.close();
+            throw e;
+        }
+        _windows = new Window[(int) ((_base + _length + WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+        _decodeTable = decodeTable(charset);
+        _readOnly = true;
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    /** Returns true if the file is longer than the text this buffer can show */
+    public boolean isTruncated() {
+        return _truncated;
+    }
+
+    public void setIndexListener(IndexListener listener) {
+        _indexListener = listener;
+    }
+
+    /** Starts building the line index in a background thread. Does nothing the second time. */
+    public synchronized void startIndexing() {
+        if (_indexer != null || _closed) {
+            return;
+        }
+        _indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buildIndex();
+                } catch (IOException e) {
+                    // closed while indexing, or the file became unreadable; keep what was found
+                }
+            }
+        }, "MappedTextBuffer");
+        _indexer.setDaemon(true);
+        _indexer.start();
+    }
+
+    /** Returns true once every line of the file is known */
+    public synchronized boolean isIndexed() {
+        return _indexed;
+    }
+
+    /** Stops the indexing thread and closes the file */
+    @Override
+    public void close() {
+        super.close();
+        _closed = true;
+        Thread indexer;
+        synchronized (this) {
+            indexer = _indexer;
+        }
+        if (indexer != null) {
+            indexer.interrupt();
+        }
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    /* Reads the file front to back and keeps the start of every LINE_SAMPLE_STEP th line */
+    private void buildIndex() throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(INDEX_CHUNK_SIZE);
+        byte[] bytes = chunk.array();
+        int[] found = new int[64];
+        int line = 1;
+        long lastReport = 0;
+        int position = 0;
+        while (position < _length && !_closed) {
+            chunk.clear();
+            chunk.limit((int) Math.min(INDEX_CHUNK_SIZE, (long) _length - position));
+            int count = _channel.read(chunk, _base + position);
+            if (count < 0) {
+                break;
+            }
+
+            int foundCount = 0;
+            for (int i = 0; i < count; ++i) {
+                if (bytes[i] == '\n' && ++line % LINE_SAMPLE_STEP == 1) {
+                    if (foundCount == found.length) {
+                        found = Arrays.copyOf(found, foundCount * 2);
+                    }
+                    found[foundCount++] = position + i + 1;
+                }
+            }
+            position += count;
+
+            synchronized (this) {
+                if (_sampleCount + foundCount > _samples.length) {
+                    _samples = Arrays.copyOf(_samples,
+                            Math.max(_samples.length * 2, _sampleCount + foundCount));
+                }
+                System.arraycopy(found, 0, _samples, _sampleCount, foundCount);
+                _sampleCount += foundCount;
+                _lineCount = line;
+                _indexed = position >= _length;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= PROGRESS_INTERVAL && position < _length) {
+                lastReport = now;
+                reportProgress(line, false);
+            }
+        }
+        if (position >= _length) {
+            synchronized (this) {
+                _indexed = true;
+                _samples = Arrays.copyOf(_samples, _sampleCount);
+            }
+            reportProgress(line, true);
+        }
+    }
+
+    private void reportProgress(int lineCount, boolean finished) {
+        IndexListener listener = _indexListener;
+        if (listener != null) {
+            listener.onIndexProgress(this, lineCount, finished);
+        }
+    }
+
+    @Override
+    public int length() {
+        return _length;
+    }
+
+    @Override
+    public synchronized int getLineCount() {
+        return _lineCount;
+    }
+
+    @Override
+    public String getLine(int lineNumber) {
+        int start = getLineOffset(lineNumber);
+        return substring(start, start + getLineLength(lineNumber));
+    }
+
+    /**
+     * Copies the chars of a line from column on into dest, as many as fit, and returns how many
+     * were copied; fewer than dest.length means the line ends there. Only the copied chars are
+     * scanned and decoded, so a part of a line hundreds of megabytes long is as cheap as a short
+     * line. column must not be past the end of the line.
+     */
+    public int getLineChars(int lineNumber, int column, char[] dest) {
+        int start = Math.min(getLineOffset(lineNumber) + column, _length);
+        int end = indexOfNewline(start, start + Math.min(dest.length, _length - start));
+        getChars(start, end, dest, 0);
+        return end - start;
+    }
+
+    @Override
+    public synchronized int getLineOffset(int lineNumber) {
+        if (lineNumber <= 0 || lineNumber > _lineCount) {
+            throw new IllegalArgumentException("line index is invalid");
+        }
+        if (lineNumber >= _pageLine && lineNumber < _pageLine + _pageCount) {
+            return _pageOffsets[lineNumber - _pageLine];
+        }
+        int sample = (lineNumber - 1) / LINE_SAMPLE_STEP;
+        int line = sample * LINE_SAMPLE_STEP + 1;
+        int offset = _samples[sample];
+        int last = _pageLine + _pageCount - 1;
+        if (_pageCount > 0 && lineNumber > last && last >= line) {
+            // drawing asks for the lines of a page in order, continue from the last one
+            line = last;
+            offset = _pageOffsets[_pageCount - 1];
+        } else {
+            _pageLine = line;
+            _pageOffsets[0] = offset;
+            _pageCount = 1;
+        }
+        // every line start on the way is kept, a long line is not scanned again on the next frame
+        while (line < lineNumber) {
+            offset = indexOfNewline(offset, _length) + 1;
+            ++line;
+            if (_pageCount == PAGE_CACHE_LINES) {
+                int half = PAGE_CACHE_LINES / 2;
+                System.arraycopy(_pageOffsets, half, _pageOffsets, 0, half);
+                _pageLine += half;
+                _pageCount = half;
+            }
+            _pageOffsets[_pageCount++] = offset;
+        }
+        return offset;
+    }
+
+    @Override
+    public synchronized int findLineNumber(int charOffset) {
+        if (charOffset <= 0) return 1;
+        if (charOffset >= _length) return _lineCount;
+
+        int sample = Arrays.binarySearch(_samples, 0, _sampleCount, charOffset);
+        if (sample < 0) {
+            sample = -sample - 2;
+        }
+        int line = sample * LINE_SAMPLE_STEP + 1;
+        int offset = _samples[sample];
+        while (line < _lineCount) {
+            offset = indexOfNewline(offset, charOffset);
+            if (offset >= charOffset) {
+                break;
+            }
+            ++offset;
+            ++line;
+        }
+        return line;
+    }
+
+    @Override
+    public synchronized int getLineLength(int lineNumber) {
+        int start = getLineOffset(lineNumber);
+        if (lineNumber < _lineCount) {
+            // the next start is found by the same scan and stays cached
+            return getLineOffset(lineNumber + 1) - 1 - start;
+        }
+        return indexOfNewline(start, _length) - start;
+    }
+
+    /* Returns the offset of the first '\n' in [from, to), or to if there is none */
+    private int indexOfNewline(int from, int to) {
+        int offset = from;
+        while (offset < to) {
+            ByteBuffer bytes = window(offset);
+            long position = _base + offset;
+            int index = (int) (position & WINDOW_MASK);
+            int end = index + Math.min(to - offset, WINDOW_SIZE - index);
+            for (int i = index; i < end; ++i) {
+                if (bytes.get(i) == '\n') {
+                    return offset + i - index;
+                }
+            }
+            offset += end - index;
+        }
+        return to;
+    }
+
+    @Override
+    public char charAt(int charOffset) {
+        if (charOffset < 0 || charOffset >= _length) {
+            return '\0';
+        }
+        long position = _base + charOffset;
+        return _decodeTable[window(charOffset).get((int) (position & WINDOW_MASK)) & 0xFF];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        if (start < 0) start = 0;
+        if (end > _length) end = _length;
+        if (start >= end) return "";
+
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destOffset) {
+        if (start < 0 || end > _length || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end);
+        }
+        if (destOffset < 0 || destOffset + (end - start) > dest.length) {
+            throw new IndexOutOfBoundsException("destination " + destOffset);
+        }
+        char[] table = _decodeTable;
+        while (start < end) {
+            ByteBuffer bytes = window(start);
+            int index = (int) ((_base + start) & WINDOW_MASK);
+            int count = Math.min(end - start, WINDOW_SIZE - index);
+            for (int i = 0; i < count; ++i) {
+                dest[destOffset + i] = table[bytes.get(index + i) & 0xFF];
+            }
+            start += count;
+            destOffset += count;
+        }
+    }
+
+    @Override
+    public boolean getSegment(int charOffset, TextSegment segment) {
+        if (charOffset < 0 || charOffset >= _length) {
+            return false;
+        }
+        // the file has no chars to hand out; decode a page into the segment's own array
+        int index = (int) ((_base + charOffset) & WINDOW_MASK);
+        int count = Math.min(Math.min(_length - charOffset, WINDOW_SIZE - index), SEGMENT_SIZE);
+        char[] chars = segment.scratch(count);
+        getChars(charOffset, charOffset + count, chars, 0);
+        segment.set(chars, 0, count, charOffset);
+        return true;
+    }
+
+    /* Returns the mapped window holding char charOffset */
+    private ByteBuffer window(int charOffset) {
+        int index = (int) ((_base + charOffset) >>> WINDOW_SHIFT);
+        Window window = _lastWindow;
+        if (window != null && window.index == index) {
+            return window.bytes;
+        }
+        window = mapWindow(index);
+        _lastWindow = window;
+        return window.bytes;
+    }
+
+    private synchronized Window mapWindow(int index) {
+        Window window = _windows[index];
+        if (window != null) {
+            return window;
+        }
+
+        long position = (long) index << WINDOW_SHIFT;
+        long size = Math.min(WINDOW_SIZE, _base + _length - position);
+        try {
+            window = new Window(index, _channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot map " + _file, e);
+        }
+
+        // forget the oldest window so a long scroll does not keep the whole file mapped
+        if (_mappedCount == MAX_MAPPED_WINDOWS) {
+            _windows[_mappedOrder[0]] = null;
+            System.arraycopy(_mappedOrder, 1, _mappedOrder, 0, MAX_MAPPED_WINDOWS - 1);
+            --_mappedCount;
+        }
+        _mappedOrder[_mappedCount++] = index;
+        _windows[index] = window;
+        return window;
+    }
+
+    private static boolean hasUtf8ByteOrderMark(FileChannel channel, long size)
+            throws IOException {
+        if (size < 3) {
+            return false;
+        }
+        ByteBuffer head = ByteBuffer.allocate(3);
+        while (head.hasRemaining()) {
+            if (channel.read(head, head.position()) < 0) {
+                return false;
+            }
+        }
+        return head.get(0) == (byte) 0xEF && head.get(1) == (byte) 0xBB
+                && head.get(2) == (byte) 0xBF;
+    }
+
+    /* The char of every byte value; bytes that are no char of charset on their own are Latin-1 */
+    private static char[] decodeTable(Charset charset) {
+        char[] table = new char[256];
+        byte[] single = new byte[1];
+        boolean singleByte;
+        try {
+            singleByte = charset.newEncoder().maxBytesPerChar() == 1;
+        } catch (UnsupportedOperationException e) {
+            singleByte = false;
+        }
+        for (int b = 0; b < table.length; ++b) {
+            table[b] = (char) b;
+            if (b >= 0x80 && singleByte) {
+                single[0] = (byte) b;
+                String decoded = new String(single, charset);
+                if (decoded.length() == 1) {
+                    table[b] = decoded.charAt(0);
+                }
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public TextBuffer snapshot() {
+        // the text never changes
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, _length);
+    }
+
+    @Override
+    protected String getDeletedText(int start, int end) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+
+    @Override
+    public TextBuffer insert(int offset, String str, boolean capture) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+
+    @Override
+    public TextBuffer insert(int offset, String str, boolean capture, long timestamp) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+
+    @Override
+    public TextBuffer append(String str) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+
+    @Override
+    public TextBuffer append(String str, boolean capture) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+
+    @Override
+    public TextBuffer delete(int start, int end, boolean capture) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+
+    @Override
+    public TextBuffer delete(int start, int end, boolean capture, long timestamp) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+
+    @Override
+    public TextBuffer replace(int start, int end, String str, boolean capture) {
+        throw new UnsupportedOperationException("MappedTextBuffer is read-only");
+    }
+}
@@ -0,0 +1,624 @@
+package modder.hub.editor.buffer;
+
+import java.util.Random;
+
+/**
+ * PieceTable is a threadsafe TextBuffer that never moves text around. The text is described by a
+ * sequence of pieces, each pointing at a range of one of two buffers:
+ *
+ * <p>_original holds the text the table was created with and is never modified, so opening a file
+ * does not copy it. _add is append-only and receives every inserted string. Deleting only drops
+ * pieces, the chars stay where they are.
+ *
+ * <p>Pieces are kept in a treap ordered by text position. Every node caches the char and newline
+ * count of its subtree, so edits anywhere in the document and offset/line lookups cost O(log
+ * pieces) no matter how far apart consecutive edits are.
+ *
+ * <p>Snapshots share the tree. Taking one bumps _epoch, which freezes every existing node: edits
+ * copy a frozen node before changing it (see own()), so an edit after a snapshot copies only the
+ * O(log pieces) nodes it touches. _original and the used part of _add never change anyway.
+ */
+public class PieceTable extends AbstractTextBuffer {
+
+    private final char[] _original;
+    /* positions of every '\n' in _original, ascending */
+    private final int[] _originalNewlines;
+
+    private char[] _add;
+    private int _addLength;
+    /* positions of every '\n' in _add, ascending */
+    private int[] _addNewlines;
+    private int _addNewlineCount;
+
+    private Node _root;
+    private final Random _random = new Random();
+    /* nodes from an older epoch may be seen by a snapshot */
+    private int _epoch;
+
+    // charAt() reads mostly sequentially; remember the piece of the last lookup
+    private Node _hintNode;
+    private int _hintStart;
+
+    // pieces removed by the latest captured delete, see getDeletedText()
+    private Node _lastDeleted;
+    private int _lastDeletedStart = -1;
+
+    // results of split()
+    private Node _splitLeft;
+    private Node _splitRight;
+
+    private final int NEWLINE = '\n';
+
+    public PieceTable() {
+        this(new char[0]);
+    }
+
+    public PieceTable(String buffer) {
+        this(buffer.toCharArray());
+    }
+
+    /** Uses buffer as the original text. The array is not copied and must not be modified. */
+    public PieceTable(char[] buffer) {
+        _original = buffer;
+        _originalNewlines = findNewlines(buffer);
+        _add = new char[16];
+        _addNewlines = new int[16];
+
+        if (buffer.length > 0) {
+            _root = newNode(false, 0, buffer.length);
+        }
+    }
+
+    /* Creates a read-only snapshot of source */
+    private PieceTable(PieceTable source) {
+        _original = source._original;
+        _originalNewlines = source._originalNewlines;
+        _add = source._add;
+        _addLength = source._addLength;
+        _addNewlines = source._addNewlines;
+        _addNewlineCount = source._addNewlineCount;
+        _root = source._root;
+        _version = source._version;
+        _readOnly = true;
+    }
+
+    /** Takes O(1) time */
+    public synchronized PieceTable snapshot() {
+        if (_readOnly) {
+            return this;
+        }
+        ++_epoch;
+        return new PieceTable(this);
+    }
+
+    /**
+     * Returns a string of text corresponding to the line with index lineNumber.
+     *
+     * @param lineNumber The index of the line of interest
+     * @return The text on lineNumber, or an empty string if the line does not exist
+     */
+    public synchronized String getLine(int lineNumber) {
+        int startIndex = getLineOffset(lineNumber);
+        int length = getLineLength(lineNumber);
+
+        return substring(startIndex, startIndex + length);
+    }
+
+    /**
+     * Get the offset of the first character of the line with index lineNumber. The offset is
+     * counted from the beginning of the text.
+     */
+    public synchronized int getLineOffset(int lineNumber) {
+        if (lineNumber <= 0 || lineNumber > getLineCount()) {
+            throw new IllegalArgumentException("line index is invalid");
+        }
+        if (lineNumber == 1) {
+            return 0;
+        }
+        // the line starts right after the (lineNumber - 1)th newline
+        return findNewline(lineNumber - 1) + 1;
+    }
+
+    /** Get the line number that charOffset is on */
+    public synchronized int findLineNumber(int charOffset) {
+        if (charOffset < 0) return 1;
+        if (charOffset >= length()) return getLineCount();
+
+        int line = 1;
+        int offset = charOffset;
+        Node node = _root;
+        while (node != null) {
+            int leftLength = length(node._left);
+            if (offset < leftLength) {
+                node = node._left;
+            } else if (offset < leftLength + node._length) {
+                offset -= leftLength;
+                line += newlines(node._left)
+                        + countNewlines(node._isAdd, node._start, node._start + offset);
+                break;
+            } else {
+                line += newlines(node._left) + node._newlines;
+                offset -= leftLength + node._length;
+                node = node._right;
+            }
+        }
+        return line;
+    }
+
+    /** Finds the number of chars on the specified line, not counting the trailing newline */
+    public synchronized int getLineLength(int lineNumber) {
+        int start = getLineOffset(lineNumber);
+        if (lineNumber == getLineCount()) {
+            return length() - start;
+        }
+        return findNewline(lineNumber) - start;
+    }
+
+    public synchronized int getLineCount() {
+        return newlines(_root) + 1;
+    }
+
+    @Override
+    public synchronized int length() {
+        return length(_root);
+    }
+
+    @Override
+    public synchronized char charAt(int charOffset) {
+        if (charOffset < 0 || charOffset >= length()) {
+            return '\0'; // Return null character for invalid indices
+        }
+
+        Node hint = _hintNode;
+        if (hint == null || charOffset < _hintStart || charOffset >= _hintStart + hint._length) {
+            int offset = charOffset;
+            int nodeStart = 0;
+            hint = _root;
+            while (true) {
+                int leftLength = length(hint._left);
+                if (offset < leftLength) {
+                    hint = hint._left;
+                } else if (offset < leftLength + hint._length) {
+                    nodeStart += leftLength;
+                    break;
+                } else {
+                    offset -= leftLength + hint._length;
+                    nodeStart += leftLength + hint._length;
+                    hint = hint._right;
+                }
+            }
+            _hintNode = hint;
+            _hintStart = nodeStart;
+        }
+        return bufferOf(hint)[hint._start + charOffset - _hintStart];
+    }
+
+    @Override
+    public synchronized CharSequence subSequence(int start, int end) {
+        if (start < 0) start = 0;
+        if (end > length()) end = length();
+        if (start >= end) return "";
+
+        char[] chars = new char[end - start];
+        copyChars(_root, 0, start, end, chars, 0);
+        return new String(chars);
+    }
+
+    public synchronized String substring(int start, int end) {
+        if (start < 0) start = 0;
+        if (end > length()) end = length();
+        if (start >= end) return "";
+        return subSequence(start, end).toString();
+    }
+
+    public synchronized void getChars(int start, int end, char[] dest, int destOffset) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end);
+        }
+        copyChars(_root, 0, start, end, dest, destOffset);
+    }
+
+    public synchronized boolean getSegment(int charOffset, TextSegment segment) {
+        if (charOffset < 0 || charOffset >= length()) {
+            return false;
+        }
+
+        int offset = charOffset;
+        Node node = _root;
+        while (true) {
+            int leftLength = length(node._left);
+            if (offset < leftLength) {
+                node = node._left;
+            } else if (offset < leftLength + node._length) {
+                offset -= leftLength;
+                break;
+            } else {
+                offset -= leftLength + node._length;
+                node = node._right;
+            }
+        }
+        segment.set(bufferOf(node), node._start + offset, node._length - offset, charOffset);
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return substring(0, length());
+    }
+
+    public synchronized PieceTable insert(int offset, String str, boolean capture) {
+        return insert(offset, str, capture, System.nanoTime());
+    }
+
+    public synchronized PieceTable insert(int offset, String str,
+            boolean capture, long timestamp) {
+        beginChange(offset, 0);
+        int length = str.length();
+        if (capture && length > 0) {
+            _undoStack.captureInsert(offset, offset + length, timestamp);
+        }
+        if (length == 0) {
+            return this;
+        }
+
+        int addStart = appendToAdd(str);
+        int newlines = countNewlines(true, addStart, addStart + length);
+        _hintNode = null;
+
+        split(_root, offset);
+        Node left = _splitLeft;
+        Node right = _splitRight;
+        // typing right after the previous insertion just grows its piece
+        if (endsWithAdd(left, addStart)) {
+            left = extendLastPiece(left, length, newlines);
+        } else {
+            left = merge(left, newNode(true, addStart, length));
+        }
+        _root = merge(left, right);
+        endChange(length);
+        return this;
+    }
+
+    public synchronized PieceTable append(String str, boolean capture) {
+        insert(length(), str, capture);
+        return this;
+    }
+
+    public synchronized PieceTable append(String str) {
+        insert(length(), str, false);
+        return this;
+    }
+
+    public synchronized PieceTable delete(int start, int end, boolean capture) {
+        return delete(start, end, capture, System.nanoTime());
+    }
+
+    public synchronized PieceTable delete(int start, int end,
+            boolean capture, long timestamp) {
+        beginChange(start, end - start);
+        if (capture && start < end) {
+            _undoStack.captureDelete(start, end, timestamp);
+        }
+        if (start >= end) {
+            return this;
+        }
+        _hintNode = null;
+
+        split(_root, start);
+        Node left = _splitLeft;
+        split(_splitRight, end - start);
+        Node removed = _splitLeft;
+        Node right = _splitRight;
+
+        if (capture) {
+            rememberDeleted(start, end, removed);
+        }
+        _root = merge(left, right);
+        endChange(0);
+        return this;
+    }
+
+    public synchronized PieceTable replace(int start, int end, String str, boolean capture) {
+        beginChangeGroup();
+        delete(start, end, capture);
+        insert(start, str, capture);
+        endChangeGroup();
+        return this;
+    }
+
+    /**
+     * Removed pieces are kept until the undo stack asks for their text. Backspacing prepends to
+     * the previous deletion, so the newest chars are always at the front.
+     */
+    private void rememberDeleted(int start, int end, Node removed) {
+        if (_lastDeleted != null && end == _lastDeletedStart) {
+            _lastDeleted = merge(removed, _lastDeleted);
+        } else {
+            _lastDeleted = removed;
+        }
+        _lastDeletedStart = start;
+
+        // the undo stack never asks for more than one action can hold
+        if (length(_lastDeleted) > UndoStack.MAX_UNDO_SIZE) {
+            split(_lastDeleted, UndoStack.MAX_UNDO_SIZE);
+            _lastDeleted = _splitLeft;
+        }
+    }
+
+    @Override
+    protected synchronized String getDeletedText(int start, int end) {
+        char[] chars = new char[end - start];
+        copyChars(_lastDeleted, 0, 0, chars.length, chars, 0);
+        return new String(chars);
+    }
+
+    /** Returns the offset of the count-th newline (1-based), or -1 if there are fewer */
+    private int findNewline(int count) {
+        int base = 0;
+        Node node = _root;
+        while (node != null) {
+            int leftNewlines = newlines(node._left);
+            if (count <= leftNewlines) {
+                node = node._left;
+                continue;
+            }
+
+            count -= leftNewlines;
+            base += length(node._left);
+            if (count <= node._newlines) {
+                int[] positions = node._isAdd ? _addNewlines : _originalNewlines;
+                int size = node._isAdd ? _addNewlineCount : _originalNewlines.length;
+                int first = lowerBound(positions, size, node._start);
+                return base + positions[first + count - 1] - node._start;
+            }
+            count -= node._newlines;
+            base += node._length;
+            node = node._right;
+        }
+        return -1;
+    }
+
+    /* Copies the chars [start, end) of the subtree into dest, where nodeStart is its offset */
+    private void copyChars(Node node, int nodeStart, int start, int end,
+            char[] dest, int destOffset) {
+        if (node == null) {
+            return;
+        }
+
+        int pieceStart = nodeStart + length(node._left);
+        int pieceEnd = pieceStart + node._length;
+        if (start < pieceStart) {
+            copyChars(node._left, nodeStart, start, end, dest, destOffset);
+        }
+
+        int from = Math.max(start, pieceStart);
+        int to = Math.min(end, pieceEnd);
+        if (from < to) {
+            System.arraycopy(bufferOf(node), node._start + from - pieceStart,
+                    dest, destOffset + from - start, to - from);
+        }
+
+        if (end > pieceEnd) {
+            copyChars(node._right, pieceEnd, start, end, dest, destOffset);
+        }
+    }
+
+    /* Returns true if the last piece of tree ends right where addStart begins in _add */
+    private boolean endsWithAdd(Node tree, int addStart) {
+        if (tree == null) {
+            return false;
+        }
+
+        Node last = tree;
+        while (last._right != null) {
+            last = last._right;
+        }
+        return last._isAdd && last._start + last._length == addStart;
+    }
+
+    /* Grows the last piece of tree by length chars and returns the updated tree */
+    private Node extendLastPiece(Node tree, int length, int newlines) {
+        tree = own(tree);
+        if (tree._right != null) {
+            tree._right = extendLastPiece(tree._right, length, newlines);
+        } else {
+            tree._length += length;
+            tree._newlines += newlines;
+        }
+        tree._totalLength += length;
+        tree._totalNewlines += newlines;
+        return tree;
+    }
+
+    /** Appends str to _add and returns the position it was written at */
+    private int appendToAdd(String str) {
+        int length = str.length();
+        if (_addLength + length > _add.length) {
+            char[] temp = new char[Math.max(_addLength + length, _add.length * 2 + 2)];
+            System.arraycopy(_add, 0, temp, 0, _addLength);
+            _add = temp;
+        }
+
+        int start = _addLength;
+        str.getChars(0, length, _add, start);
+        _addLength += length;
+
+        for (int i = start; i < _addLength; ++i) {
+            if (_add[i] == NEWLINE) {
+                if (_addNewlineCount == _addNewlines.length) {
+                    int[] temp = new int[_addNewlines.length * 2 + 2];
+                    System.arraycopy(_addNewlines, 0, temp, 0, _addNewlineCount);
+                    _addNewlines = temp;
+                }
+                _addNewlines[_addNewlineCount++] = i;
+            }
+        }
+        return start;
+    }
+
+    /** Splits tree into the first k chars (_splitLeft) and the rest (_splitRight) */
+    private void split(Node tree, int k) {
+        if (tree == null) {
+            _splitLeft = null;
+            _splitRight = null;
+            return;
+        }
+
+        int leftLength = length(tree._left);
+        tree = own(tree);
+        if (k <= leftLength) {
+            split(tree._left, k);
+            tree._left = _splitRight;
+            update(tree);
+            _splitRight = tree;
+        } else if (k >= leftLength + tree._length) {
+            split(tree._right, k - leftLength - tree._length);
+            tree._right = _splitLeft;
+            update(tree);
+            _splitLeft = tree;
+        } else {
+            // k falls inside this piece: cut it in two. The tail takes over the right subtree
+            // and inherits the priority so the heap order still holds.
+            int cut = k - leftLength;
+            Node tail = new Node(tree._isAdd, tree._start + cut, tree._length - cut,
+                    countNewlines(tree._isAdd, tree._start + cut, tree._start + tree._length),
+                    tree._priority, _epoch);
+            tail._right = tree._right;
+            update(tail);
+
+            tree._length = cut;
+            tree._newlines -= tail._newlines;
+            tree._right = null;
+            update(tree);
+
+            _splitLeft = tree;
+            _splitRight = tail;
+        }
+    }
+
+    private Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+
+        if (left._priority > right._priority) {
+            left = own(left);
+            left._right = merge(left._right, right);
+            update(left);
+            return left;
+        } else {
+            right = own(right);
+            right._left = merge(left, right._left);
+            update(right);
+            return right;
+        }
+    }
+
+    private Node newNode(boolean isAdd, int start, int length) {
+        return new Node(isAdd, start, length,
+                countNewlines(isAdd, start, start + length), _random.nextInt(), _epoch);
+    }
+
+    /* Returns node itself if it may be modified, otherwise a modifiable copy */
+    private Node own(Node node) {
+        if (node._epoch == _epoch) {
+            return node;
+        }
+
+        Node copy = new Node(node._isAdd, node._start, node._length, node._newlines,
+                node._priority, _epoch);
+        copy._left = node._left;
+        copy._right = node._right;
+        copy._totalLength = node._totalLength;
+        copy._totalNewlines = node._totalNewlines;
+        return copy;
+    }
+
+    private int countNewlines(boolean isAdd, int start, int end) {
+        int[] positions = isAdd ? _addNewlines : _originalNewlines;
+        int size = isAdd ? _addNewlineCount : _originalNewlines.length;
+        return lowerBound(positions, size, end) - lowerBound(positions, size, start);
+    }
+
+    private char[] bufferOf(Node node) {
+        return node._isAdd ? _add : _original;
+    }
+
+    private static int[] findNewlines(char[] text) {
+        int count = 0;
+        for (char c : text) {
+            if (c == '\n') {
+                ++count;
+            }
+        }
+
+        int[] positions = new int[count];
+        int i = 0;
+        for (int pos = 0; pos < text.length; ++pos) {
+            if (text[pos] == '\n') {
+                positions[i++] = pos;
+            }
+        }
+        return positions;
+    }
+
+    /* Returns the index of the first element of sorted[0, size) that is >= value */
+    private static int lowerBound(int[] sorted, int size, int value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int length(Node node) {
+        return node == null ? 0 : node._totalLength;
+    }
+
+    private static int newlines(Node node) {
+        return node == null ? 0 : node._totalNewlines;
+    }
+
+    private static void update(Node node) {
+        node._totalLength = length(node._left) + node._length + length(node._right);
+        node._totalNewlines = newlines(node._left) + node._newlines + newlines(node._right);
+    }
+
+    private static final class Node {
+        /* which buffer the piece points into */
+        final boolean _isAdd;
+        final int _start;
+        int _length;
+        /* number of '\n' inside the piece */
+        int _newlines;
+        final int _priority;
+        /* the PieceTable._epoch this node was created in */
+        final int _epoch;
+
+        Node _left;
+        Node _right;
+        /* cached sums over the subtree rooted here */
+        int _totalLength;
+        int _totalNewlines;
+
+        Node(boolean isAdd, int start, int length, int newlines, int priority, int epoch) {
+            _isAdd = isAdd;
+            _start = start;
+            _length = length;
+            _newlines = newlines;
+            _priority = priority;
+            _epoch = epoch;
+            _totalLength = length;
+            _totalNewlines = newlines;
+        }
+    }
+}
@@ -0,0 +1,679 @@
+package modder.hub.editor.buffer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * RopeBuffer is a threadsafe TextBuffer for very large documents. The text is cut into leaves of
+ * at most MAX_LEAF chars which are kept in a balanced tree (a treap ordered by text position).
+ * Every node caches the char and newline count of its subtree.
+ *
+ * <p>Unlike GapBuffer there is no single array that has to be doubled and copied as the text
+ * grows: an edit only touches one leaf plus the O(log n) nodes above it, and loading from a Reader
+ * never holds more than one leaf of text outside the tree.
+ *
+ * <p>Snapshots share the tree. Taking one bumps _epoch, which freezes every existing node: edits
+ * copy a frozen node before changing it (see own()), and a copied leaf gets its own char array
+ * before it is written to. An edit after a snapshot therefore copies O(log n) nodes and at most a
+ * leaf or two of text.
+ */
+public class RopeBuffer extends AbstractTextBuffer {
+
+    /* leaves never hold more than this many chars */
+    private static final int MAX_LEAF = 4096;
+    /* leaves built from new text are filled up to here, leaving room for typing */
+    static final int LOAD_LEAF = 3072;
+
+    private Node _root;
+    private final Random _random = new Random();
+    /* nodes from an older epoch may be seen by a snapshot */
+    private int _epoch;
+
+    // charAt() reads mostly sequentially; remember the leaf of the last lookup
+    private Node _hintNode;
+    private int _hintStart;
+
+    // nodes visited by the last in-leaf edit, their totals need updating
+    private Node[] _path = new Node[64];
+
+    // text removed by recent captured deletes, newest last; see getDeletedText()
+    private final ArrayDeque<String> _deleted = new ArrayDeque<>();
+    private int _deletedLength;
+    private int _lastDeletedStart = -1;
+
+    // results of split()
+    private Node _splitLeft;
+    private Node _splitRight;
+
+    private static final char NEWLINE = '\n';
+
+    public RopeBuffer() {
+    }
+
+    public RopeBuffer(String buffer) {
+        _root = buildTree(buffer);
+    }
+
+    /** Reads the whole text from reader. The reader is not closed. */
+    public RopeBuffer(Reader reader) throws IOException {
+        while (true) {
+            char[] chars = new char[LOAD_LEAF];
+            int count = 0;
+            int read;
+            while (count < LOAD_LEAF && (read = reader.read(chars, count, LOAD_LEAF - count)) > 0) {
+                count += read;
+            }
+            if (count == 0) {
+                break;
+            }
+            if (count < LOAD_LEAF) {
+                chars = Arrays.copyOf(chars, count);
+            }
+            appendLeaf(chars, count);
+            if (count < LOAD_LEAF) {
+                break;
+            }
+        }
+    }
+
+    /* Creates a read-only snapshot of source */
+    private RopeBuffer(RopeBuffer source) {
+        _root = source._root;
+        _version = source._version;
+        _readOnly = true;
+    }
+
+    /** Takes O(1) time */
+    public synchronized RopeBuffer snapshot() {
+        if (_readOnly) {
+            return this;
+        }
+        ++_epoch;
+        return new RopeBuffer(this);
+    }
+
+    /**
+     * Returns a string of text corresponding to the line with index lineNumber.
+     *
+     * @param lineNumber The index of the line of interest
+     * @return The text on lineNumber, or an empty string if the line does not exist
+     */
+    public synchronized String getLine(int lineNumber) {
+        int startIndex = getLineOffset(lineNumber);
+        // one more descent for the end instead of two through getLineLength()
+        int endIndex = lineNumber == getLineCount() ? length() : findNewline(lineNumber);
+
+        return substring(startIndex, endIndex);
+    }
+
+    /**
+     * Get the offset of the first character of the line with index lineNumber. The offset is
+     * counted from the beginning of the text.
+     */
+    public synchronized int getLineOffset(int lineNumber) {
+        if (lineNumber <= 0 || lineNumber > getLineCount()) {
+            throw new IllegalArgumentException("line index is invalid");
+        }
+        if (lineNumber == 1) {
+            return 0;
+        }
+        // the line starts right after the (lineNumber - 1)th newline
+        return findNewline(lineNumber - 1) + 1;
+    }
+
+    /** Get the line number that charOffset is on */
+    public synchronized int findLineNumber(int charOffset) {
+        if (charOffset < 0) return 1;
+        if (charOffset >= length()) return getLineCount();
+
+        int line = 1;
+        int offset = charOffset;
+        Node node = _root;
+        while (node != null) {
+            int leftLength = length(node._left);
+            if (offset < leftLength) {
+                node = node._left;
+            } else if (offset < leftLength + node._length) {
+                line += newlines(node._left) + countNewlines(node._chars, 0, offset - leftLength);
+                break;
+            } else {
+                line += newlines(node._left) + node._newlines;
+                offset -= leftLength + node._length;
+                node = node._right;
+            }
+        }
+        return line;
+    }
+
+    /** Finds the number of chars on the specified line, not counting the trailing newline */
+    public synchronized int getLineLength(int lineNumber) {
+        int start = getLineOffset(lineNumber);
+        if (lineNumber == getLineCount()) {
+            return length() - start;
+        }
+        return findNewline(lineNumber) - start;
+    }
+
+    public synchronized int getLineCount() {
+        return newlines(_root) + 1;
+    }
+
+    @Override
+    public synchronized int length() {
+        return length(_root);
+    }
+
+    @Override
+    public synchronized char charAt(int charOffset) {
+        if (charOffset < 0 || charOffset >= length()) {
+            return '\0'; // Return null character for invalid indices
+        }
+
+        Node hint = _hintNode;
+        if (hint == null || charOffset < _hintStart || charOffset >= _hintStart + hint._length) {
+            int offset = charOffset;
+            int nodeStart = 0;
+            hint = _root;
+            while (true) {
+                int leftLength = length(hint._left);
+                if (offset < leftLength) {
+                    hint = hint._left;
+                } else if (offset < leftLength + hint._length) {
+                    nodeStart += leftLength;
+                    break;
+                } else {
+                    offset -= leftLength + hint._length;
+                    nodeStart += leftLength + hint._length;
+                    hint = hint._right;
+                }
+            }
+            _hintNode = hint;
+            _hintStart = nodeStart;
+        }
+        return hint._chars[charOffset - _hintStart];
+    }
+
+    @Override
+    public synchronized CharSequence subSequence(int start, int end) {
+        if (start < 0) start = 0;
+        if (end > length()) end = length();
+        if (start >= end) return "";
+
+        char[] chars = new char[end - start];
+        copyChars(_root, 0, start, end, chars, 0);
+        return new String(chars);
+    }
+
+    public synchronized String substring(int start, int end) {
+        if (start < 0) start = 0;
+        if (end > length()) end = length();
+        if (start >= end) return "";
+        return subSequence(start, end).toString();
+    }
+
+    public synchronized void getChars(int start, int end, char[] dest, int destOffset) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end);
+        }
+        copyChars(_root, 0, start, end, dest, destOffset);
+    }
+
+    public synchronized boolean getSegment(int charOffset, TextSegment segment) {
+        if (charOffset < 0 || charOffset >= length()) {
+            return false;
+        }
+
+        int offset = charOffset;
+        Node node = _root;
+        while (true) {
+            int leftLength = length(node._left);
+            if (offset < leftLength) {
+                node = node._left;
+            } else if (offset < leftLength + node._length) {
+                offset -= leftLength;
+                break;
+            } else {
+                offset -= leftLength + node._length;
+                node = node._right;
+            }
+        }
+        segment.set(node._chars, offset, node._length - offset, charOffset);
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return substring(0, length());
+    }
+
+    public synchronized RopeBuffer insert(int offset, String str, boolean capture) {
+        return insert(offset, str, capture, System.nanoTime());
+    }
+
+    public synchronized RopeBuffer insert(int offset, String str,
+            boolean capture, long timestamp) {
+        beginChange(offset, 0);
+        int length = str.length();
+        if (capture && length > 0) {
+            _undoStack.captureInsert(offset, offset + length, timestamp);
+        }
+        if (length == 0) {
+            return this;
+        }
+        _hintNode = null;
+
+        if (!insertInLeaf(offset, str)) {
+            split(_root, offset);
+            Node right = _splitRight;
+            _root = merge(merge(_splitLeft, buildTree(str)), right);
+        }
+        endChange(length);
+        return this;
+    }
+
+    public synchronized RopeBuffer append(String str, boolean capture) {
+        insert(length(), str, capture);
+        return this;
+    }
+
+    public synchronized RopeBuffer append(String str) {
+        insert(length(), str, false);
+        return this;
+    }
+
+    public synchronized RopeBuffer delete(int start, int end, boolean capture) {
+        return delete(start, end, capture, System.nanoTime());
+    }
+
+    public synchronized RopeBuffer delete(int start, int end,
+            boolean capture, long timestamp) {
+        beginChange(start, end - start);
+        if (capture && start < end) {
+            _undoStack.captureDelete(start, end, timestamp);
+            rememberDeleted(start, end);
+        }
+        if (start >= end) {
+            return this;
+        }
+        _hintNode = null;
+
+        if (!deleteInLeaf(start, end)) {
+            split(_root, start);
+            Node left = _splitLeft;
+            split(_splitRight, end - start);
+            _root = merge(left, _splitRight);
+        }
+        endChange(0);
+        return this;
+    }
+
+    public synchronized RopeBuffer replace(int start, int end, String str, boolean capture) {
+        beginChangeGroup();
+        delete(start, end, capture);
+        insert(start, str, capture);
+        endChangeGroup();
+        return this;
+    }
+
+    /**
+     * The chars are gone from the tree once deleted, so keep a copy of what the undo stack may
+     * ask for. Backspacing prepends to the previous deletion.
+     */
+    private void rememberDeleted(int start, int end) {
+        if (end - start > UndoStack.MAX_UNDO_SIZE || end != _lastDeletedStart) {
+            // too big to be recorded, or not continuous with the previous deletion
+            _deleted.clear();
+            _deletedLength = 0;
+        }
+        if (end - start > UndoStack.MAX_UNDO_SIZE) {
+            _lastDeletedStart = -1;
+            return;
+        }
+
+        _deleted.addLast(substring(start, end));
+        _deletedLength += end - start;
+        _lastDeletedStart = start;
+
+        // the undo stack never asks for more than one action can hold
+        while (_deletedLength - _deleted.peekFirst().length() >= UndoStack.MAX_UNDO_SIZE) {
+            _deletedLength -= _deleted.pollFirst().length();
+        }
+    }
+
+    @Override
+    protected synchronized String getDeletedText(int start, int end) {
+        StringBuilder text = new StringBuilder(end - start);
+        Iterator<String> newestFirst = _deleted.descendingIterator();
+        while (text.length() < end - start && newestFirst.hasNext()) {
+            text.append(newestFirst.next());
+        }
+        text.setLength(Math.min(text.length(), end - start));
+        return text.toString();
+    }
+
+    /** Inserts str into the leaf at offset if it fits there. Returns false otherwise. */
+    private boolean insertInLeaf(int offset, String str) {
+        int depth = 0;
+        Node node = _root;
+        while (node != null) {
+            if (depth == _path.length) {
+                _path = Arrays.copyOf(_path, depth * 2);
+            }
+            _path[depth++] = node;
+
+            int leftLength = length(node._left);
+            // prefer appending to the end of the previous leaf
+            if (offset < leftLength || (offset == leftLength && node._left != null)) {
+                node = node._left;
+            } else if (offset <= leftLength + node._length) {
+                offset -= leftLength;
+                break;
+            } else {
+                offset -= leftLength + node._length;
+                node = node._right;
+            }
+        }
+
+        int length = str.length();
+        if (node == null || node._length + length > MAX_LEAF) {
+            return false;
+        }
+
+        node = ownPath(depth);
+        if (node._length + length > node._chars.length) {
+            node._chars = Arrays.copyOf(node._chars, MAX_LEAF);
+        }
+        System.arraycopy(node._chars, offset, node._chars, offset + length,
+                node._length - offset);
+        str.getChars(0, length, node._chars, offset);
+        int newlines = countNewlines(node._chars, offset, offset + length);
+
+        node._length += length;
+        node._newlines += newlines;
+        for (int i = 0; i < depth; ++i) {
+            _path[i]._totalLength += length;
+            _path[i]._totalNewlines += newlines;
+        }
+        return true;
+    }
+
+    /** Deletes [start, end) if it lies inside one leaf and leaves it non-empty */
+    private boolean deleteInLeaf(int start, int end) {
+        int depth = 0;
+        Node node = _root;
+        while (node != null) {
+            if (depth == _path.length) {
+                _path = Arrays.copyOf(_path, depth * 2);
+            }
+            _path[depth++] = node;
+
+            int leftLength = length(node._left);
+            if (start < leftLength) {
+                node = node._left;
+            } else if (start < leftLength + node._length) {
+                start -= leftLength;
+                end -= leftLength;
+                break;
+            } else {
+                start -= leftLength + node._length;
+                end -= leftLength + node._length;
+                node = node._right;
+            }
+        }
+
+        if (node == null || end >= node._length) {
+            return false;
+        }
+
+        node = ownPath(depth);
+
+        int length = end - start;
+        int newlines = countNewlines(node._chars, start, end);
+        System.arraycopy(node._chars, end, node._chars, start, node._length - end);
+
+        node._length -= length;
+        node._newlines -= newlines;
+        for (int i = 0; i < depth; ++i) {
+            _path[i]._totalLength -= length;
+            _path[i]._totalNewlines -= newlines;
+        }
+        return true;
+    }
+
+    /* Adds a leaf holding chars[0, count) at the end of the text. The array is taken over. */
+    void appendLeaf(char[] chars, int count) {
+        _root = merge(_root, newNode(chars, count));
+    }
+
+    /**
+     * Replaces the frozen nodes among the first depth entries of _path with copies and returns
+     * the last one, whose chars may then be written to.
+     */
+    private Node ownPath(int depth) {
+        Node parent = null;
+        for (int i = 0; i < depth; ++i) {
+            Node node = own(_path[i]);
+            if (parent == null) {
+                _root = node;
+            } else if (parent._left == _path[i]) {
+                parent._left = node;
+            } else {
+                parent._right = node;
+            }
+            _path[i] = node;
+            parent = node;
+        }
+
+        if (parent._sharedChars) {
+            parent._chars = parent._chars.clone();
+            parent._sharedChars = false;
+        }
+        return parent;
+    }
+
+    /** Returns the offset of the count-th newline (1-based), or -1 if there are fewer */
+    private int findNewline(int count) {
+        int base = 0;
+        Node node = _root;
+        while (node != null) {
+            int leftNewlines = newlines(node._left);
+            if (count <= leftNewlines) {
+                node = node._left;
+                continue;
+            }
+
+            count -= leftNewlines;
+            base += length(node._left);
+            if (count <= node._newlines) {
+                for (int i = 0; i < node._length; ++i) {
+                    if (node._chars[i] == NEWLINE && --count == 0) {
+                        return base + i;
+                    }
+                }
+            }
+            count -= node._newlines;
+            base += node._length;
+            node = node._right;
+        }
+        return -1;
+    }
+
+    /* Copies the chars [start, end) of the subtree into dest, where nodeStart is its offset */
+    private void copyChars(Node node, int nodeStart, int start, int end,
+            char[] dest, int destOffset) {
+        if (node == null) {
+            return;
+        }
+
+        int leafStart = nodeStart + length(node._left);
+        int leafEnd = leafStart + node._length;
+        if (start < leafStart) {
+            copyChars(node._left, nodeStart, start, end, dest, destOffset);
+        }
+
+        int from = Math.max(start, leafStart);
+        int to = Math.min(end, leafEnd);
+        if (from < to) {
+            System.arraycopy(node._chars, from - leafStart,
+                    dest, destOffset + from - start, to - from);
+        }
+
+        if (end > leafEnd) {
+            copyChars(node._right, leafEnd, start, end, dest, destOffset);
+        }
+    }
+
+    /** Builds a tree of LOAD_LEAF sized leaves holding str */
+    private Node buildTree(String str) {
+        Node tree = null;
+        int length = str.length();
+        for (int start = 0; start < length; start += LOAD_LEAF) {
+            int count = Math.min(LOAD_LEAF, length - start);
+            char[] chars = new char[count];
+            str.getChars(start, start + count, chars, 0);
+            tree = merge(tree, newNode(chars, count));
+        }
+        return tree;
+    }
+
+    /** Splits tree into the first k chars (_splitLeft) and the rest (_splitRight) */
+    private void split(Node tree, int k) {
+        if (tree == null) {
+            _splitLeft = null;
+            _splitRight = null;
+            return;
+        }
+
+        int leftLength = length(tree._left);
+        tree = own(tree);
+        if (k <= leftLength) {
+            split(tree._left, k);
+            tree._left = _splitRight;
+            update(tree);
+            _splitRight = tree;
+        } else if (k >= leftLength + tree._length) {
+            split(tree._right, k - leftLength - tree._length);
+            tree._right = _splitLeft;
+            update(tree);
+            _splitLeft = tree;
+        } else {
+            // k falls inside this leaf: cut it in two. The tail takes over the right subtree
+            // and inherits the priority so the heap order still holds.
+            int cut = k - leftLength;
+            char[] tailChars = Arrays.copyOfRange(tree._chars, cut, tree._length);
+            Node tail = new Node(tailChars, tailChars.length,
+                    countNewlines(tailChars, 0, tailChars.length), tree._priority, _epoch);
+            tail._right = tree._right;
+            update(tail);
+
+            tree._length = cut;
+            tree._newlines -= tail._newlines;
+            if (cut < tree._chars.length / 4) {
+                tree._chars = Arrays.copyOf(tree._chars, cut);
+                tree._sharedChars = false;
+            }
+            tree._right = null;
+            update(tree);
+
+            _splitLeft = tree;
+            _splitRight = tail;
+        }
+    }
+
+    private Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+
+        if (left._priority > right._priority) {
+            left = own(left);
+            left._right = merge(left._right, right);
+            update(left);
+            return left;
+        } else {
+            right = own(right);
+            right._left = merge(left, right._left);
+            update(right);
+            return right;
+        }
+    }
+
+    private Node newNode(char[] chars, int length) {
+        return new Node(chars, length, countNewlines(chars, 0, length), _random.nextInt(),
+                _epoch);
+    }
+
+    /* Returns node itself if it may be modified, otherwise a modifiable copy */
+    private Node own(Node node) {
+        if (node._epoch == _epoch) {
+            return node;
+        }
+
+        Node copy = new Node(node._chars, node._length, node._newlines, node._priority, _epoch);
+        // the array is copied lazily, by ownPath(), since most copies never write to it
+        copy._sharedChars = true;
+        copy._left = node._left;
+        copy._right = node._right;
+        copy._totalLength = node._totalLength;
+        copy._totalNewlines = node._totalNewlines;
+        return copy;
+    }
+
+    private static int countNewlines(char[] chars, int start, int end) {
+        int newlines = 0;
+        for (int i = start; i < end; ++i) {
+            if (chars[i] == NEWLINE) {
+                ++newlines;
+            }
+        }
+        return newlines;
+    }
+
+    private static int length(Node node) {
+        return node == null ? 0 : node._totalLength;
+    }
+
+    private static int newlines(Node node) {
+        return node == null ? 0 : node._totalNewlines;
+    }
+
+    private static void update(Node node) {
+        node._totalLength = length(node._left) + node._length + length(node._right);
+        node._totalNewlines = newlines(node._left) + node._newlines + newlines(node._right);
+    }
+
+    private static final class Node {
+        char[] _chars;
+        int _length;
+        /* number of '\n' in the leaf */
+        int _newlines;
+        final int _priority;
+        /* the RopeBuffer._epoch this node was created in */
+        final int _epoch;
+        /* _chars also belongs to a frozen node and must be copied before writing */
+        boolean _sharedChars;
+
+        Node _left;
+        Node _right;
+        /* cached sums over the subtree rooted here */
+        int _totalLength;
+        int _totalNewlines;
+
+        Node(char[] chars, int length, int newlines, int priority, int epoch) {
+            _chars = chars;
+            _length = length;
+            _newlines = newlines;
+            _priority = priority;
+            _epoch = epoch;
+            _totalLength = length;
+            _totalNewlines = newlines;
+        }
+    }
+}
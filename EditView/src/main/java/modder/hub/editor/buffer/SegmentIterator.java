@@ -0,0 +1,50 @@
+package modder.hub.editor.buffer;
+
+/**
+ * Walks a range of a TextBuffer one stored run at a time, without copying or allocating.
+ *
+ * <pre>
+ * SegmentIterator it = new SegmentIterator(buffer, start, end);
+ * while (it.next()) {
+ *     TextSegment seg = it.segment;
+ *     writer.write(seg.array, seg.offset, seg.count);
+ * }
+ * </pre>
+ *
+ * <p>The buffer must not be edited while iterating. The iterator can be reused with reset().
+ */
+public class SegmentIterator {
+    public final TextSegment segment = new TextSegment();
+
+    private TextBuffer _buffer;
+    private int _position;
+    private int _end;
+
+    public SegmentIterator() {
+    }
+
+    public SegmentIterator(TextBuffer buffer, int start, int end) {
+        reset(buffer, start, end);
+    }
+
+    public SegmentIterator reset(TextBuffer buffer, int start, int end) {
+        _buffer = buffer;
+        _position = Math.max(0, start);
+        _end = Math.min(end, buffer.length());
+        return this;
+    }
+
+    /** Moves segment to the next run. Returns false when the range is exhausted. */
+    public boolean next() {
+        if (_position >= _end || !_buffer.getSegment(_position, segment)) {
+            return false;
+        }
+
+        // clip the run to the requested range
+        if (segment.count > _end - _position) {
+            segment.count = _end - _position;
+        }
+        _position += segment.count;
+        return true;
+    }
+}
@@ -0,0 +1,123 @@
+package modder.hub.editor.buffer;
+
+/**
+ * TextBuffer is the storage behind EditView. Implementations decide how the text is laid out in
+ * memory (gap buffer, piece table, ...); the editor only talks to this interface.
+ *
+ * <p>Line numbers are 1-based, char offsets are 0-based. Edits made with capture set to true are
+ * recorded for undo/redo.
+ */
+public interface TextBuffer extends CharSequence {
+
+    /** Returns the number of lines. An empty buffer has one line. */
+    int getLineCount();
+
+    /** Returns the text on lineNumber without its trailing newline */
+    String getLine(int lineNumber);
+
+    /** Returns the offset of the first character of lineNumber */
+    int getLineOffset(int lineNumber);
+
+    /** Returns the line number that charOffset is on */
+    int findLineNumber(int charOffset);
+
+    /** Returns the number of chars on lineNumber, not counting the trailing newline */
+    int getLineLength(int lineNumber);
+
+    String substring(int start, int end);
+
+    /**
+     * Copies the chars [start, end) into dest, starting at destOffset. Nothing is allocated.
+     *
+     * @throws IndexOutOfBoundsException if the range is not inside the text or dest
+     */
+    void getChars(int start, int end, char[] dest, int destOffset);
+
+    /**
+     * Points segment at the buffer's own storage for the run of chars that starts at charOffset
+     * and is stored contiguously. See {@link TextSegment} and {@link SegmentIterator}.
+     *
+     * @return false if charOffset is not inside the text
+     */
+    boolean getSegment(int charOffset, TextSegment segment);
+
+    /** Returns a number that grows with every edit, including undo and redo */
+    long getVersion();
+
+    /**
+     * Returns a read-only copy of the current text that stays valid while this buffer is being
+     * edited. Taking a snapshot is cheap and reading it never locks this buffer, so background
+     * work (search, word scanning, saving) should read a snapshot instead of the live buffer.
+     *
+     * <p>Edits on a snapshot throw UnsupportedOperationException. Its getVersion() is the version
+     * of this buffer it was taken at, so results computed from it can be recognized as stale.
+     */
+    TextBuffer snapshot();
+
+    /**
+     * Tells the buffer a snapshot was taken from that this snapshot will not be read anymore, so
+     * it can go back to editing its storage in place. Does nothing if this is not a snapshot or was
+     * already released.
+     */
+    void release();
+
+    /**
+     * Drops the undo history and closes the journal files it was spilled to. Call once the buffer
+     * is no longer shown; it can still be read and edited, but what was recorded before is gone.
+     */
+    void close();
+
+    /**
+     * Registers listener to be told about every change of the text, with edits made between
+     * beginBatchEdit() and endBatchEdit() reported as one change.
+     */
+    void addTextChangeListener(TextChangeListener listener);
+
+    void removeTextChangeListener(TextChangeListener listener);
+
+    TextBuffer insert(int offset, String str, boolean capture);
+
+    TextBuffer insert(int offset, String str, boolean capture, long timestamp);
+
+    TextBuffer append(String str);
+
+    TextBuffer append(String str, boolean capture);
+
+    TextBuffer delete(int start, int end, boolean capture);
+
+    TextBuffer delete(int start, int end, boolean capture, long timestamp);
+
+    TextBuffer replace(int start, int end, String str, boolean capture);
+
+    boolean canUndo();
+
+    boolean canRedo();
+
+    /** @return The suggested caret position after the undo, or -1 if there is nothing to undo */
+    int undo();
+
+    /** @return The suggested caret position after the redo, or -1 if there is nothing to redo */
+    int redo();
+
+    void markSelectionBefore(int selStart, int selEnd, boolean selMode);
+
+    void markSelectionAfter(int selStart, int selEnd, boolean selMode);
+
+    int getLastUndoSelectionStart();
+
+    int getLastUndoSelectionEnd();
+
+    boolean getLastUndoSelectionMode();
+
+    int getLastRedoSelectionStart();
+
+    int getLastRedoSelectionEnd();
+
+    boolean getLastRedoSelectionMode();
+
+    void beginBatchEdit();
+
+    void endBatchEdit();
+
+    boolean isBatchEdit();
+}
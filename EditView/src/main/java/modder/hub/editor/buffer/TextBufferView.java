@@ -0,0 +1,66 @@
+package modder.hub.editor.buffer;
+
+/**
+ * A read-only CharSequence over the range [start, end) of a TextBuffer, for code that wants a
+ * CharSequence (regex, TextUtils, Paint) without copying the text into a String.
+ *
+ * <p>charAt() reads straight from the buffer's storage through a cached TextSegment, so sequential
+ * reads only go to the buffer when they cross into the next stored run. The view is not
+ * synchronized and the buffer must not be edited while it is in use; set() re-targets it to
+ * another range.
+ */
+public class TextBufferView implements CharSequence {
+    private TextBuffer _buffer;
+    private int _start;
+    private int _end;
+    private final TextSegment _segment = new TextSegment();
+
+    public TextBufferView(TextBuffer buffer) {
+        this(buffer, 0, buffer.length());
+    }
+
+    public TextBufferView(TextBuffer buffer, int start, int end) {
+        set(buffer, start, end);
+    }
+
+    public TextBufferView set(TextBuffer buffer, int start, int end) {
+        if (start < 0 || end < start || end > buffer.length()) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end);
+        }
+        _buffer = buffer;
+        _start = start;
+        _end = end;
+        _segment.count = 0; // drop the cached run
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return _end - _start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        int position = _start + index;
+        if (index < 0 || position >= _end) {
+            throw new IndexOutOfBoundsException("index " + index);
+        }
+        TextSegment segment = _segment;
+        if (position < segment.start || position >= segment.start + segment.count) {
+            _buffer.getSegment(position, segment);
+        }
+        return segment.array[segment.offset + position - segment.start];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new TextBufferView(_buffer, _start + start, _start + end);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length()];
+        _buffer.getChars(_start, _end, chars, 0);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,51 @@
+package modder.hub.editor.buffer;
+
+/**
+ * Describes one change of a TextBuffer: removedLength chars at offset were replaced with
+ * insertedLength chars. Several edits made in one batch are described by a single event that
+ * covers all of them.
+ *
+ * <p>In line terms, the oldLineCount lines starting at startLine were replaced with newLineCount
+ * lines. Lines before startLine are unchanged, lines after the range moved by
+ * newLineCount - oldLineCount. Both counts include the partially changed first and last line, so
+ * typing inside a line gives startLine with oldLineCount == newLineCount == 1.
+ */
+public class TextChangeEvent {
+    public final int offset;
+    public final int removedLength;
+    public final int insertedLength;
+    /* 1-based, like all line numbers of TextBuffer */
+    public final int startLine;
+    public final int oldLineCount;
+    public final int newLineCount;
+    /* TextBuffer.getVersion() right after the change */
+    public final long version;
+
+    public TextChangeEvent(int offset, int removedLength, int insertedLength, int startLine,
+            int oldLineCount, int newLineCount, long version) {
+        this.offset = offset;
+        this.removedLength = removedLength;
+        this.insertedLength = insertedLength;
+        this.startLine = startLine;
+        this.oldLineCount = oldLineCount;
+        this.newLineCount = newLineCount;
+        this.version = version;
+    }
+
+    /** Returns how far the text after the change moved */
+    public int getCharDelta() {
+        return insertedLength - removedLength;
+    }
+
+    /** Returns how far the lines after the change moved */
+    public int getLineDelta() {
+        return newLineCount - oldLineCount;
+    }
+
+    @Override
+    public String toString() {
+        return "TextChangeEvent{offset=" + offset + ", removed=" + removedLength
+                + ", inserted=" + insertedLength + ", startLine=" + startLine
+                + ", lines=" + oldLineCount + "->" + newLineCount + ", version=" + version + "}";
+    }
+}
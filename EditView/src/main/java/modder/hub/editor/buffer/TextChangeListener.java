@@ -0,0 +1,10 @@
+package modder.hub.editor.buffer;
+
+/** Gets told about every change of a TextBuffer, including undo and redo. */
+public interface TextChangeListener {
+    /**
+     * Called on the thread that edited the buffer, after the change. For a batch edit it is called
+     * once, when the batch ends.
+     */
+    void onTextChanged(TextBuffer buffer, TextChangeEvent event);
+}
@@ -0,0 +1,500 @@
+package modder.hub.editor.buffer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+
+/**
+ * Reads a text file into a TextBuffer in a single pass. The bytes are decoded with a
+ * CharsetDecoder chunk by chunk into the storage of the new buffer, so the text is never held as a
+ * String or copied afterwards; a GapBuffer also gets its line index built while decoding, and
+ * keeps text that fits into Latin-1 one byte per char. loadProgressively() hands the text out in
+ * chunks instead, so a file can be shown while it loads.
+ *
+ * <p>The charset is sniffed from the first getSniffLength() bytes only: a byte order mark wins,
+ * then the CharsetDetector if one is set, then UTF-8 if the head is valid UTF-8. Otherwise the
+ * default charset is used. setCharset() skips sniffing.
+ *
+ * <p>Malformed input is replaced with U+FFFD rather than failing the load. Line endings are kept as
+ * they are; getLineSeparator() tells which one the file uses so it can be saved the same way.
+ */
+public class TextFileLoader {
+
+    /** Receives the progress of a load. Called from the loading thread after every chunk. */
+    public interface ProgressListener {
+        /** @return false to cancel the load */
+        boolean onProgress(long bytesRead, long totalBytes);
+    }
+
+    /** Receives the text of a progressive load, see loadProgressively() */
+    public interface ChunkListener {
+        /**
+         * Called from the loading thread with every chunk of decoded text, in order
+         *
+         * @return false to cancel the load
+         */
+        boolean onChunk(String text);
+    }
+
+    /** Guesses a charset from the start of a file */
+    public interface CharsetDetector {
+        /** @return the charset of a file starting with head[0, length), or null if unsure */
+        Charset detect(byte[] head, int length);
+    }
+
+    public static final int DEFAULT_SNIFF_LENGTH = 64 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // chars handed to a ChunkListener at a time
+    private static final int PROGRESSIVE_CHUNK_SIZE = 256 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final File _file;
+    private Charset _defaultCharset = UTF_8;
+    private Charset _forcedCharset;
+    private CharsetDetector _detector;
+    private ProgressListener _listener;
+    private int _sniffLength = DEFAULT_SNIFF_LENGTH;
+
+    // results of the last load
+    private Charset _charset;
+    private int _bomLength;
+    private String _lineSeparator;
+    // last char seen while looking for the line separator
+    private char _lastChar;
+
+    public TextFileLoader(File file) {
+        _file = file;
+    }
+
+    /** Sets the charset used when sniffing finds nothing better. UTF-8 by default. */
+    public void setDefaultCharset(Charset charset) {
+        _defaultCharset = charset;
+    }
+
+    /** Decodes with charset instead of sniffing. A matching byte order mark is still skipped. */
+    public void setCharset(Charset charset) {
+        _forcedCharset = charset;
+    }
+
+    public void setCharsetDetector(CharsetDetector detector) {
+        _detector = detector;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        _listener = listener;
+    }
+
+    /** Sets how many bytes from the start of the file are used to sniff the charset */
+    public void setSniffLength(int bytes) {
+        _sniffLength = bytes;
+    }
+
+    public int getSniffLength() {
+        return _sniffLength;
+    }
+
+    /** Returns the charset of the last load, or null if nothing was loaded yet */
+    public Charset getCharset() {
+        return _charset;
+    }
+
+    /** Returns true if the last loaded file started with a byte order mark */
+    public boolean hasByteOrderMark() {
+        return _bomLength > 0;
+    }
+
+    /**
+     * Returns the line separator of the last loaded file, "\r\n" or "\n", going by its first line
+     * break. Files without any line break count as "\n".
+     */
+    public String getLineSeparator() {
+        return _lineSeparator == null ? "\n" : _lineSeparator;
+    }
+
+    /**
+     * Loads the file into a GapBuffer. The array is sized from the file length, which is an upper
+     * bound of the char count for every common charset, and leaves the rest as the gap. It starts
+     * out as Latin-1 storage and is widened on the first char beyond it.
+     *
+     * @return the buffer, or null if the ProgressListener cancelled the load
+     */
+    public GapBuffer loadGapBuffer() throws IOException {
+        try (FileInputStream stream = new FileInputStream(_file)) {
+            FileChannel channel = stream.getChannel();
+            long textBytes = channel.size() - sniff(channel);
+            int gapSize = Math.min(Math.max((int) Math.min(textBytes, Integer.MAX_VALUE),
+                    GapBuffer.DEFAULT_MIN_GAP_SIZE), GapBuffer.DEFAULT_MAX_GAP_SIZE);
+            if (textBytes + gapSize > Integer.MAX_VALUE - 8) {
+                throw new IOException("file is too large for a GapBuffer: " + _file);
+            }
+
+            GapSink sink = new GapSink((int) textBytes + gapSize);
+            if (!decode(channel, CharBuffer.allocate(CHUNK_SIZE), sink)) {
+                return null;
+            }
+            if (sink.latin1 != null) {
+                return new GapBuffer(sink.latin1, sink.length, sink.lines);
+            }
+            return new GapBuffer(sink.chars, sink.length, sink.lines);
+        }
+    }
+
+    /**
+     * Loads the file into a RopeBuffer, one leaf at a time
+     *
+     * @return the buffer, or null if the ProgressListener cancelled the load
+     */
+    public RopeBuffer loadRopeBuffer() throws IOException {
+        try (FileInputStream stream = new FileInputStream(_file)) {
+            FileChannel channel = stream.getChannel();
+            sniff(channel);
+
+            RopeSink sink = new RopeSink();
+            CharBuffer out = CharBuffer.allocate(RopeBuffer.LOAD_LEAF);
+            if (!decode(channel, out, sink)) {
+                return null;
+            }
+            return sink.rope;
+        }
+    }
+
+    /**
+     * Decodes the file and hands the text to listener a chunk at a time as soon as it is decoded,
+     * so the start of a big file can be shown while the rest is still being read. The chunks
+     * appended to an empty TextBuffer make up the text; a GapBuffer(int) sized to the file
+     * length never has to grow on the way.
+     *
+     * @return false if the ProgressListener or the ChunkListener cancelled the load
+     */
+    public boolean loadProgressively(ChunkListener listener) throws IOException {
+        try (FileInputStream stream = new FileInputStream(_file)) {
+            FileChannel channel = stream.getChannel();
+            sniff(channel);
+            return decode(channel, CharBuffer.allocate(PROGRESSIVE_CHUNK_SIZE),
+                    new ChunkSink(listener));
+        }
+    }
+
+    /**
+     * Opens the file as a read-only MappedTextBuffer, for files too large to load into the heap.
+     * Only the head is read here; the caller starts the line index with startIndexing().
+     *
+     * @throws IOException if the sniffed charset is not ASCII-compatible (UTF-16), which the
+     *     mapped view cannot show
+     */
+    public MappedTextBuffer openMappedBuffer() throws IOException {
+        try (FileInputStream stream = new FileInputStream(_file)) {
+            sniff(stream.getChannel());
+        }
+        if (!Arrays.equals("\nA".getBytes(_charset), new byte[] {'\n', 'A'})) {
+            throw new IOException(_charset + " cannot be shown memory-mapped: " + _file);
+        }
+        _lineSeparator = null;
+        return new MappedTextBuffer(_file, _charset);
+    }
+
+    /* Picks _charset from the head of the file and returns the length of its byte order mark */
+    private int sniff(FileChannel channel) throws IOException {
+        byte[] head = new byte[(int) Math.min(Math.max(_sniffLength, 4), channel.size())];
+        ByteBuffer headBuffer = ByteBuffer.wrap(head);
+        while (headBuffer.hasRemaining() && channel.read(headBuffer) > 0) {
+            // keep reading until the head is full
+        }
+        int length = headBuffer.position();
+
+        Charset charset;
+        if (startsWith(head, length, 0xEF, 0xBB, 0xBF)) {
+            charset = UTF_8;
+            _bomLength = 3;
+        } else if (startsWith(head, length, 0xFE, 0xFF)) {
+            charset = UTF_16BE;
+            _bomLength = 2;
+        } else if (startsWith(head, length, 0xFF, 0xFE)) {
+            charset = UTF_16LE;
+            _bomLength = 2;
+        } else {
+            charset = null;
+            _bomLength = 0;
+        }
+
+        if (_forcedCharset != null) {
+            // the mark only belongs to the text if it is not the forced charset's own
+            if (charset != null && !charset.equals(_forcedCharset)) {
+                _bomLength = 0;
+            }
+            charset = _forcedCharset;
+        }
+        if (charset == null && _detector != null) {
+            charset = _detector.detect(head, length);
+            // an ASCII head says nothing about the rest of the file; UTF-8 reads ASCII the same
+            if (US_ASCII.equals(charset)) {
+                charset = UTF_8;
+            }
+        }
+        if (charset == null && isUtf8(head, length)) {
+            charset = UTF_8;
+        }
+        if (charset == null) {
+            charset = _defaultCharset;
+        }
+
+        _charset = charset;
+        channel.position(_bomLength);
+        return _bomLength;
+    }
+
+    /**
+     * Decodes the file from the current channel position into out, handing every decoded run to
+     * sink. Returns false if the load was cancelled.
+     */
+    private boolean decode(FileChannel channel, CharBuffer out, Sink sink) throws IOException {
+        CharsetDecoder decoder = _charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer in = ByteBuffer.allocate(CHUNK_SIZE);
+        long total = channel.size();
+        long read = channel.position();
+        _lineSeparator = null;
+        _lastChar = 0;
+
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            int count = channel.read(in);
+            if (count < 0) {
+                endOfInput = true;
+            } else {
+                read += count;
+            }
+
+            in.flip();
+            while (true) {
+                int from = out.position();
+                CoderResult result = decoder.decode(in, out, endOfInput);
+                sink.decoded(out, from);
+                if (_lineSeparator == null) {
+                    findLineSeparator(out, from);
+                }
+                if (!result.isOverflow()) {
+                    break;
+                }
+                out = sink.overflow(out);
+                if (out == null) {
+                    return false;
+                }
+            }
+            in.compact();
+
+            if (_listener != null && !_listener.onProgress(read, total)) {
+                return false;
+            }
+        }
+
+        while (true) {
+            int from = out.position();
+            CoderResult result = decoder.flush(out);
+            sink.decoded(out, from);
+            if (!result.isOverflow()) {
+                break;
+            }
+            out = sink.overflow(out);
+            if (out == null) {
+                return false;
+            }
+        }
+        return sink.finish(out);
+    }
+
+    private void findLineSeparator(CharBuffer out, int from) {
+        char[] chars = out.array();
+        int end = out.position();
+        for (int i = from; i < end; ++i) {
+            char c = chars[i];
+            if (c == '\n') {
+                _lineSeparator = _lastChar == '\r' ? "\r\n" : "\n";
+                return;
+            }
+            _lastChar = c;
+        }
+    }
+
+    private static boolean startsWith(byte[] head, int length, int... bytes) {
+        if (length < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; ++i) {
+            if ((head[i] & 0xFF) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* A sequence cut off at the end of the head still counts as valid */
+    private static boolean isUtf8(byte[] head, int length) {
+        CharsetDecoder decoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CoderResult result = decoder.decode(ByteBuffer.wrap(head, 0, length),
+                CharBuffer.allocate(length), false);
+        return !result.isError();
+    }
+
+    /* Where decoded chars end up */
+    private interface Sink {
+        /* The chars [from, out.position()) were just decoded */
+        void decoded(CharBuffer out, int from);
+
+        /* out is full. Returns the buffer to continue with, or null to cancel */
+        CharBuffer overflow(CharBuffer out);
+
+        /* Decoding is done, out holds the last chars. Returns false to cancel */
+        boolean finish(CharBuffer out);
+    }
+
+    /*
+     * Copies the decoded chunks into the array of a GapBuffer and records the line starts on the
+     * way. The array holds one byte per char until the first char beyond Latin-1.
+     */
+    private static final class GapSink implements Sink {
+        byte[] latin1;
+        char[] chars;
+        int length;
+        final LineIndex lines = new LineIndex();
+        int lineCount = 1;
+
+        GapSink(int capacity) {
+            latin1 = new byte[capacity];
+        }
+
+        @Override
+        public void decoded(CharBuffer out, int from) {
+            char[] source = out.array();
+            int end = out.position();
+            ensureCapacity(length + end - from);
+
+            int i = from;
+            if (latin1 != null) {
+                byte[] bytes = latin1;
+                for (; i < end; ++i) {
+                    char c = source[i];
+                    if (c > 0xFF) {
+                        inflate();
+                        break;
+                    }
+                    bytes[length++] = (byte) c;
+                    if (c == '\n') {
+                        lines.insertLine(lineCount++, length);
+                    }
+                }
+            }
+            for (; i < end; ++i) {
+                char c = source[i];
+                chars[length++] = c;
+                if (c == '\n') {
+                    lines.insertLine(lineCount++, length);
+                }
+            }
+        }
+
+        @Override
+        public CharBuffer overflow(CharBuffer out) {
+            out.clear();
+            return out;
+        }
+
+        @Override
+        public boolean finish(CharBuffer out) {
+            return true;
+        }
+
+        private void ensureCapacity(int capacity) {
+            int current = latin1 != null ? latin1.length : chars.length;
+            if (capacity <= current) {
+                return;
+            }
+            // only charsets that decode a byte into more than one char get here
+            int grown = Math.max(capacity, current + Math.max(current / 2, CHUNK_SIZE));
+            if (latin1 != null) {
+                byte[] temp = new byte[grown];
+                System.arraycopy(latin1, 0, temp, 0, length);
+                latin1 = temp;
+            } else {
+                char[] temp = new char[grown];
+                System.arraycopy(chars, 0, temp, 0, length);
+                chars = temp;
+            }
+        }
+
+        private void inflate() {
+            chars = new char[latin1.length];
+            for (int i = 0; i < length; ++i) {
+                chars[i] = (char) (latin1[i] & 0xFF);
+            }
+            latin1 = null;
+        }
+    }
+
+    /* Decodes into rope leaves */
+    private static final class RopeSink implements Sink {
+        final RopeBuffer rope = new RopeBuffer();
+
+        @Override
+        public void decoded(CharBuffer out, int from) {
+        }
+
+        @Override
+        public CharBuffer overflow(CharBuffer out) {
+            if (out.position() > 0) {
+                rope.appendLeaf(out.array(), out.position());
+            }
+            return CharBuffer.allocate(RopeBuffer.LOAD_LEAF);
+        }
+
+        @Override
+        public boolean finish(CharBuffer out) {
+            overflow(out);
+            return true;
+        }
+    }
+
+    /* Hands every full chunk to a ChunkListener and reuses it */
+    private static final class ChunkSink implements Sink {
+        final ChunkListener listener;
+
+        ChunkSink(ChunkListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void decoded(CharBuffer out, int from) {
+        }
+
+        @Override
+        public CharBuffer overflow(CharBuffer out) {
+            int length = out.position();
+            if (length > 0 && !listener.onChunk(new String(out.array(), 0, length))) {
+                return null;
+            }
+            out.clear();
+            return out;
+        }
+
+        @Override
+        public boolean finish(CharBuffer out) {
+            return overflow(out) != null;
+        }
+    }
+}
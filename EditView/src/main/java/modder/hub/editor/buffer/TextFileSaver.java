@@ -0,0 +1,185 @@
+package modder.hub.editor.buffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes a TextBuffer to a file without ever holding the whole text as a String or byte array. The
+ * segments of the buffer are encoded chunk by chunk with a CharsetEncoder, so the extra memory does
+ * not depend on the size of the document.
+ *
+ * <p>The text goes to a temporary file next to the target first. Only after it has been written
+ * completely and synced to the disk is it renamed over the target, so a crash or a failed save
+ * leaves the old file untouched.
+ *
+ * <p>Characters the charset cannot encode fail the save instead of being replaced silently.
+ */
+public class TextFileSaver {
+
+    /** Receives the progress of a save. Called from the saving thread after every chunk. */
+    public interface ProgressListener {
+        /** @return false to cancel the save */
+        boolean onProgress(long charsWritten, long totalChars);
+    }
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final File _file;
+    private Charset _charset = Charset.forName("UTF-8");
+    private boolean _byteOrderMark;
+    // null writes line breaks as they are in the buffer
+    private String _lineSeparator;
+    private ProgressListener _listener;
+
+    public TextFileSaver(File file) {
+        _file = file;
+    }
+
+    /** Sets the charset to encode with. UTF-8 by default. */
+    public void setCharset(Charset charset) {
+        _charset = charset;
+    }
+
+    /** Writes a byte order mark in front of the text. Only meaningful for Unicode charsets. */
+    public void setByteOrderMark(boolean byteOrderMark) {
+        _byteOrderMark = byteOrderMark;
+    }
+
+    /**
+     * Sets the line separator to write. With "\r\n", every '\n' that is not already preceded by
+     * '\r' is written as "\r\n", so lines typed into a CRLF file stay CRLF. Any other value, or
+     * null, writes the text as it is.
+     */
+    public void setLineSeparator(String lineSeparator) {
+        _lineSeparator = lineSeparator;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Saves the whole buffer. The buffer must not change during the save; pass a snapshot when
+     * saving from a background thread.
+     *
+     * @return false if the ProgressListener cancelled the save, in which case the file is unchanged
+     */
+    public boolean save(TextBuffer buffer) throws IOException {
+        // same directory, so the rename stays within one file system
+        File temp = new File(_file.getAbsoluteFile().getParentFile(),
+                "." + _file.getName() + ".tmp");
+        boolean done = false;
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp)) {
+                FileChannel channel = stream.getChannel();
+                if (!write(buffer, channel)) {
+                    return false;
+                }
+                channel.force(true);
+            }
+            // rename(2) replaces the target atomically
+            if (!temp.renameTo(_file)) {
+                throw new IOException("cannot replace " + _file);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+        return true;
+    }
+
+    private boolean write(TextBuffer buffer, FileChannel channel) throws IOException {
+        CharsetEncoder encoder = _charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer in = CharBuffer.allocate(CHUNK_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(CHUNK_SIZE * 4);
+        boolean crlf = "\r\n".equals(_lineSeparator);
+        long total = buffer.length();
+        long written = 0;
+        char last = 0;
+
+        if (_byteOrderMark) {
+            in.put('\uFEFF');
+        }
+
+        SegmentIterator segments = new SegmentIterator();
+        segments.reset(buffer, 0, buffer.length());
+        while (segments.next()) {
+            TextSegment segment = segments.segment;
+            char[] array = segment.array;
+            int i = segment.offset;
+            int end = i + segment.count;
+            while (i < end) {
+                if (crlf) {
+                    // leave room for a '\r' in front of the '\n'
+                    while (i < end && in.remaining() >= 2) {
+                        char c = array[i++];
+                        if (c == '\n' && last != '\r') {
+                            in.put('\r');
+                        }
+                        in.put(c);
+                        last = c;
+                    }
+                } else {
+                    int count = Math.min(end - i, in.remaining());
+                    in.put(array, i, count);
+                    i += count;
+                }
+                if (in.remaining() < 2) {
+                    encode(encoder, in, out, channel, false);
+                    long progress = written + i - segment.offset;
+                    if (_listener != null && !_listener.onProgress(progress, total)) {
+                        return false;
+                    }
+                }
+            }
+            written += segment.count;
+        }
+
+        encode(encoder, in, out, channel, true);
+        while (encoder.flush(out).isOverflow()) {
+            drain(out, channel);
+        }
+        drain(out, channel);
+        if (_listener != null) {
+            _listener.onProgress(total, total);
+        }
+        return true;
+    }
+
+    /* Encodes everything in the chunk, keeping a trailing high surrogate for the next one */
+    private static void encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer out,
+            FileChannel channel, boolean endOfInput) throws IOException {
+        in.flip();
+        while (true) {
+            CoderResult result = encoder.encode(in, out, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (!result.isOverflow()) {
+                break;
+            }
+            drain(out, channel);
+        }
+        in.compact();
+    }
+
+    private static void drain(ByteBuffer out, FileChannel channel) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+}
@@ -0,0 +1,40 @@
+package modder.hub.editor.buffer;
+
+/**
+ * A run of text that a TextBuffer stores contiguously: the chars of text offsets [start, start +
+ * count) are array[offset] .. array[offset + count - 1].
+ *
+ * <p>array is the buffer's own storage, not a copy. It must not be modified and is only valid
+ * until the next edit of the buffer. A buffer that does not store chars (a GapBuffer holding
+ * Latin-1 text, a MappedTextBuffer) decodes a shorter run into an array owned by the segment
+ * instead, which is overwritten by the next getSegment() into the same segment.
+ */
+public class TextSegment {
+    public char[] array;
+    public int offset;
+    public int count;
+    /* text offset of array[offset] */
+    public int start;
+
+    private char[] _scratch;
+
+    void set(char[] array, int offset, int count, int start) {
+        this.array = array;
+        this.offset = offset;
+        this.count = count;
+        this.start = start;
+    }
+
+    /* Returns an array of at least size chars owned by this segment */
+    char[] scratch(int size) {
+        if (_scratch == null || _scratch.length < size) {
+            _scratch = new char[size];
+        }
+        return _scratch;
+    }
+
+    @Override
+    public String toString() {
+        return new String(array, offset, count);
+    }
+}
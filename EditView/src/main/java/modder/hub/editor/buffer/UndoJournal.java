@@ -0,0 +1,195 @@
+package modder.hub.editor.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the text of large undo actions in files instead of on the heap. The text is appended
+ * chunk by chunk straight from the buffer segments and read back only when the action is undone or
+ * redone, so the heap used by the undo history does not depend on the size of an edit.
+ *
+ * <p>The journal is a series of append-only segment files in the directory set with
+ * setDirectory(), which should be private to the app. A file is unlinked right after it is opened,
+ * so nothing is left behind when the process dies; its space is given back as soon as no entry
+ * refers to it any more.
+ *
+ * <p>Without a directory nothing is spilled and large edits are not recorded for undo.
+ */
+public final class UndoJournal {
+
+    /* a new file is started once the current one has grown beyond this */
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private static File _directory;
+
+    /* the segment appended to; older ones are closed once they hold no live entries */
+    private Segment _current;
+    private final ByteBuffer _bytes = ByteBuffer.allocate(CHUNK_SIZE * 2);
+    /* the same memory, seen as chars */
+    private final CharBuffer _chars = _bytes.asCharBuffer();
+    private final SegmentIterator _segments = new SegmentIterator();
+
+    /** Sets the directory the journal files go to, or null to keep all undo text on the heap */
+    public static synchronized void setDirectory(File directory) {
+        _directory = directory;
+    }
+
+    public static synchronized File getDirectory() {
+        return _directory;
+    }
+
+    static boolean isEnabled() {
+        return getDirectory() != null;
+    }
+
+    /** The place of one action's text in the journal */
+    static final class Entry {
+        final Segment segment;
+        final long position;
+        final int length;
+
+        Entry(Segment segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final FileChannel channel;
+        long size;
+        int entries;
+
+        Segment(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** Appends the text of buffer in [start, end) */
+    Entry append(TextBuffer buffer, int start, int end) throws IOException {
+        if (_current == null || _current.size >= SEGMENT_SIZE) {
+            _current = openSegment();
+        }
+
+        Segment segment = _current;
+        long position = segment.size;
+        _chars.clear();
+        _segments.reset(buffer, start, end);
+        try {
+            while (_segments.next()) {
+                TextSegment run = _segments.segment;
+                int i = run.offset;
+                int runEnd = i + run.count;
+                while (i < runEnd) {
+                    int count = Math.min(runEnd - i, _chars.remaining());
+                    _chars.put(run.array, i, count);
+                    i += count;
+                    if (!_chars.hasRemaining()) {
+                        write(segment);
+                    }
+                }
+            }
+            write(segment);
+        } catch (IOException e) {
+            // drop the partial entry, the next one overwrites it
+            segment.size = position;
+            throw e;
+        }
+
+        segment.entries++;
+        return new Entry(segment, position, end - start);
+    }
+
+    /* Writes the chars put into _chars so far */
+    private void write(Segment segment) throws IOException {
+        _bytes.clear();
+        _bytes.limit(_chars.position() * 2);
+        while (_bytes.hasRemaining()) {
+            segment.size += segment.channel.write(_bytes, segment.size);
+        }
+        _chars.clear();
+    }
+
+    /** Reads the text of entry back */
+    String read(Entry entry) throws IOException {
+        char[] text = new char[entry.length];
+        long position = entry.position;
+        int done = 0;
+        while (done < text.length) {
+            _bytes.clear();
+            _bytes.limit(Math.min(text.length - done, CHUNK_SIZE) * 2);
+            while (_bytes.hasRemaining()) {
+                if (entry.segment.channel.read(_bytes, position + _bytes.position()) < 0) {
+                    throw new IOException("undo journal is truncated");
+                }
+            }
+            int count = _bytes.position() / 2;
+            _chars.clear();
+            _chars.get(text, done, count);
+            position += count * 2L;
+            done += count;
+        }
+        return new String(text);
+    }
+
+    /** The entry is no longer needed. A segment without entries gives its space back. */
+    void release(Entry entry) {
+        Segment segment = entry.segment;
+        if (--segment.entries > 0) {
+            return;
+        }
+        if (segment == _current) {
+            // start over at the beginning of the same file
+            segment.size = 0;
+            try {
+                segment.channel.truncate(0);
+            } catch (IOException e) {
+                // the space is reused by the next entries anyway
+            }
+        } else {
+            closeQuietly(segment);
+        }
+    }
+
+    /**
+     * Closes the segment appended to. The others are closed already once their entries are
+     * released, so this must follow releasing all of them.
+     */
+    void close() {
+        if (_current != null) {
+            closeQuietly(_current);
+            _current = null;
+        }
+    }
+
+    private static Segment openSegment() throws IOException {
+        File directory = getDirectory();
+        if (directory == null) {
+            throw new IOException("no undo journal directory");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        File file = File.createTempFile("undo", ".journal", directory);
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        // the open channel keeps the data; without a name nothing can leak
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        return new Segment(access.getChannel());
+    }
+
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package modder.hub.editor.buffer;
+
+import java.io.IOException;
+
+/**
+ * Records insertions and deletions of an AbstractTextBuffer for undo/redo.
+ *
+ * <p>Continuous typing or deleting within MERGE_TIME is merged into one action. The affected text
+ * is only copied into an action when the action stops being the latest one, or when it is undone.
+ * Text that fits into Latin-1 is kept as one byte per char.
+ *
+ * <p>The actions live in a ring array, oldest first. The text kept by all actions together is
+ * limited to a budget in chars; when it is exceeded the oldest groups are dropped.
+ *
+ * <p>The text of an action longer than MAX_UNDO_SIZE goes to an UndoJournal file instead, with its
+ * own budget. Deletions are spilled right away, since the buffer does not keep that much deleted
+ * text; insertions are spilled from the buffer when they would be recorded.
+ */
+class UndoStack {
+    private final AbstractTextBuffer _buffer;
+
+    private boolean _isBatchEdit;
+    /* for grouping batch operations */
+    private int _groupId;
+    /* where new entries should go, counted from the oldest entry */
+    private int _top;
+    /* timestamp for the previous edit operation */
+    private long _lastEditTime = -1L; // Initialize to -1 to distinguish from valid timestamps
+
+    /* ring of _size actions starting at _head; the length is a power of two */
+    private Action[] _stack = new Action[16];
+    private int _head;
+    private int _size;
+
+    /* chars kept by all actions together, and the limit for it */
+    private long _retainedChars;
+    private long _maxRetainedChars = DEFAULT_MAX_RETAINED_CHARS;
+    /* chars of all actions spilled to _journal, and the limit for it */
+    private long _spilledChars;
+    private long _maxSpilledChars = DEFAULT_MAX_SPILLED_CHARS;
+    /* number of groups dropped to stay within the budgets */
+    private int _trims;
+    /* created with the first spilled action */
+    private UndoJournal _journal;
+
+    static final int MAX_UNDO_SIZE = 50000; // Max chars per undo action kept on the heap (~100KB)
+
+    static final long DEFAULT_MAX_RETAINED_CHARS = 4 * 1024 * 1024;
+    static final long DEFAULT_MAX_SPILLED_CHARS = 256L * 1024 * 1024;
+
+    public final long MERGE_TIME = 1000000000;
+
+    // Pending selection snapshots (set by AbstractTextBuffer.markSelectionBefore/After)
+    private int _pendingSelBeforeStart = -1;
+    private int _pendingSelBeforeEnd = -1;
+    private boolean _pendingSelBeforeMode = false;
+
+    private int _pendingSelAfterStart = -1;
+    private int _pendingSelAfterEnd = -1;
+    private boolean _pendingSelAfterMode = false;
+
+    UndoStack(AbstractTextBuffer buffer) {
+        _buffer = buffer;
+    }
+
+    /**
+     * Undo the previous insert/delete operation
+     *
+     * @return The suggested position of the caret after the undo, or -1 if there is nothing to
+     *     undo
+     */
+    public int undo() {
+        if (canUndo()) {
+            Action lastUndo = get(_top - 1);
+            int group = lastUndo._group;
+            do {
+                Action action = get(_top - 1);
+                if (action._group != group) {
+                    break;
+                }
+
+                lastUndo = action;
+                try {
+                    action.undo();
+                } catch (IOException e) {
+                    // the journal lost the text; what is left of the history cannot be replayed
+                    clear();
+                    return -1;
+                }
+                _top--;
+            } while (canUndo());
+
+            // After undoing the group, tell the buffer what selection to restore:
+            // Use the 'before' snapshot of the last undone action (represents state prior to
+            // the group)
+            _buffer._lastUndoSelStart = lastUndo._selBeforeStart;
+            _buffer._lastUndoSelEnd = lastUndo._selBeforeEnd;
+            _buffer._lastUndoSelMode = lastUndo._selBeforeMode;
+
+            return lastUndo.findUndoPosition();
+        }
+        return -1;
+    }
+
+    /**
+     * Redo the previous insert/delete operation
+     *
+     * @return The suggested position of the caret after the redo, or -1 if there is nothing to
+     *     redo
+     */
+    public int redo() {
+        if (canRedo()) {
+            Action lastRedo = get(_top);
+            int group = lastRedo._group;
+            do {
+                Action action = get(_top);
+                if (action._group != group) {
+                    break;
+                }
+
+                lastRedo = action;
+                try {
+                    action.redo();
+                } catch (IOException e) {
+                    clear();
+                    return -1;
+                }
+                _top++;
+            } while (canRedo());
+
+            // After redoing the group, use the 'after' snapshot of the last redone action
+            _buffer._lastRedoSelStart = lastRedo._selAfterStart;
+            _buffer._lastRedoSelEnd = lastRedo._selAfterEnd;
+            _buffer._lastRedoSelMode = lastRedo._selAfterMode;
+
+            return lastRedo.findRedoPosition();
+        }
+        return -1;
+    }
+
+    // setters used by AbstractTextBuffer.markSelectionBefore/After
+    public void setPendingSelectionBefore(int s, int e, boolean mode) {
+        _pendingSelBeforeStart = s;
+        _pendingSelBeforeEnd = e;
+        _pendingSelBeforeMode = mode;
+    }
+
+    public void setPendingSelectionAfter(int s, int e, boolean mode) {
+        _pendingSelAfterStart = s;
+        _pendingSelAfterEnd = e;
+        _pendingSelAfterMode = mode;
+    }
+
+    /**
+     * extract common parts of captureInsert and captureDelete
+     *
+     * <p>Records an insert operation. Should be called before the insertion is actually done.
+     */
+    public void captureInsert(int start, int end, long time) {
+        int len = end - start;
+        boolean mergeSuccess = false;
+
+        if (canUndo()) {
+            Action action = get(_top - 1);
+            if (action instanceof InsertAction && canMerge(action, time) &&
+                    start == action._end &&
+                    (action._end - action._start + len <= MAX_UNDO_SIZE)) {
+                action._end += len;
+                mergeSuccess = true;
+            } else {
+                retain(action);
+            }
+        }
+
+        if (!mergeSuccess && len > MAX_UNDO_SIZE && !UndoJournal.isEnabled()) {
+            // the older actions could not be replayed across an edit that is not recorded
+            clear();
+        } else if (!mergeSuccess) {
+            InsertAction a = new InsertAction(start, end, _groupId);
+            // copy pending selection-before into action
+            a._selBeforeStart = _pendingSelBeforeStart;
+            a._selBeforeEnd = _pendingSelBeforeEnd;
+            a._selBeforeMode = _pendingSelBeforeMode;
+            // also copy pending selection-after (if editor already set it)
+            a._selAfterStart = _pendingSelAfterStart;
+            a._selAfterEnd = _pendingSelAfterEnd;
+            a._selAfterMode = _pendingSelAfterMode;
+
+            push(a);
+
+            if (!_isBatchEdit) {
+                _groupId++;
+            }
+        }
+        _lastEditTime = time;
+    }
+
+    /** Records a delete operation. Should be called before the deletion is actually done. */
+    public void captureDelete(int start, int end, long time) {
+        int len = end - start;
+        boolean mergeSuccess = false;
+
+        if (canUndo()) {
+            Action action = get(_top - 1);
+            if (action instanceof DeleteAction && canMerge(action, time) &&
+                    end == action._start &&
+                    (action._end - start <= MAX_UNDO_SIZE)) {
+                action._start = start;
+                mergeSuccess = true;
+            } else {
+                retain(action);
+            }
+        }
+
+        UndoJournal.Entry spilled = null;
+        if (!mergeSuccess && len > MAX_UNDO_SIZE) {
+            spilled = spill(start, end);
+        }
+
+        if (!mergeSuccess && len > MAX_UNDO_SIZE && spilled == null) {
+            clear();
+        } else if (!mergeSuccess) {
+            DeleteAction a = new DeleteAction(start, end, _groupId);
+            if (spilled != null) {
+                a._data = spilled;
+                _spilledChars += len;
+            }
+            a._selBeforeStart = _pendingSelBeforeStart;
+            a._selBeforeEnd = _pendingSelBeforeEnd;
+            a._selBeforeMode = _pendingSelBeforeMode;
+
+            a._selAfterStart = _pendingSelAfterStart;
+            a._selAfterEnd = _pendingSelAfterEnd;
+            a._selAfterMode = _pendingSelAfterMode;
+
+            push(a);
+
+            if (!_isBatchEdit) {
+                _groupId++;
+            }
+        }
+        _lastEditTime = time;
+    }
+
+    /*
+     * Only the latest action still reads its text from the buffer, so only it can grow. Once its
+     * text was recorded (it was undone and redone) the recorded text would go stale. A redo
+     * entry above it would be replayed at the wrong place.
+     */
+    private boolean canMerge(Action action, long time) {
+        return (time - _lastEditTime) < MERGE_TIME && action._data == null && !canRedo();
+    }
+
+    /* Records the text of action if it still reads it from the buffer */
+    private void retain(Action action) {
+        if (action._data == null) {
+            action.recordData();
+            if (action._data instanceof UndoJournal.Entry) {
+                _spilledChars += action.length();
+            } else {
+                _retainedChars += action.length();
+            }
+        }
+    }
+
+    /* Writes the text of the buffer in [start, end) to the journal. Returns null on failure. */
+    private UndoJournal.Entry spill(int start, int end) {
+        if (!UndoJournal.isEnabled()) {
+            return null;
+        }
+        if (_journal == null) {
+            _journal = new UndoJournal();
+        }
+        try {
+            return _journal.append(_buffer, start, end);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Action get(int index) {
+        return _stack[(_head + index) & (_stack.length - 1)];
+    }
+
+    private void push(Action action) {
+        trimStack();
+        if (_size == _stack.length) {
+            Action[] stack = new Action[_stack.length * 2];
+            for (int i = 0; i < _size; ++i) {
+                stack[i] = get(i);
+            }
+            _stack = stack;
+            _head = 0;
+        }
+        _stack[(_head + _size) & (_stack.length - 1)] = action;
+        _size++;
+        _top++;
+        trimOldest();
+    }
+
+    /* Drops the redo entries */
+    private void trimStack() {
+        while (_size > _top) {
+            _size--;
+            int index = (_head + _size) & (_stack.length - 1);
+            forget(_stack[index]);
+            _stack[index] = null;
+        }
+    }
+
+    /* Drops the oldest groups until the budgets are met. The latest group is always kept. */
+    private void trimOldest() {
+        while (_retainedChars > _maxRetainedChars || _spilledChars > _maxSpilledChars) {
+            int group = get(0)._group;
+            int count = 1;
+            while (count < _top && get(count)._group == group) {
+                count++;
+            }
+            if (count >= _top) {
+                return;
+            }
+            for (int i = 0; i < count; ++i) {
+                forget(_stack[_head]);
+                _stack[_head] = null;
+                _head = (_head + 1) & (_stack.length - 1);
+            }
+            _size -= count;
+            _top -= count;
+            _trims++;
+        }
+    }
+
+    private void forget(Action action) {
+        if (action._data instanceof UndoJournal.Entry) {
+            _journal.release((UndoJournal.Entry) action._data);
+            _spilledChars -= action.length();
+        } else if (action._data != null) {
+            _retainedChars -= action.length();
+        }
+    }
+
+    /** Drops the whole history */
+    public void clear() {
+        for (int i = 0; i < _size; ++i) {
+            int index = (_head + i) & (_stack.length - 1);
+            forget(_stack[index]);
+            _stack[index] = null;
+        }
+        _head = 0;
+        _size = 0;
+        _top = 0;
+        _retainedChars = 0;
+        _spilledChars = 0;
+    }
+
+    /** Drops the whole history and closes the journal files */
+    void close() {
+        clear();
+        if (_journal != null) {
+            _journal.close();
+            _journal = null;
+        }
+    }
+
+    public final boolean canUndo() {
+        return _top > 0;
+    }
+
+    public final boolean canRedo() {
+        return _top < _size;
+    }
+
+    /** Sets how many chars of deleted and inserted text the history may keep */
+    public void setMaxRetainedChars(long chars) {
+        _maxRetainedChars = chars;
+        trimOldest();
+    }
+
+    public long getMaxRetainedChars() {
+        return _maxRetainedChars;
+    }
+
+    /** Returns the number of undo and redo entries */
+    public int getEntryCount() {
+        return _size;
+    }
+
+    public long getRetainedChars() {
+        return _retainedChars;
+    }
+
+    /** Sets how many chars of text the history may keep in the UndoJournal */
+    public void setMaxSpilledChars(long chars) {
+        _maxSpilledChars = chars;
+        trimOldest();
+    }
+
+    public long getMaxSpilledChars() {
+        return _maxSpilledChars;
+    }
+
+    public long getSpilledChars() {
+        return _spilledChars;
+    }
+
+    /** Returns how many groups were dropped to stay within the budget */
+    public int getTrimCount() {
+        return _trims;
+    }
+
+    public boolean isBatchEdit() {
+        return _isBatchEdit;
+    }
+
+    public void beginBatchEdit() {
+        _isBatchEdit = true;
+    }
+
+    public void endBatchEdit() {
+        _isBatchEdit = false;
+        _groupId++;
+    }
+
+    private abstract class Action {
+        /* Start position of the edit */
+        public int _start;
+        /* End position of the edit */
+        public int _end;
+        /* Contents of the affected segment, see pack() */
+        public Object _data;
+        /* Group ID. Commands of the same group are undo/redo as a unit */
+        public int _group;
+        /* 750ms in nanoseconds */
+        public final long MERGE_TIME = 750000000L; // Fixed to 750ms as per comment
+
+        // Selection snapshot BEFORE this action (or group)
+        public int _selBeforeStart = -1;
+        public int _selBeforeEnd = -1;
+        public boolean _selBeforeMode = false;
+
+        // Selection snapshot AFTER this action
+        public int _selAfterStart = -1;
+        public int _selAfterEnd = -1;
+        public boolean _selAfterMode = false;
+
+        public abstract void undo() throws IOException;
+
+        public abstract void redo() throws IOException;
+
+        /* Populates _data with the affected text */
+        public abstract void recordData();
+
+        public abstract int findUndoPosition();
+
+        public abstract int findRedoPosition();
+
+        public int length() {
+            return _end - _start;
+        }
+
+        /**
+         * Attempts to merge in an edit. This will only be successful if the new edit is
+         * continuous. See {@link UndoStack} for the requirements of a continuous edit.
+         *
+         * @param start Start position of the new edit
+         * @param length Length of the newly edited segment
+         * @param time Timestamp when the new edit was made. There are no restrictions on the
+         *     units used, as long as it is consistently used in the whole program
+         * @return Whether the merge was successful
+         */
+        public abstract boolean merge(int start, int end, long time);
+    }
+
+    private class InsertAction extends Action {
+        /** Corresponds to an insertion of text of size length just before start position. */
+        public InsertAction(int start, int end, int group) {
+            this._start = start;
+            this._end = end;
+            this._group = group;
+        }
+
+        @Override
+        public boolean merge(int start, int end, long time) {
+            if (_lastEditTime < 0) {
+                return false;
+            }
+
+            if ((time - _lastEditTime) < MERGE_TIME
+                    && start == _end) {
+                _end += end - start;
+                trimStack();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void recordData() {
+            if (length() > MAX_UNDO_SIZE) {
+                _data = spill(_start, _end);
+            }
+            if (_data == null) {
+                // TODO handle memory allocation failure
+                _data = pack(_buffer.substring(_start, _end));
+            }
+        }
+
+        @Override
+        public void undo() {
+            if (_data == null) {
+                retain(this);
+                _buffer.undoLastInsert(_start, _end);
+            } else {
+                // dummy timestamp of 0
+                _buffer.delete(_start, _end, false, 0);
+            }
+        }
+
+        @Override
+        public void redo() throws IOException {
+            // dummy timestamp of 0
+            _buffer.insert(_start, unpack(_data), false, 0);
+        }
+
+        @Override
+        public int findRedoPosition() {
+            return _end;
+        }
+
+        @Override
+        public int findUndoPosition() {
+            return _start;
+        }
+    }
+
+    private class DeleteAction extends Action {
+        /**
+         * Corresponds to an deletion of text of size length starting from start position,
+         * inclusive.
+         */
+        public DeleteAction(int start, int end, int group) {
+            this._start = start;
+            this._end = end;
+            this._group = group;
+        }
+
+        @Override
+        public boolean merge(int start, int end, long time) {
+            if (_lastEditTime < 0) {
+                return false;
+            }
+
+            if ((time - _lastEditTime) < MERGE_TIME
+                    && end == _start) {
+                _start = start;
+                trimStack();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void recordData() {
+            // TODO handle memory allocation failure
+            _data = pack(_buffer.getDeletedText(_start, _end));
+        }
+
+        @Override
+        public void undo() throws IOException {
+            if (_data == null) {
+                retain(this);
+                _buffer.undoLastDelete(_start, unpack(_data));
+            } else {
+                // dummy timestamp of 0
+                _buffer.insert(_start, unpack(_data), false, 0);
+            }
+        }
+
+        @Override
+        public void redo() {
+            // dummy timestamp of 0
+            _buffer.delete(_start, _end, false, 0);
+        }
+
+        @Override
+        public int findRedoPosition() {
+            return _start;
+        }
+
+        @Override
+        public int findUndoPosition() {
+            return _end;
+        }
+    } // end inner class
+
+    /* Text that fits into Latin-1 is stored as a byte[], anything else as the String itself */
+    private static Object pack(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; ++i) {
+            if (text.charAt(i) > 0xFF) {
+                return text;
+            }
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    private String unpack(Object data) throws IOException {
+        if (data instanceof String) {
+            return (String) data;
+        }
+        if (data instanceof UndoJournal.Entry) {
+            return _journal.read((UndoJournal.Entry) data);
+        }
+        byte[] bytes = (byte[]) data;
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i] = (char) (bytes[i] & 0xFF);
+        }
+        return new String(chars);
+    }
+}
@@ -35,18 +35,56 @@
 
 package modder.hub.editor.highlight;
 
-/** Candidate: Represents a potential styled text region before overlap filtering. */
-public class Candidate {
-    int start, end; // Character range
-    String style; // Style name
-    int priority; // Rule priority
-    int length; // Computed length for sorting
-
-    public Candidate(int s, int e, String st, int p) {
-        start = s;
-        end = e;
-        style = st;
-        priority = p;
-        length = e - s;
+import java.util.Arrays;
+
+/**
+ * CandidateList: Candidates packed into one int array, four ints each. Kept and cleared from line
+ * to line, so tokenizing allocates no objects per candidate.
+ */
+final class CandidateList {
+    static final int START = 0;
+    static final int END = 1;
+    static final int STYLE = 2; // style id, or color once chosen as token
+    static final int PRIORITY = 3;
+    static final int SIZE = 4;
+
+    int[] data = new int[64 * SIZE];
+    int size;
+
+    void clear() {
+        size = 0;
+    }
+
+    void add(int start, int end, int style, int priority) {
+        int at = size * SIZE;
+        if (at + SIZE > data.length) data = Arrays.copyOf(data, data.length * 2);
+        data[at + START] = start;
+        data[at + END] = end;
+        data[at + STYLE] = style;
+        data[at + PRIORITY] = priority;
+        size++;
+    }
+
+    void addAll(CandidateList other) {
+        int length = (size + other.size) * SIZE;
+        if (length > data.length) data = Arrays.copyOf(data, Math.max(length, data.length * 2));
+        System.arraycopy(other.data, 0, data, size * SIZE, other.size * SIZE);
+        size += other.size;
+    }
+
+    int start(int i) {
+        return data[i * SIZE + START];
+    }
+
+    int end(int i) {
+        return data[i * SIZE + END];
+    }
+
+    int style(int i) {
+        return data[i * SIZE + STYLE];
+    }
+
+    int priority(int i) {
+        return data[i * SIZE + PRIORITY];
     }
 }
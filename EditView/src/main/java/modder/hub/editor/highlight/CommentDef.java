@@ -35,13 +35,19 @@
 
 package modder.hub.editor.highlight;
 
-// Comment detection token
+// Comment detection token, also used for multi-line strings
 public class CommentDef {
     final String startsWith; // token that starts comment
-    final String endsWith; // optional end token (for block comments on same line)
+    final String endsWith; // optional end token (block comments may span lines)
+    final String style; // style of the whole span
 
     CommentDef(String s, String e) {
+        this(s, e, "comment");
+    }
+
+    CommentDef(String s, String e, String st) {
         this.startsWith = s;
         this.endsWith = e;
+        this.style = st;
     }
 }
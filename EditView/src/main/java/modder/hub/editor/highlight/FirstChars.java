@@ -0,0 +1,442 @@
+/*
+* MH-TextEditor - An Advanced and optimized TextEditor for android
+* Copyright 2025, developer-krushna
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are
+* met:
+*
+*     * Redistributions of source code must retain the above copyright
+* notice, this list of conditions and the following disclaimer.
+*     * Redistributions in binary form must reproduce the above
+* copyright notice, this list of conditions and the following disclaimer
+* in the documentation and/or other materials provided with the
+* distribution.
+*     * Neither the name of developer-krushna nor the names of its
+* contributors may be used to endorse or promote products derived from
+* this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+*     Please contact Krushna by email modder-hub@zohomail.in if you need
+*     additional information or have any questions
+*/
+
+package modder.hub.editor.highlight;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+/**
+ * FirstChars: works out which chars a match of a rule's regex can start with, so the engine only
+ * tries the rule where the line has one of them. The set is a superset: lookarounds and anchors
+ * are skipped, and a backreference counts as any char. It also finds chars every match contains,
+ * like the '.' and 'm' of ".method", so lines without them skip the rule. That set may miss some.
+ *
+ * <p>Bits 0-127 stand for the ASCII chars, bit {@link #NON_ASCII} for all the other chars.
+ */
+final class FirstChars {
+    static final int NON_ASCII = 128;
+
+    private static final int FLAGS_NOT_FOLLOWED = Pattern.CASE_INSENSITIVE
+            | Pattern.COMMENTS
+            | Pattern.LITERAL
+            | Pattern.CANON_EQ
+            | Pattern.UNICODE_CASE
+            | Pattern.UNICODE_CHARACTER_CLASS;
+
+    private final String regex;
+    private int pos;
+
+    // What one part of the regex can start with, if it can match nothing, and the chars it
+    // always matches
+    private static final class Part {
+        final BitSet chars;
+        boolean empty;
+        final BitSet required = new BitSet();
+
+        Part(BitSet chars, boolean empty) {
+            this.chars = chars;
+            this.empty = empty;
+        }
+    }
+
+    private FirstChars(String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * The chars a non-empty match of pattern can start with. Returns null if that can be any char
+     * or the regex uses syntax not followed here.
+     */
+    static BitSet of(Pattern pattern) {
+        Part part = parse(pattern);
+        if (part == null || part.chars.cardinality() > NON_ASCII) return null;
+        return part.chars;
+    }
+
+    /** The chars every match of pattern contains, empty if none are known. */
+    static BitSet requiredOf(Pattern pattern) {
+        Part part = parse(pattern);
+        return part == null ? new BitSet() : part.required;
+    }
+
+    // null if the regex uses syntax not followed here
+    private static Part parse(Pattern pattern) {
+        if ((pattern.flags() & FLAGS_NOT_FOLLOWED) != 0) return null;
+        FirstChars parser = new FirstChars(pattern.pattern());
+        try {
+            Part part = parser.alternation();
+            return parser.pos == parser.regex.length() ? part : null;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private Part alternation() {
+        Part result = sequence();
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            Part branch = sequence();
+            result.chars.or(branch.chars);
+            result.empty |= branch.empty;
+            // only the chars all branches have
+            result.required.and(branch.required);
+        }
+        return result;
+    }
+
+    private Part sequence() {
+        Part result = new Part(new BitSet(), true);
+        while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+            Part atom = atom();
+            if (quantifier()) {
+                atom.empty = true;
+                atom.required.clear();
+            }
+            result.required.or(atom.required);
+            // the first char comes from the first atom that does not match nothing
+            if (result.empty) {
+                result.chars.or(atom.chars);
+                result.empty = atom.empty;
+            }
+        }
+        return result;
+    }
+
+    private Part atom() {
+        char c = regex.charAt(pos++);
+        switch (c) {
+            case '(':
+                return group();
+            case '[':
+                return literal(charClass());
+            case '.':
+                return new Part(all(), false);
+            case '^':
+            case '$':
+                return new Part(new BitSet(), true);
+            case '\\':
+                return escape();
+            default:
+                return literal(single(c));
+        }
+    }
+
+    // Skips a quantifier after an atom. Returns true if it lets the atom match nothing.
+    private boolean quantifier() {
+        if (pos >= regex.length()) return false;
+        boolean zero;
+        char c = regex.charAt(pos);
+        if (c == '*' || c == '?') {
+            zero = true;
+            pos++;
+        } else if (c == '+') {
+            zero = false;
+            pos++;
+        } else if (c == '{') {
+            int close = regex.indexOf('}', pos);
+            int comma = regex.indexOf(',', pos);
+            int minEnd = comma >= 0 && comma < close ? comma : close;
+            zero = Integer.parseInt(regex.substring(pos + 1, minEnd).trim()) == 0;
+            pos = close + 1;
+        } else {
+            return false;
+        }
+        // lazy or possessive
+        if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) pos++;
+        return zero;
+    }
+
+    private Part group() {
+        boolean lookaround = false;
+        if (regex.charAt(pos) == '?') {
+            pos++;
+            char c = regex.charAt(pos);
+            if (c == ':' || c == '>') {
+                pos++;
+            } else if (c == '=' || c == '!') {
+                lookaround = true;
+                pos++;
+            } else if (c == '<') {
+                char next = regex.charAt(pos + 1);
+                if (next == '=' || next == '!') {
+                    lookaround = true;
+                    pos += 2;
+                } else {
+                    // named group
+                    pos = regex.indexOf('>', pos) + 1;
+                }
+            } else {
+                // inline flags, alone or for the group
+                int start = pos;
+                while (Character.isLetter(regex.charAt(pos)) || regex.charAt(pos) == '-') pos++;
+                String flags = regex.substring(start, pos);
+                int off = flags.indexOf('-');
+                String on = off >= 0 ? flags.substring(0, off) : flags;
+                for (int i = 0; i < on.length(); i++) {
+                    if ("ixucU".indexOf(on.charAt(i)) >= 0) {
+                        throw new IllegalArgumentException("flag " + on.charAt(i));
+                    }
+                }
+                if (regex.charAt(pos) == ')') {
+                    pos++;
+                    return new Part(new BitSet(), true);
+                }
+                pos++; // ':'
+            }
+        }
+        Part inner = alternation();
+        if (regex.charAt(pos) != ')') throw new IllegalArgumentException("unclosed group");
+        pos++;
+        // a lookaround matches no chars of its own
+        return lookaround ? new Part(new BitSet(), true) : inner;
+    }
+
+    // After the backslash outside a class
+    private Part escape() {
+        char c = regex.charAt(pos);
+        switch (c) {
+            case 'b':
+            case 'B':
+            case 'A':
+            case 'z':
+            case 'Z':
+                pos++;
+                return new Part(new BitSet(), true);
+            case 'Q': {
+                int end = regex.indexOf("\\E", pos + 1);
+                if (end < 0) end = regex.length();
+                String quoted = regex.substring(pos + 1, end);
+                pos = Math.min(end + 2, regex.length());
+                if (quoted.isEmpty()) return new Part(new BitSet(), true);
+                Part part = new Part(single(quoted.charAt(0)), false);
+                for (int i = 0; i < quoted.length(); i++) {
+                    char q = quoted.charAt(i);
+                    range(part.required, q, q);
+                }
+                return part;
+            }
+            case 'k':
+                // named backreference
+                pos = regex.indexOf('>', pos) + 1;
+                return new Part(all(), true);
+            default:
+                if (c >= '1' && c <= '9') {
+                    // backreference, it can be anything the group matched
+                    while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) pos++;
+                    return new Part(all(), true);
+                }
+                return literal(escapedChars());
+        }
+    }
+
+    // After a backslash that stands for one char or a class of chars
+    private BitSet escapedChars() {
+        char c = regex.charAt(pos++);
+        switch (c) {
+            case 'd':
+                return digit();
+            case 'D':
+                return complement(digit());
+            case 'w':
+                return word();
+            case 'W':
+                return complement(word());
+            case 's':
+                return space();
+            case 'S':
+                return complement(space());
+            default:
+                int ch = escapedChar(c);
+                if (ch < 0) throw new IllegalArgumentException("escape " + c);
+                return single(ch);
+        }
+    }
+
+    // The char an escape stands for, c is the char after the backslash. Returns -1 for escapes
+    // that are not a single char.
+    private int escapedChar(char c) {
+        switch (c) {
+            case 't':
+                return '\t';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            case 'a':
+                return '\u0007';
+            case 'e':
+                return '\u001B';
+            case 'c':
+                return regex.charAt(pos++) ^ 64;
+            case '0': {
+                int value = 0;
+                for (int i = 0; i < 3 && pos < regex.length(); i++) {
+                    char d = regex.charAt(pos);
+                    if (d < '0' || d > '7') break;
+                    value = value * 8 + (d - '0');
+                    pos++;
+                }
+                return value;
+            }
+            case 'x':
+                if (regex.charAt(pos) == '{') {
+                    int close = regex.indexOf('}', pos);
+                    int value = Integer.parseInt(regex.substring(pos + 1, close), 16);
+                    pos = close + 1;
+                    return value;
+                }
+                pos += 2;
+                return Integer.parseInt(regex.substring(pos - 2, pos), 16);
+            case 'u':
+                pos += 4;
+                return Integer.parseInt(regex.substring(pos - 4, pos), 16);
+            default:
+                if (Character.isLetterOrDigit(c)) return -1;
+                return c;
+        }
+    }
+
+    // After the opening bracket
+    private BitSet charClass() {
+        BitSet set = new BitSet();
+        boolean negate = false;
+        if (regex.charAt(pos) == '^') {
+            negate = true;
+            pos++;
+        }
+        boolean first = true;
+        while (true) {
+            char c = regex.charAt(pos);
+            if (c == ']' && !first) {
+                pos++;
+                break;
+            }
+            first = false;
+            if (c == '[' || (c == '&' && regex.charAt(pos + 1) == '&')) {
+                throw new IllegalArgumentException("nested class");
+            }
+            int low = classChar(set);
+            if (low < 0) continue;
+            if (regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                pos++;
+                int high = classChar(set);
+                if (high < 0) throw new IllegalArgumentException("range");
+                range(set, low, high);
+            } else {
+                range(set, low, low);
+            }
+        }
+        return negate ? complement(set) : set;
+    }
+
+    // Reads one char of a class. Returns it, or adds a class escape like \d to set and returns -1.
+    private int classChar(BitSet set) {
+        char c = regex.charAt(pos);
+        if (c != '\\') {
+            int cp = regex.codePointAt(pos);
+            pos += Character.charCount(cp);
+            return cp;
+        }
+        pos++;
+        char e = regex.charAt(pos);
+        if ("dDwWsS".indexOf(e) >= 0) {
+            set.or(escapedChars());
+            return -1;
+        }
+        pos++;
+        int ch = escapedChar(e);
+        if (ch < 0) throw new IllegalArgumentException("escape " + e);
+        return ch;
+    }
+
+    // A part matching one of chars, which it requires if that is a single char
+    private static Part literal(BitSet chars) {
+        Part part = new Part(chars, false);
+        if (chars.cardinality() == 1) part.required.or(chars);
+        return part;
+    }
+
+    private static BitSet single(int c) {
+        return range(new BitSet(), c, c);
+    }
+
+    private static BitSet range(BitSet set, int low, int high) {
+        if (low < NON_ASCII) set.set(low, Math.min(high, NON_ASCII - 1) + 1);
+        if (high >= NON_ASCII) set.set(NON_ASCII);
+        return set;
+    }
+
+    private static BitSet all() {
+        BitSet set = new BitSet();
+        set.set(0, NON_ASCII + 1);
+        return set;
+    }
+
+    // The chars not in set; any non-ASCII char may still be one of them
+    private static BitSet complement(BitSet set) {
+        set.flip(0, NON_ASCII);
+        set.set(NON_ASCII);
+        return set;
+    }
+
+    // \d, \w and \s match Unicode digits, letters and spaces with ICU, as on Android, and only
+    // ASCII ones on a desktop JVM; they get the non-ASCII bit so both are covered
+    private static BitSet digit() {
+        BitSet set = range(new BitSet(), '0', '9');
+        set.set(NON_ASCII);
+        return set;
+    }
+
+    private static BitSet word() {
+        BitSet set = new BitSet();
+        range(set, 'a', 'z');
+        range(set, 'A', 'Z');
+        range(set, '0', '9');
+        range(set, '_', '_');
+        set.set(NON_ASCII);
+        return set;
+    }
+
+    private static BitSet space() {
+        BitSet set = new BitSet();
+        range(set, '\t', '\r');
+        range(set, ' ', ' ');
+        set.set(NON_ASCII);
+        return set;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+* MH-TextEditor - An Advanced and optimized TextEditor for android
+* Copyright 2025, developer-krushna
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are
+* met:
+*
+*     * Redistributions of source code must retain the above copyright
+* notice, this list of conditions and the following disclaimer.
+*     * Redistributions in binary form must reproduce the above
+* copyright notice, this list of conditions and the following disclaimer
+* in the documentation and/or other materials provided with the
+* distribution.
+*     * Neither the name of developer-krushna nor the names of its
+* contributors may be used to endorse or promote products derived from
+* this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+*     Please contact Krushna by email modder-hub@zohomail.in if you need
+*     additional information or have any questions
+*/
+
+package modder.hub.editor.highlight;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * KeywordSet: matches a keyword rule with a trie walk instead of its regex. The rule's boundaries
+ * stay the same: a "keywords" array rule matches after the line start, whitespace or '(' and not
+ * before [A-Za-z0-9_/$.], a "\b(?:kw|kw)\b" regex rule between \b word boundaries. Of the keywords
+ * matching at an index the one listed first wins, as in the regex alternation.
+ *
+ * <p>Word boundaries next to non-ASCII chars depend on the platform's regex flavor, there the
+ * match is left to the rule's regex.
+ */
+final class KeywordSet {
+    /** matchAt: no keyword matches at the index */
+    static final int NO_MATCH = -1;
+    /** matchAt: the rule's regex has to decide */
+    static final int UNSURE = -2;
+
+    /** Bounded like the regex built for a "keywords" array */
+    static final int AFTER_SPACE = 0;
+    /** Bounded by \b on both sides */
+    static final int WORD = 1;
+
+    private static final String WORD_REGEX_START = "\\b(?:";
+    private static final String WORD_GROUP_REGEX_START = "\\b(";
+    private static final String WORD_REGEX_END = ")\\b";
+
+    private final int bounds;
+
+    // trie: the children of node n are children[n], sorted by their chars labels[n]; words[n] is
+    // the list index of the keyword ending at n, -1 if none
+    private char[][] labels = new char[1][0];
+    private int[][] children = new int[1][0];
+    private int[] words = {-1};
+    private int nodeCount = 1;
+
+    /** keywords in the order the rule lists them */
+    KeywordSet(List<String> keywords, int bounds) {
+        this.bounds = bounds;
+        for (int k = 0; k < keywords.size(); k++) add(keywords.get(k), k);
+    }
+
+    /**
+     * A keyword set for a regex of the form \b(?:kw|kw|...)\b with plain word alternatives, null
+     * for any other regex.
+     */
+    static KeywordSet fromRegex(String regex) {
+        String alternatives;
+        if (regex.startsWith(WORD_REGEX_START) && regex.endsWith(WORD_REGEX_END)) {
+            alternatives = regex.substring(WORD_REGEX_START.length(),
+                    regex.length() - WORD_REGEX_END.length());
+        } else if (regex.startsWith(WORD_GROUP_REGEX_START) && regex.endsWith(WORD_REGEX_END)) {
+            alternatives = regex.substring(WORD_GROUP_REGEX_START.length(),
+                    regex.length() - WORD_REGEX_END.length());
+        } else {
+            return null;
+        }
+        List<String> keywords = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= alternatives.length(); i++) {
+            if (i < alternatives.length() && alternatives.charAt(i) != '|') {
+                char c = alternatives.charAt(i);
+                // anything else may be regex syntax
+                if (!isAsciiWordChar(c) && c != '-') return null;
+                continue;
+            }
+            if (i == start) return null;
+            keywords.add(alternatives.substring(start, i));
+            start = i + 1;
+        }
+        return new KeywordSet(keywords, WORD);
+    }
+
+    /**
+     * End of the keyword matching at index i of line, NO_MATCH if none does, UNSURE if the regex
+     * has to tell.
+     */
+    int matchAt(CharSequence line, int i) {
+        int node = child(0, line.charAt(i));
+        if (node < 0) return NO_MATCH;
+        int before = leftBound(line, i);
+        if (before != 0) return before;
+
+        int best = -1;
+        int bestEnd = NO_MATCH;
+        int L = line.length();
+        for (int e = i + 1; node >= 0; e++) {
+            int word = words[node];
+            if (word >= 0 && (best < 0 || word < best)) {
+                int after = rightBound(line, e);
+                if (after == UNSURE) return UNSURE;
+                if (after == 0) {
+                    best = word;
+                    bestEnd = e;
+                }
+            }
+            if (e >= L) break;
+            node = child(node, line.charAt(e));
+        }
+        return bestEnd;
+    }
+
+    // 0 if a keyword may start at i, NO_MATCH or UNSURE otherwise
+    private int leftBound(CharSequence line, int i) {
+        if (bounds == AFTER_SPACE) {
+            // (?<=^)|(?<=\s)|(?<=\()
+            if (i == 0) return 0;
+            char before = line.charAt(i - 1);
+            if (before == '(' || isAsciiSpace(before)) return 0;
+            return before >= 128 ? UNSURE : NO_MATCH;
+        }
+        char first = line.charAt(i);
+        if (first >= 128) return UNSURE;
+        boolean wordBefore = false;
+        if (i > 0) {
+            char before = line.charAt(i - 1);
+            if (before >= 128) return UNSURE;
+            wordBefore = isAsciiWordChar(before);
+        }
+        return wordBefore != isAsciiWordChar(first) ? 0 : NO_MATCH;
+    }
+
+    // 0 if a keyword may end at e, NO_MATCH or UNSURE otherwise
+    private int rightBound(CharSequence line, int e) {
+        if (bounds == AFTER_SPACE) {
+            // (?![A-Za-z0-9_/$\.])
+            if (e == line.length()) return 0;
+            char after = line.charAt(e);
+            return isAsciiWordChar(after) || after == '/' || after == '$' || after == '.'
+                    ? NO_MATCH
+                    : 0;
+        }
+        char last = line.charAt(e - 1);
+        if (last >= 128) return UNSURE;
+        if (e == line.length()) return isAsciiWordChar(last) ? 0 : NO_MATCH;
+        char after = line.charAt(e);
+        if (after >= 128) return UNSURE;
+        return isAsciiWordChar(last) != isAsciiWordChar(after) ? 0 : NO_MATCH;
+    }
+
+    private static boolean isAsciiWordChar(char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')
+                || c == '_';
+    }
+
+    // \s of java.util.regex
+    private static boolean isAsciiSpace(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    private int child(int node, char c) {
+        int k = Arrays.binarySearch(labels[node], c);
+        return k >= 0 ? children[node][k] : -1;
+    }
+
+    private void add(String keyword, int index) {
+        if (keyword.isEmpty()) return;
+        int node = 0;
+        for (int i = 0; i < keyword.length(); i++) {
+            char c = keyword.charAt(i);
+            int next = child(node, c);
+            if (next < 0) next = addChild(node, c);
+            node = next;
+        }
+        // a keyword listed twice keeps its first place
+        if (words[node] < 0) words[node] = index;
+    }
+
+    private int addChild(int node, char c) {
+        if (nodeCount == words.length) {
+            int capacity = nodeCount * 2;
+            labels = Arrays.copyOf(labels, capacity);
+            children = Arrays.copyOf(children, capacity);
+            words = Arrays.copyOf(words, capacity);
+        }
+        int created = nodeCount++;
+        labels[created] = new char[0];
+        children[created] = new int[0];
+        words[created] = -1;
+
+        char[] l = labels[node];
+        int[] ch = children[node];
+        int k = -Arrays.binarySearch(l, c) - 1;
+        char[] nl = new char[l.length + 1];
+        int[] nch = new int[ch.length + 1];
+        System.arraycopy(l, 0, nl, 0, k);
+        System.arraycopy(ch, 0, nch, 0, k);
+        nl[k] = c;
+        nch[k] = created;
+        System.arraycopy(l, k, nl, k + 1, l.length - k);
+        System.arraycopy(ch, k, nch, k + 1, ch.length - k);
+        labels[node] = nl;
+        children[node] = nch;
+        return created;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+* MH-TextEditor - An Advanced and optimized TextEditor for android
+* Copyright 2025, developer-krushna
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are
+* met:
+*
+*     * Redistributions of source code must retain the above copyright
+* notice, this list of conditions and the following disclaimer.
+*     * Redistributions in binary form must reproduce the above
+* copyright notice, this list of conditions and the following disclaimer
+* in the documentation and/or other materials provided with the
+* distribution.
+*     * Neither the name of developer-krushna nor the names of its
+* contributors may be used to endorse or promote products derived from
+* this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+*     Please contact Krushna by email modder-hub@zohomail.in if you need
+*     additional information or have any questions
+*/
+
+package modder.hub.editor.highlight;
+
+import java.util.Arrays;
+
+/**
+ * LineCache: the tokens and end-of-line lexer state of every line, stored as a gap array that runs
+ * parallel to the lines of the text. Lines inserted or removed by an edit open or close slots at
+ * the gap, so the entries below move with their lines instead of being dropped, and only the
+ * touched lines lose their tokens.
+ *
+ * <p>Line numbers are 1-based like TextBuffer's. Not thread safe, the engine locks around it.
+ */
+class LineCache {
+    private static final int MIN_CAPACITY = 1024;
+
+    private LineResult[] results = new LineResult[MIN_CAPACITY];
+    private int[] states = new int[MIN_CAPACITY];
+    // slots [gapStart, gapEnd) hold no line
+    private int gapStart = 0;
+    private int gapEnd = MIN_CAPACITY;
+
+    // most tokenized lines kept; beyond it the lines far from the last one stored are dropped
+    private final int maxResults;
+    private int resultCount;
+
+    LineCache(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    /** Number of lines tracked */
+    int size() {
+        return results.length - (gapEnd - gapStart);
+    }
+
+    /** Returns the cached tokens of line, null if there are none */
+    LineResult get(int line) {
+        return line >= 1 && line <= size() ? results[slot(line)] : null;
+    }
+
+    void put(int line, LineResult result) {
+        ensureSize(line);
+        int slot = slot(line);
+        if (results[slot] == null && result != null) {
+            resultCount++;
+        } else if (results[slot] != null && result == null) {
+            resultCount--;
+        }
+        results[slot] = result;
+        if (resultCount > maxResults) {
+            trim(line);
+        }
+    }
+
+    /** Returns the lexer state line ends in, 0 for lines never set */
+    int getState(int line) {
+        return line >= 1 && line <= size() ? states[slot(line)] : 0;
+    }
+
+    void setState(int line, int state) {
+        ensureSize(line);
+        states[slot(line)] = state;
+    }
+
+    /**
+     * oldLineCount lines from startLine were replaced with newLineCount lines. The new lines have
+     * no tokens and state 0, the lines below keep theirs.
+     */
+    void replaceLines(int startLine, int oldLineCount, int newLineCount) {
+        ensureSize(startLine + oldLineCount - 1);
+        moveGap(startLine - 1);
+        for (int i = gapEnd; i < gapEnd + oldLineCount; i++) {
+            if (results[i] != null) {
+                resultCount--;
+            }
+        }
+        clean(gapEnd, gapEnd + oldLineCount);
+        gapEnd += oldLineCount;
+        if (gapEnd - gapStart < newLineCount) {
+            grow(newLineCount);
+        }
+        // slots leaving the gap are always clean
+        gapStart += newLineCount;
+    }
+
+    /** Drops all tokens and states */
+    void clear() {
+        results = new LineResult[MIN_CAPACITY];
+        states = new int[MIN_CAPACITY];
+        gapStart = 0;
+        gapEnd = MIN_CAPACITY;
+        resultCount = 0;
+    }
+
+    /** Drops all tokens, the states stay */
+    void clearResults() {
+        Arrays.fill(results, null);
+        resultCount = 0;
+    }
+
+    private int slot(int line) {
+        int index = line - 1;
+        return index < gapStart ? index : index + (gapEnd - gapStart);
+    }
+
+    // Adds empty lines at the end until line exists
+    private void ensureSize(int line) {
+        int missing = line - size();
+        if (missing <= 0) {
+            return;
+        }
+        moveGap(size());
+        if (gapEnd - gapStart < missing) {
+            grow(missing);
+        }
+        gapStart += missing;
+    }
+
+    private void moveGap(int index) {
+        int gap = gapEnd - gapStart;
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(results, index, results, index + gap, count);
+            System.arraycopy(states, index, states, index + gap, count);
+            clean(index, Math.min(gapStart, index + gap));
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(results, gapEnd, results, gapStart, count);
+            System.arraycopy(states, gapEnd, states, gapStart, count);
+            clean(Math.max(gapEnd, index), index + gap);
+        }
+        gapStart = index;
+        gapEnd = index + gap;
+    }
+
+    // Clears the slots [from, to) that became part of the gap
+    private void clean(int from, int to) {
+        Arrays.fill(results, from, to, null);
+        Arrays.fill(states, from, to, 0);
+    }
+
+    // Makes the gap hold at least needed slots
+    private void grow(int needed) {
+        int length = results.length;
+        int capacity = Math.max(length + needed, length + (length >> 1));
+        int tail = length - gapEnd;
+        int newGapEnd = capacity - tail;
+        LineResult[] newResults = new LineResult[capacity];
+        int[] newStates = new int[capacity];
+        System.arraycopy(results, 0, newResults, 0, gapStart);
+        System.arraycopy(states, 0, newStates, 0, gapStart);
+        System.arraycopy(results, gapEnd, newResults, newGapEnd, tail);
+        System.arraycopy(states, gapEnd, newStates, newGapEnd, tail);
+        results = newResults;
+        states = newStates;
+        gapEnd = newGapEnd;
+    }
+
+    // Keeps only the tokens of the maxResults / 2 lines around line
+    private void trim(int line) {
+        int keepFrom = Math.max(1, line - maxResults / 4);
+        int keepTo = Math.min(size(), keepFrom + maxResults / 2 - 1);
+        for (int l = 1; l <= size(); l++) {
+            if (l == keepFrom) {
+                l = keepTo;
+                continue;
+            }
+            int slot = slot(l);
+            if (results[slot] != null) {
+                results[slot] = null;
+                resultCount--;
+            }
+        }
+    }
+}
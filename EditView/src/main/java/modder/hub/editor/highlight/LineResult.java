@@ -35,15 +35,29 @@
 
 package modder.hub.editor.highlight;
 
-import java.util.List;
+import android.graphics.Picture;
 
 /** LineResult: tokens + optional full-line background color */
 public class LineResult {
-    public List<Token> tokens;
+    public int[] tokens; // start, end and color of each token, ordered by start
     public Integer backgroundColor; // null if none
+    public int startState; // lexer state the line was tokenized from
+    public int endState; // lexer state at the end of the line, 0 = no open block
 
-    public LineResult(List<Token> t, Integer bg) {
+    // the line as last drawn, see MHSyntaxHighlightEngine.drawLineText. UI thread only.
+    Picture picture;
+    String pictureLine; // text the picture shows
+    int pictureStamp; // text size and typeface it was recorded with
+    int width; // width of the text drawn
+
+    public LineResult(int[] t, Integer bg) {
+        this(t, bg, 0, 0);
+    }
+
+    public LineResult(int[] t, Integer bg, int start, int end) {
         tokens = t;
         backgroundColor = bg;
+        startState = start;
+        endState = end;
     }
 }
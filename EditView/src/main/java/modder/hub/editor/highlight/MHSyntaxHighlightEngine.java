@@ -39,6 +39,9 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.Typeface;
+import android.os.Build;
 import android.text.Layout;
 import android.text.SpannableString;
 import android.text.Spanned;
@@ -48,20 +51,26 @@ import android.text.TextPaint;
 import android.text.style.ForegroundColorSpan;
 import android.util.Log;
 import java.io.InputStream;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import modder.hub.editor.buffer.TextBuffer;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -71,7 +80,8 @@ import org.json.JSONObject;
  * <p>This is a regex based Syntax highlighter .. Which may cause severe CPU usage during startup
  * time but overall ok for highlighting code.
  *
- * <p>There is no feature for commenting multi line based (Which currently iam learning)
+ * <p>Block comments and multi-line strings are followed from line to line through a lexer state
+ * kept for the end of every line.
  *
  * <p>Some incorrect highlight may occur.
  */
@@ -82,17 +92,77 @@ import org.json.JSONObject;
  *
  * <p>It supports multiple languages (via JSON rule files) and color themes (day/night). The engine
  * can draw highlighted text line-by-line on a Canvas, caching results for speed.
+ *
+ * <p>With a buffer set, lines are tokenized on a background thread from a snapshot of the buffer:
+ * the visible lines first, then a screen below and a screen above them. Lines without tokens yet
+ * are drawn as plain text, and the HighlightListener is told when tokens arrive.
  */
 public class MHSyntaxHighlightEngine {
 
     private static final String TAG = "MHSyntaxHighlightEngine";
 
+    /** Told on the worker thread when tokens for some lines became ready, to redraw them */
+    public interface HighlightListener {
+        void onLinesHighlighted(int firstLine, int lastLine);
+    }
+
+    // one background thread tokenizes for all engines
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // lines the UI thread may still tokenize itself per frame, so a line being typed in never
+    // flashes uncolored while the worker catches up
+    private static final int SYNC_TOKENIZE_LINES = 4;
+    // lines the UI thread may scan for their lexer states per frame, typing usually needs one
+    private static final int SYNC_STATE_LINES = 512;
+    // lines the worker scans for their states while holding the lock
+    private static final int WORKER_STATE_LINES = 2048;
+
     // Mapping of style names → colors (loaded from colors.json)
     private final Map<String, Integer> colors = new HashMap<String, Integer>();
 
+    // Colors of the styles the rules and blocks use, by style id. The ids are given out when
+    // the language is loaded, so tokenizing never looks a style up by name.
+    private final Map<String, Integer> styleIds = new HashMap<String, Integer>();
+    private int[] styleColors = new int[0];
+    // style ids of blockDefs, and of the strings and escapes the scanner finds
+    private int[] blockStyles = new int[0];
+    private int stringStyle;
+    private int numberStyle;
+    private int errorStyle;
+
+    private static final int[] NO_TOKENS = new int[0];
+
+    // tokenizing buffers of each thread that uses this engine
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(rules.size());
+        }
+    };
+
     // All syntax rules loaded from the language JSON file
     private final List<Rule> rules = new ArrayList<Rule>();
 
+    // The rules to try at a char, in priority order, indexed by the char (FirstChars.NON_ASCII
+    // stands for all non-ASCII chars)
+    private final int[][] rulesByChar = new int[FirstChars.NON_ASCII + 1][];
+    // Per rule the chars it can start with and the chars every match has, as FirstChars bits in
+    // three longs; lines missing them skip the rule
+    private long[][] ruleStartMasks;
+    private long[][] ruleRequiredMasks;
+
+    // lines tokenized and rules skipped on them since resetRuleStats()
+    private final AtomicLong statLines = new AtomicLong();
+    private final AtomicLong statSkips = new AtomicLong();
+
     // Paint object used for text rendering
     private final TextPaint paint;
 
@@ -105,24 +175,74 @@ public class MHSyntaxHighlightEngine {
     // preserve comment block
     public String commentBlock;
 
+    // comments and multi-line strings, longest start first. Lexer state k > 0 means the line
+    // ends inside blockDefs[k - 1]
+    private final List<CommentDef> blockDefs = new ArrayList<>();
+    // first chars of the block starts, to skip most positions quickly
+    private String blockStartChars = "";
+    // true if some block can span lines, only then do lines have a lexer state
+    private boolean multiLineBlocks;
+
+    // the text the line states are computed from, null to tokenize every line on its own
+    private TextBuffer buffer;
+
+    // the end states of lines 1..validStates in lineCache are up to date
+    private int validStates;
+    // after an edit, the states of lines (dirtyEnd, staleEnd] are the ones from before it; they are
+    // taken over as soon as a re-scanned line past dirtyEnd ends in its old state again
+    private int dirtyEnd;
+    private int staleEnd;
+
+    // line text read from the buffer for the state scan
+    private char[] stateChars = new char[256];
+    private CharBuffer stateLine = CharBuffer.wrap(stateChars);
+
     private static final Set<
             String> VALID_ESCAPES = new HashSet<>(Arrays.asList("n", "t", "r", "b", "f", "\\", "'", "\"", "u"));
     // persistent multi-line block comment state (per SyntaxConfig instance)
 
     private final Paint bgPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    // paint the colored runs are drawn with, and the color of each char of the line being drawn
+    private final TextPaint runPaint = new TextPaint();
+    private int[] charColors = new int[256];
+
+    // text size and typeface the line pictures are recorded with; a change bumps pictureStamp,
+    // which makes every picture out of date
+    private float pictureTextSize = -1;
+    private Typeface pictureTypeface;
+    private int pictureStamp;
+    // top of the text over the baseline, and its height
+    private final Paint.FontMetricsInt pictureMetrics = new Paint.FontMetricsInt();
+
+    // lines drawn by drawLineText and the time it took, since the last resetDrawStats()
+    private long drawnLines;
+    private long drawNanos;
 
     /**
-     * LRU cache for per-line tokenized data. Key: line index Value: list of tokens for that line
+     * Tokens and end states of the lines, moved along with the lines on edits. Also the lock for
+     * all line state.
      */
-    private final LinkedHashMap<Integer, LineResult> lineCache = new LinkedHashMap<
-            Integer, LineResult>(512, 0.75f, true) {
-        private static final int MAX = 1000; // Maximum cached lines
+    private final LineCache lineCache = new LineCache(1000); // Maximum cached lines
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, LineResult> eldest) {
-            return size() > MAX;
-        }
-    };
+    // lookups answered from lineCache, and lines that had to be tokenized
+    private long cacheHits;
+    private long cacheMisses;
+
+    private HighlightListener highlightListener;
+
+    // the lines on screen, and what is left of this frame's budgets for the UI thread
+    private int visibleFirst = 1;
+    private int visibleLast = 0;
+    private int syncTokenizeBudget;
+    private int syncStateBudget;
+
+    // the request the running or queued job works on; a new request stops the older job
+    private volatile int generation;
+    private long scheduledVersion = -1;
+    private int scheduledFirst;
+    private int scheduledLast;
+    // the snapshot jobs read while the buffer does not change
+    private SharedSnapshot sharedSnapshot;
 
     /** Constructor: Initializes the engine with color and language configurations. */
     public MHSyntaxHighlightEngine(Context ctx, TextPaint textPaint, String languageAssetFile, boolean darkMode) {
@@ -134,6 +254,7 @@ public class MHSyntaxHighlightEngine {
         } catch (Exception ex) {
             ex.printStackTrace();
         }
+        indexRules();
     }
 
     /** Loads color definitions from assets/colors.json */
@@ -158,6 +279,7 @@ public class MHSyntaxHighlightEngine {
         JSONObject lang = new JSONObject(s);
 
         loadCommentDefsFromLang(lang);
+        loadBlockDefsFromLang(lang);
 
         // Predefined regex snippets used in rules
         Map<String, String> defines = new HashMap<String, String>();
@@ -220,6 +342,7 @@ public class MHSyntaxHighlightEngine {
                 r.type = rj.optString("type", "keyword");
                 r.pattern = Pattern.compile(patternStr, Pattern.MULTILINE);
                 r.groupStyles = null;
+                r.keywords = new KeywordSet(list, KeywordSet.AFTER_SPACE);
                 r.priority = i;
                 // read optional lineBackground
                 if (rj.has("lineBackground")) {
@@ -258,6 +381,8 @@ public class MHSyntaxHighlightEngine {
                 }
             } else {
                 r.groupStyles = null;
+                // a plain \b(?:kw|kw)\b list is matched like a keywords array
+                r.keywords = KeywordSet.fromRegex(rj.getString("regex"));
             }
 
             // NEW: optional line background on a rule (hex string)
@@ -276,6 +401,63 @@ public class MHSyntaxHighlightEngine {
         }
     }
 
+    // Gives the styles their ids and sorts the rules by the chars their matches can start with
+    private void indexRules() {
+        stringStyle = styleId("string");
+        numberStyle = styleId("number");
+        errorStyle = styleId("error");
+        blockStyles = new int[blockDefs.size()];
+        for (int d = 0; d < blockDefs.size(); d++) {
+            blockStyles[d] = styleId(blockDefs.get(d).style);
+        }
+        ruleStartMasks = new long[rules.size()][];
+        ruleRequiredMasks = new long[rules.size()][];
+        for (int ri = 0; ri < rules.size(); ri++) {
+            Rule r = rules.get(ri);
+            r.firstChars = FirstChars.of(r.pattern);
+            r.requiredChars = FirstChars.requiredOf(r.pattern);
+            // the keyword set only matches at an index, it cannot search the line
+            if (r.firstChars == null) r.keywords = null;
+            if (r.firstChars != null) {
+                ruleStartMasks[ri] = Arrays.copyOf(r.firstChars.toLongArray(), 3);
+            } else {
+                ruleStartMasks[ri] = new long[] {-1L, -1L, -1L};
+            }
+            ruleRequiredMasks[ri] = Arrays.copyOf(r.requiredChars.toLongArray(), 3);
+            r.typeStyle = r.type != null ? styleId(r.type) : -1;
+            if (r.groupStyles != null && !r.groupStyles.isEmpty()) {
+                r.groups = new int[r.groupStyles.size()];
+                r.groupStyleIds = new int[r.groups.length];
+                int g = 0;
+                for (Map.Entry<Integer, String> ge : r.groupStyles.entrySet()) {
+                    r.groups[g] = ge.getKey();
+                    r.groupStyleIds[g++] = styleId(ge.getValue());
+                }
+            }
+        }
+        int[] tries = new int[rules.size()];
+        for (int c = 0; c <= FirstChars.NON_ASCII; c++) {
+            int count = 0;
+            for (int ri = 0; ri < rules.size(); ri++) {
+                BitSet first = rules.get(ri).firstChars;
+                if (first == null || first.get(c)) tries[count++] = ri;
+            }
+            rulesByChar[c] = Arrays.copyOf(tries, count);
+        }
+    }
+
+    // The id of a style, a style without a color gets the default one
+    private int styleId(String style) {
+        Integer id = styleIds.get(style);
+        if (id != null) return id;
+        Integer color = colors.get(style);
+        if (color == null) color = colors.get("default");
+        styleColors = Arrays.copyOf(styleColors, styleColors.length + 1);
+        styleColors[styleColors.length - 1] = color != null ? color : Color.BLACK;
+        styleIds.put(style, styleColors.length - 1);
+        return styleColors.length - 1;
+    }
+
     // Loading comment object from the langauage file
     private void loadCommentDefsFromLang(JSONObject lang) {
         commentDefs.clear();
@@ -314,6 +496,40 @@ public class MHSyntaxHighlightEngine {
         }
     }
 
+    // Multi-line strings ("strings": [{ "startsWith": "\"\"\"", "endsWith": "\"\"\"" }]) are
+    // scanned together with the comments, the longest start wins (lua "--[[" over "--")
+    private void loadBlockDefsFromLang(JSONObject lang) {
+        blockDefs.clear();
+        blockDefs.addAll(commentDefs);
+        try {
+            JSONArray arr = lang.optJSONArray("strings");
+            if (arr != null) {
+                for (int i = 0; i < arr.length(); i++) {
+                    JSONObject o = arr.optJSONObject(i);
+                    if (o == null) continue;
+                    String s = o.optString("startsWith", null);
+                    String e = o.optString("endsWith", null);
+                    if (s == null || s.isEmpty() || e == null || e.isEmpty()) continue;
+                    blockDefs.add(new CommentDef(s, e, o.optString("type", "string")));
+                }
+            }
+        } catch (Exception ex) {
+            Log.w(TAG, "Failed to load string defs", ex);
+        }
+        Collections.sort(blockDefs, new Comparator<CommentDef>() {
+            public int compare(CommentDef a, CommentDef b) {
+                return b.startsWith.length() - a.startsWith.length();
+            }
+        });
+        StringBuilder starts = new StringBuilder();
+        for (CommentDef cd : blockDefs) {
+            if (cd.endsWith != null && !cd.endsWith.isEmpty()) multiLineBlocks = true;
+            String first = cd.startsWith.substring(0, 1);
+            if (starts.indexOf(first) < 0) starts.append(first);
+        }
+        blockStartChars = starts.toString();
+    }
+
     // Helper method, usefull for EditView for extracting comment block
     public String getCommentSyntaxBlock() {
         return commentBlock;
@@ -331,7 +547,99 @@ public class MHSyntaxHighlightEngine {
     /** Clears the entire token cache */
     public void clearCache() {
         synchronized (lineCache) {
+            lineCache.clearResults();
+        }
+    }
+
+    /** Number of lines drawn from cached tokens since the last resetCacheStats() */
+    public long getCacheHits() {
+        synchronized (lineCache) {
+            return cacheHits;
+        }
+    }
+
+    /** Number of lines that had to be tokenized since the last resetCacheStats() */
+    public long getCacheMisses() {
+        synchronized (lineCache) {
+            return cacheMisses;
+        }
+    }
+
+    public void resetCacheStats() {
+        synchronized (lineCache) {
+            cacheHits = 0;
+            cacheMisses = 0;
+        }
+    }
+
+    /** Number of lines drawn by drawLineText since the last resetDrawStats(). UI thread only. */
+    public long getDrawnLines() {
+        return drawnLines;
+    }
+
+    /** Time drawLineText took since the last resetDrawStats(), in nanoseconds. UI thread only. */
+    public long getDrawNanos() {
+        return drawNanos;
+    }
+
+    public void resetDrawStats() {
+        drawnLines = 0;
+        drawNanos = 0;
+    }
+
+    /**
+     * Share of the rule runs skipped since the last resetRuleStats() because the line lacked the
+     * chars a rule needs, over all lines tokenized.
+     */
+    public double getRuleSkipRatio() {
+        long lines = statLines.get();
+        if (lines == 0 || rules.isEmpty()) return 0;
+        return (double) statSkips.get() / ((double) lines * rules.size());
+    }
+
+    public void resetRuleStats() {
+        statLines.set(0);
+        statSkips.set(0);
+    }
+
+    /**
+     * Sets the text the highlighted lines come from. Block comments and strings are followed
+     * across lines only with a buffer; without one every line is tokenized on its own.
+     */
+    public void setBuffer(TextBuffer buffer) {
+        synchronized (lineCache) {
+            this.buffer = buffer;
+            validStates = 0;
+            dirtyEnd = 0;
+            staleEnd = 0;
             lineCache.clear();
+            scheduledVersion = -1;
+            generation++;
+            retireSnapshot();
+        }
+    }
+
+    public void setHighlightListener(HighlightListener listener) {
+        synchronized (lineCache) {
+            highlightListener = listener;
+        }
+    }
+
+    /**
+     * Called before the lines firstLine..lastLine are drawn. Starts the worker on the lines around
+     * them if some have no tokens yet.
+     */
+    public void setVisibleLines(int firstLine, int lastLine) {
+        synchronized (lineCache) {
+            syncTokenizeBudget = SYNC_TOKENIZE_LINES;
+            syncStateBudget = SYNC_STATE_LINES;
+            if (firstLine == visibleFirst && lastLine == visibleLast) return;
+            visibleFirst = firstLine;
+            visibleLast = lastLine;
+            int screen = lastLine - firstLine + 1;
+            if (buffer != null && !isHighlighted(firstLine - screen, lastLine + screen)) {
+                schedule();
+            }
         }
     }
 
@@ -343,38 +651,120 @@ public class MHSyntaxHighlightEngine {
             int top,
             int right,
             int bottom) {
-        LineResult result = getOrTokenize(index, line);
+        LineResult result = getResult(index, line);
 
-        if (result.backgroundColor != null) {
+        if (result != null && result.backgroundColor != null) {
             bgPaint.setColor(result.backgroundColor);
             canvas.drawRect(left, top, right, bottom, bgPaint);
         }
     }
 
-    /** Draws a single line of highlighted text on the canvas. */
-    public void drawLineText(Canvas canvas,
+    /**
+     * Draws a single line of highlighted text on the canvas and returns its width. The line is
+     * recorded into a picture the first time, later frames replay it for as long as the line keeps
+     * its tokens and text and the paint its text size and typeface. Edits drop the tokens of the
+     * lines they change, and so their pictures.
+     */
+    public int drawLineText(Canvas canvas,
             String line,
             int index,
             int x,
             int y) {
-        LineResult result = getOrTokenize(index, line);
+        long started = System.nanoTime();
+        LineResult result = getResult(index, line);
+        int width;
+
+        if (result == null) {
+            // not tokenized yet, the worker redraws it when it is
+            paint.setColor(Color.BLACK);
+            canvas.drawText(line, x, y, paint);
+            width = (int) Math.ceil(paint.measureText(line));
+        } else if (canDrawPicture(canvas)) {
+            Picture picture = linePicture(result, line);
+            canvas.save();
+            canvas.translate(x, y + pictureMetrics.top);
+            canvas.drawPicture(picture);
+            canvas.restore();
+            width = result.width;
+        } else {
+            // Only tokens → no background here
+            renderTokens(canvas, line, result.tokens, x, y);
+            width = (int) Math.ceil(paint.measureText(line));
+        }
+        drawnLines++;
+        drawNanos += System.nanoTime() - started;
+        return width;
+    }
+
+    // Hardware canvases only draw pictures from Android 6.0 on
+    private static boolean canDrawPicture(Canvas canvas) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M || !canvas.isHardwareAccelerated();
+    }
 
-        // Only tokens → no background here
-        renderTokens(canvas, line, result.tokens, x, y);
+    // The picture of the line with the tokens of result, recorded again if it is out of date
+    private Picture linePicture(LineResult result, String line) {
+        if (paint.getTextSize() != pictureTextSize || paint.getTypeface() != pictureTypeface) {
+            pictureTextSize = paint.getTextSize();
+            pictureTypeface = paint.getTypeface();
+            paint.getFontMetricsInt(pictureMetrics);
+            pictureStamp++;
+        }
+        if (result.picture != null
+                && result.pictureStamp == pictureStamp
+                && line.equals(result.pictureLine)) {
+            return result.picture;
+        }
+        result.width = (int) Math.ceil(paint.measureText(line));
+        int height = pictureMetrics.bottom - pictureMetrics.top;
+        Picture picture = new Picture();
+        // a line height of room on the right for glyphs reaching past their advance
+        Canvas recording = picture.beginRecording(result.width + height, Math.max(height, 1));
+        renderTokens(recording, line, result.tokens, 0, -pictureMetrics.top);
+        picture.endRecording();
+        result.picture = picture;
+        result.pictureLine = line;
+        result.pictureStamp = pictureStamp;
+        return picture;
     }
 
-    /** Optimized shared cache lookup */
-    private LineResult getOrTokenize(int index, String line) {
+    /**
+     * Optimized shared cache lookup. Returns null when the line is left to the worker because
+     * this frame's budget for tokenizing on the UI thread is used up.
+     */
+    private LineResult getResult(int index, String line) {
         LineResult result;
+        int startState = 0;
 
         synchronized (lineCache) {
             result = lineCache.get(index);
+            if (hasLineStates()) {
+                if (validStates < index - 1 && syncStateBudget > 0) {
+                    syncStateBudget -= updateStates(buffer, index - 1, syncStateBudget);
+                }
+                if (validStates < index - 1) {
+                    cacheMisses++;
+                    schedule();
+                    return null;
+                }
+                startState = lineCache.getState(index - 1);
+            }
+            // an edit above may have opened or closed a block the line is in
+            if (result != null && result.startState == startState) {
+                cacheHits++;
+                return result;
+            }
+            cacheMisses++;
+            if (buffer != null) {
+                if (syncTokenizeBudget <= 0) {
+                    schedule();
+                    return null;
+                }
+                syncTokenizeBudget--;
+            }
         }
 
-        if (result != null) return result;
-
         // Tokenize
-        result = tokenizeLine(line);
+        result = tokenizeLine(line, startState);
 
         synchronized (lineCache) {
             lineCache.put(index, result);
@@ -383,25 +773,563 @@ public class MHSyntaxHighlightEngine {
         return result;
     }
 
+    // True if the lines know the state they start in from the lines above.
+    // Call with lineCache held.
+    private boolean hasLineStates() {
+        return buffer != null && multiLineBlocks;
+    }
+
+    // True if all lines in [from, to] have up to date tokens. Call with lineCache held.
+    private boolean isHighlighted(int from, int to) {
+        from = Math.max(from, 1);
+        to = Math.min(to, buffer.getLineCount());
+        if (hasLineStates() && validStates < to - 1) return false;
+        for (int line = from; line <= to; line++) {
+            LineResult result = lineCache.get(line);
+            int startState = hasLineStates() && line > 1 ? lineCache.getState(line - 1) : 0;
+            if (result == null || result.startState != startState) return false;
+        }
+        return true;
+    }
+
+    // Hands the visible lines to the worker, unless it already works on them. Call with lineCache
+    // held, on the thread that edits the buffer.
+    private void schedule() {
+        if (buffer == null || visibleLast < visibleFirst) return;
+        long version = buffer.getVersion();
+        if (version == scheduledVersion
+                && visibleFirst == scheduledFirst
+                && visibleLast == scheduledLast) {
+            return;
+        }
+        scheduledVersion = version;
+        scheduledFirst = visibleFirst;
+        scheduledLast = visibleLast;
+        generation++;
+        WORKER.execute(new HighlightJob(acquireSnapshot(), visibleFirst, visibleLast, generation));
+    }
+
+    /** A snapshot with the number of jobs reading it */
+    private static final class SharedSnapshot {
+        final TextBuffer source;
+        final TextBuffer snapshot;
+        int users;
+        boolean retired;
+
+        SharedSnapshot(TextBuffer source) {
+            this.source = source;
+            this.snapshot = source.snapshot();
+        }
+    }
+
+    // Call with lineCache held. Taking a snapshot makes the next one of its reads build a line
+    // index of the whole text, so jobs on the same version share one.
+    private SharedSnapshot acquireSnapshot() {
+        if (sharedSnapshot == null
+                || sharedSnapshot.source != buffer
+                || sharedSnapshot.snapshot.getVersion() != buffer.getVersion()) {
+            retireSnapshot();
+            sharedSnapshot = new SharedSnapshot(buffer);
+        }
+        sharedSnapshot.users++;
+        return sharedSnapshot;
+    }
+
+    // Call with lineCache held
+    private void releaseSnapshot(SharedSnapshot shared) {
+        if (--shared.users == 0 && shared.retired) {
+            shared.snapshot.release();
+        }
+    }
+
+    // No new job gets the current snapshot, it is released when the last job is done with it.
+    // An unreleased snapshot makes the buffer copy its text on the next edit outside the gap.
+    // Call with lineCache held.
+    private void retireSnapshot() {
+        if (sharedSnapshot != null) {
+            sharedSnapshot.retired = true;
+            if (sharedSnapshot.users == 0) {
+                sharedSnapshot.snapshot.release();
+            }
+            sharedSnapshot = null;
+        }
+    }
+
+    /**
+     * Tokenizes the lines around the visible ones from a snapshot. It stops as soon as a newer
+     * job is scheduled or the buffer changes, its results would be of no use then.
+     */
+    private final class HighlightJob implements Runnable {
+        final SharedSnapshot shared;
+        final TextBuffer source;
+        final TextBuffer snapshot;
+        final int first;
+        final int last;
+        final int jobGeneration;
+
+        HighlightJob(SharedSnapshot shared, int first, int last, int jobGeneration) {
+            this.shared = shared;
+            this.source = shared.source;
+            this.snapshot = shared.snapshot;
+            this.first = first;
+            this.last = last;
+            this.jobGeneration = jobGeneration;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int screen = last - first + 1;
+                // visible lines first, then a screen below, then a screen above
+                if (highlight(first, last) && highlight(last + 1, last + screen)) {
+                    highlight(first - screen, first - 1);
+                }
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Highlighting failed", ex);
+            } finally {
+                synchronized (lineCache) {
+                    releaseSnapshot(shared);
+                    // nothing more to do for now, let the buffer edit in place again
+                    if (jobGeneration == generation) retireSnapshot();
+                }
+            }
+        }
+
+        // Tokenizes the lines in [from, to] that have no up to date tokens. Returns false if
+        // the job was stopped.
+        private boolean highlight(int from, int to) {
+            from = Math.max(from, 1);
+            to = Math.min(to, snapshot.getLineCount());
+            int done = 0;
+            try {
+                int line = from;
+                while (line <= to) {
+                    int startState = 0;
+                    String text;
+                    synchronized (lineCache) {
+                        if (isStale()) return false;
+                        if (hasLineStates()) {
+                            updateStates(snapshot, line - 1, WORKER_STATE_LINES);
+                            // let the UI thread in between long scans
+                            if (validStates < line - 1) continue;
+                            startState = lineCache.getState(line - 1);
+                        }
+                        LineResult cached = lineCache.get(line);
+                        if (cached != null && cached.startState == startState) {
+                            line++;
+                            continue;
+                        }
+                        text = snapshot.getLine(line);
+                    }
+
+                    LineResult result = tokenizeLine(text, startState);
+
+                    synchronized (lineCache) {
+                        if (isStale()) return false;
+                        lineCache.put(line, result);
+                    }
+                    done = line;
+                    line++;
+                }
+                return true;
+            } finally {
+                if (done > 0) notifyHighlighted(from, done);
+            }
+        }
+
+        // Call with lineCache held
+        private boolean isStale() {
+            return jobGeneration != generation
+                    || buffer != source
+                    || source.getVersion() != snapshot.getVersion();
+        }
+    }
+
+    private void notifyHighlighted(int firstLine, int lastLine) {
+        HighlightListener listener;
+        synchronized (lineCache) {
+            listener = highlightListener;
+        }
+        if (listener != null) listener.onLinesHighlighted(firstLine, lastLine);
+    }
+
+    // What one thread needs to tokenize a line, kept from line to line so that tokenizing only
+    // allocates the token array it returns
+    private static final class Scratch {
+        final CandidateList pre = new CandidateList();
+        final CandidateList overrides = new CandidateList();
+        final CandidateList all = new CandidateList();
+        // the chosen tokens, with their colors in place of the style ids
+        final CandidateList chosen = new CandidateList();
+        // a matcher per rule, and the ones already reset to the current line
+        final Matcher[] matchers;
+        final Matcher[] lineMatchers;
+        // index the next match of each rule can start at
+        final int[] next;
+        // the chars on the line, as FirstChars bits
+        final long[] present = new long[3];
+        // the chars of the line already in a chosen token, a bit each
+        long[] taken = new long[4];
+        int[] order = new int[64];
+        int[] sortBuffer = new int[64];
+
+        Scratch(int ruleCount) {
+            matchers = new Matcher[ruleCount];
+            lineMatchers = new Matcher[ruleCount];
+            next = new int[ruleCount];
+        }
+
+        // Starts a line: no matchers reset yet, no chars present
+        void reset() {
+            Arrays.fill(lineMatchers, null);
+            Arrays.fill(present, 0L);
+        }
+
+        // The matcher of rule ri, reset to line the first time it is asked for on the line
+        Matcher matcher(Rule r, int ri, String line) {
+            Matcher m = lineMatchers[ri];
+            if (m != null) return m;
+            m = matchers[ri];
+            if (m == null) {
+                m = r.pattern.matcher(line);
+                // lookbehinds and anchors still see the whole line when matching in a region
+                m.useTransparentBounds(true);
+                m.useAnchoringBounds(false);
+                matchers[ri] = m;
+            } else {
+                m.reset(line);
+            }
+            lineMatchers[ri] = m;
+            return m;
+        }
+
+        // No char of [0, L) taken
+        long[] taken(int L) {
+            int words = (L + 63) >> 6;
+            if (taken.length < words) taken = new long[Math.max(words, taken.length * 2)];
+            else Arrays.fill(taken, 0, words, 0L);
+            return taken;
+        }
+
+        /**
+         * The indexes of the candidates of list in order of priority, start and length (longer
+         * first), or of start and length only. Equal ones keep their order.
+         */
+        int[] sort(CandidateList list, boolean byPriority) {
+            int n = list.size;
+            if (order.length < n) {
+                order = new int[Math.max(n, order.length * 2)];
+                sortBuffer = new int[order.length];
+            }
+            for (int i = 0; i < n; i++) order[i] = i;
+            // bottom-up merge sort, taking from the right run only when it is strictly less
+            int[] from = order;
+            int[] to = sortBuffer;
+            for (int width = 1; width < n; width *= 2) {
+                for (int lo = 0; lo < n; lo += 2 * width) {
+                    int mid = Math.min(lo + width, n);
+                    int hi = Math.min(lo + 2 * width, n);
+                    int a = lo;
+                    int b = mid;
+                    int k = lo;
+                    while (a < mid && b < hi) {
+                        to[k++] = less(list, from[b], from[a], byPriority) ? from[b++] : from[a++];
+                    }
+                    while (a < mid) to[k++] = from[a++];
+                    while (b < hi) to[k++] = from[b++];
+                }
+                int[] t = from;
+                from = to;
+                to = t;
+            }
+            order = from;
+            sortBuffer = to;
+            return order;
+        }
+
+        private static boolean less(CandidateList list, int i, int j, boolean byPriority) {
+            if (byPriority && list.priority(i) != list.priority(j)) {
+                return list.priority(i) < list.priority(j);
+            }
+            if (list.start(i) != list.start(j)) return list.start(i) < list.start(j);
+            return list.end(i) - list.start(i) > list.end(j) - list.start(j);
+        }
+    }
+
     /**
      * Tokenizes a line into styled segments according to the rules. Resolves overlaps and converts
-     * candidates into tokens.
+     * candidates into tokens. startState is the lexer state the previous line ended in.
      */
-    private LineResult tokenizeLine(String line) {
-        ArrayList<Candidate> all = new ArrayList<Candidate>();
+    private LineResult tokenizeLine(String line, int startState) {
         int L = (line == null) ? 0 : line.length();
-        if (L == 0) return new LineResult(new ArrayList<Token>(), null);
+        if (L == 0) return new LineResult(NO_TOKENS, null, startState, startState);
+        Scratch s = scratch.get();
+        s.reset();
 
         // pre: simple-scanner found big ranges (strings, comments)
-        ArrayList<Candidate> pre = new ArrayList<Candidate>();
+        CandidateList pre = s.pre;
+        pre.clear();
 
         // overrides: small spans inside strings (valid escapes -> "number", invalid -> "error")
-        ArrayList<Candidate> overrides = new ArrayList<Candidate>();
+        CandidateList overrides = s.overrides;
+        overrides.clear();
+
+        int endState = scanLine(line, startState, pre, overrides);
+
+        // Add pre (strings/comments) into main candidate list
+        CandidateList all = s.all;
+        all.clear();
+        all.addAll(pre);
+
+        // We'll track a selected full-line background if any rule indicates it
+        Integer selectedLineBg = null;
+        int selectedLineBgPriority = Integer.MAX_VALUE;
+
+        // Run the regex rules in one pass over the line, skipping matches completely inside any
+        // pre-token. At each index only the rules whose matches can start with the char there are
+        // tried, a rule that can start anywhere keeps the next match find() gave it. Every rule
+        // goes on after the end of its own last match, so the matches are the same as running
+        // each rule over the whole line.
+        int ruleCount = rules.size();
+        int[] next = s.next;
+        long[] present = s.present;
+        for (int i = 0; i < L; i++) {
+            char ch = line.charAt(i);
+            int bit = ch < FirstChars.NON_ASCII ? ch : FirstChars.NON_ASCII;
+            present[bit >> 6] |= 1L << bit;
+        }
+        int skipped = 0;
+        for (int ri = 0; ri < ruleCount; ri++) {
+            Rule r = rules.get(ri);
+            if (!canMatch(ri, present)) {
+                next[ri] = L;
+                skipped++;
+            } else if (r.firstChars == null) {
+                next[ri] = findNext(s.matcher(r, ri, line), L);
+            } else {
+                next[ri] = 0;
+            }
+        }
+        statLines.incrementAndGet();
+        statSkips.addAndGet(skipped);
+        int preIndex = 0;
+        for (int i = 0; i < L; i++) {
+            // pre-tokens are sorted and apart, a match at i can only be inside the first one
+            // not ending before i
+            while (preIndex < pre.size && pre.end(preIndex) <= i) preIndex++;
+            char ch = line.charAt(i);
+            int[] tries = rulesByChar[ch < FirstChars.NON_ASCII ? ch : FirstChars.NON_ASCII];
+            for (int ti = 0; ti < tries.length; ti++) {
+                int ri = tries[ti];
+                if (next[ri] > i) continue;
+                Rule r = rules.get(ri);
+                Matcher m = null;
+                int ms;
+                int me;
+                int keywordEnd = r.keywords != null
+                        ? r.keywords.matchAt(line, i)
+                        : KeywordSet.UNSURE;
+                if (keywordEnd != KeywordSet.UNSURE) {
+                    if (keywordEnd == KeywordSet.NO_MATCH) continue;
+                    ms = i;
+                    me = keywordEnd;
+                } else if (r.firstChars != null) {
+                    m = s.matcher(r, ri, line);
+                    m.region(i, L);
+                    if (!m.lookingAt()) continue;
+                    if (m.end() == i) {
+                        // empty match, find() would go on at the next index
+                        next[ri] = i + 1;
+                        continue;
+                    }
+                    ms = i;
+                    me = m.end();
+                } else {
+                    m = s.matcher(r, ri, line);
+                    ms = m.start();
+                    me = m.end();
+                }
+
+                boolean insidePre = preIndex < pre.size
+                        && pre.start(preIndex) <= ms
+                        && me <= pre.end(preIndex);
+                if (!insidePre) {
+                    // If this rule has a lineBackground defined, mark the full line background
+                    if (r.lineBackgroundColor != null) {
+                        // prefer the rule with lowest priority index (earlier in file)
+                        if (r.priority < selectedLineBgPriority) {
+                            selectedLineBgPriority = r.priority;
+                            selectedLineBg = r.lineBackgroundColor;
+                        }
+                    }
+                    addCandidates(r, m, ms, me, L, all);
+                }
+                next[ri] = r.firstChars == null ? findNext(m, L) : me;
+            }
+        }
 
+        // Sort candidates by priority, start, length
+        int[] order = s.sort(all, true);
+
+        // Choose non-overlapping tokens for main candidates (strings/comments/other rules)
+        long[] taken = s.taken(L);
+        CandidateList chosen = s.chosen;
+        chosen.clear();
+        for (int k = 0; k < all.size; k++) {
+            int c = order[k];
+            int start = Math.max(all.start(c), 0);
+            int end = Math.min(all.end(c), L);
+            if (start >= end) continue;
+            if (anyTaken(taken, start, end)) continue;
+
+            chosen.add(start, end, styleColors[all.style(c)], 0);
+
+            take(taken, start, end);
+        }
+
+        // Now add override tokens (escape/error) — they are allowed to overlap strings.
+        for (int k = 0; k < overrides.size; k++) {
+            int start = Math.max(overrides.start(k), 0);
+            int end = Math.min(overrides.end(k), L);
+            if (start >= end) continue;
+            chosen.add(start, end, styleColors[overrides.style(k)], 0);
+        }
+
+        // Sort final tokens by start — but ensure longer (string) spans come before short overrides
+        // where same start
+        order = s.sort(chosen, false);
+        int[] tokens = new int[chosen.size * 3];
+        for (int k = 0; k < chosen.size; k++) {
+            int c = order[k];
+            tokens[k * 3] = chosen.start(c);
+            tokens[k * 3 + 1] = chosen.end(c);
+            tokens[k * 3 + 2] = chosen.style(c);
+        }
+
+        return new LineResult(tokens, selectedLineBg, startState, endState);
+    }
+
+    // False if the line with the chars present has none a match of the rule can start with, or
+    // lacks one that every match has
+    private boolean canMatch(int ri, long[] present) {
+        long[] start = ruleStartMasks[ri];
+        long[] required = ruleRequiredMasks[ri];
+        boolean starts = false;
+        for (int w = 0; w < present.length; w++) {
+            if ((required[w] & ~present[w]) != 0) return false;
+            if ((start[w] & present[w]) != 0) starts = true;
+        }
+        return starts;
+    }
+
+    // True if a char of [from, to) is taken, tested 64 chars at a time
+    private static boolean anyTaken(long[] taken, int from, int to) {
+        int w = from >> 6;
+        int last = (to - 1) >> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (w == last) return (taken[w] & firstMask & lastMask) != 0;
+        if ((taken[w] & firstMask) != 0) return true;
+        for (w++; w < last; w++) {
+            if (taken[w] != 0) return true;
+        }
+        return (taken[last] & lastMask) != 0;
+    }
+
+    // Marks the chars of [from, to) taken
+    private static void take(long[] taken, int from, int to) {
+        int w = from >> 6;
+        int last = (to - 1) >> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (w == last) {
+            taken[w] |= firstMask & lastMask;
+            return;
+        }
+        taken[w] |= firstMask;
+        for (w++; w < last; w++) taken[w] = -1L;
+        taken[last] |= lastMask;
+    }
+
+    // Adds the styled spans of the match [ms, me) of rule r. m holds the match if the rule has
+    // group styles.
+    private static void addCandidates(Rule r, Matcher m, int ms, int me, int L,
+            CandidateList all) {
+        if (r.groups != null) {
+            for (int g = 0; g < r.groups.length; g++) {
+                try {
+                    int gs = m.start(r.groups[g]);
+                    int gei = m.end(r.groups[g]);
+                    if (gs < 0 || gei <= gs) continue;
+                    if (gs >= L) continue;
+                    if (gei > L) gei = L;
+                    all.add(gs, gei, r.groupStyleIds[g], r.priority);
+                } catch (Exception ex) {
+                    // ignore missing group
+                }
+            }
+        } else if (r.typeStyle >= 0) {
+            int s = Math.max(ms, 0);
+            int e = Math.min(me, L);
+            if (s < e) all.add(s, e, r.typeStyle, r.priority);
+        }
+    }
+
+    // Start of the next non-empty match of m, L if there is none
+    private static int findNext(Matcher m, int L) {
+        while (m.find()) {
+            if (m.end() > m.start()) return m.start();
+        }
+        return L;
+    }
+
+    /**
+     * Finds the strings and comments of a line that starts in lexer state state and returns the
+     * state at its end. Without pre and overrides only the state is computed.
+     */
+    private int scanLine(CharSequence line,
+            int state,
+            CandidateList pre,
+            CandidateList overrides) {
+        int L = line.length();
         int i = 0;
+
+        // the line continues a block comment or string of the lines above
+        if (state > 0) {
+            CommentDef open = blockDefs.get(state - 1);
+            int endIdx = indexOf(line, open.endsWith, 0);
+            if (endIdx == -1) {
+                if (pre != null && L > 0) pre.add(0, L, blockStyles[state - 1], -1000);
+                return state;
+            }
+            i = endIdx + open.endsWith.length();
+            if (pre != null) pre.add(0, i, blockStyles[state - 1], -1000);
+        }
+
         while (i < L) {
             char ch = line.charAt(i);
 
+            // COMMENT or multi-line string: the longest start matching at this index
+            int def = blockStartChars.indexOf(ch) < 0 ? -1 : blockStartAt(line, i);
+            if (def >= 0) {
+                CommentDef cd = blockDefs.get(def);
+                int start = i;
+                if (cd.endsWith == null || cd.endsWith.isEmpty()) {
+                    // single-line: rest of line is comment
+                    if (pre != null) pre.add(start, L, blockStyles[def], -1000);
+                    return 0;
+                }
+                int endIdx = indexOf(line, cd.endsWith, i + cd.startsWith.length());
+                if (endIdx == -1) {
+                    // open until a later line
+                    if (pre != null) pre.add(start, L, blockStyles[def], -1000);
+                    return def + 1;
+                }
+                i = endIdx + cd.endsWith.length();
+                if (pre != null) pre.add(start, i, blockStyles[def], -1000);
+                continue;
+            }
+
             // QUOTE: " or '
             if (ch == '"' || ch == '\'') {
                 char quote = ch;
@@ -423,9 +1351,9 @@ public class MHSyntaxHighlightEngine {
                     i++;
                 }
                 int end = i; // exclusive
-                if (end > start) {
+                if (pre != null && end > start) {
                     // add the full string span as a high-priority candidate (keeps string color)
-                    pre.add(new Candidate(start, end, "string", -1000));
+                    pre.add(start, end, stringStyle, -1000);
 
                     // process escapes inside string, but add them to overrides (so they don't
                     // prevent the string span)
@@ -449,7 +1377,7 @@ public class MHSyntaxHighlightEngine {
                             if ((count % 2) == 1) {
                                 // dangling backslash -> mark the last backslash as error
                                 int lastSlash = bsStart + count - 1;
-                                overrides.add(new Candidate(lastSlash, lastSlash + 1, "error", -2000));
+                                overrides.add(lastSlash, lastSlash + 1, errorStyle, -2000);
                             }
                             break;
                         }
@@ -478,11 +1406,12 @@ public class MHSyntaxHighlightEngine {
 
                                 if (validUnicode) {
                                     int tokenEnd = hexEnd;
-                                    overrides.add(new Candidate(lastSlashIndex, tokenEnd, "number", -1500));
+                                    overrides.add(lastSlashIndex, tokenEnd, numberStyle, -1500);
                                     p = hexEnd; // advance past hex digits
                                     continue;
                                 } else {
-                                    overrides.add(new Candidate(lastSlashIndex, lastSlashIndex + 2, "error", -2000));
+                                    overrides.add(lastSlashIndex, lastSlashIndex + 2, errorStyle,
+                                            -2000);
                                     p = p + 1; // move past 'u'
                                     continue;
                                 }
@@ -492,10 +1421,12 @@ public class MHSyntaxHighlightEngine {
                             String esc = String.valueOf(next);
                             if (VALID_ESCAPES.contains(esc)) {
                                 // valid: highlight \X as "number"
-                                overrides.add(new Candidate(lastSlashIndex, lastSlashIndex + 2, "number", -1500));
+                                overrides.add(lastSlashIndex, lastSlashIndex + 2, numberStyle,
+                                        -1500);
                             } else {
                                 // invalid: highlight \X as "error"
-                                overrides.add(new Candidate(lastSlashIndex, lastSlashIndex + 2, "error", -2000));
+                                overrides.add(lastSlashIndex, lastSlashIndex + 2, errorStyle,
+                                        -2000);
                             }
                             // advance past the escaped char
                             p = p + 1;
@@ -509,170 +1440,91 @@ public class MHSyntaxHighlightEngine {
                 continue;
             }
 
-            // COMMENT: check any commentDefs that match at this index
-            boolean matchedCommentThisPos = false;
-            for (CommentDef cd : commentDefs) {
-                String s = cd.startsWith;
-                if (s == null || s.isEmpty()) continue;
-                if (line.startsWith(s, i)) {
-                    int start = i;
-                    if (cd.endsWith == null || cd.endsWith.isEmpty()) {
-                        // single-line: rest of line is comment
-                        pre.add(new Candidate(start, L, "comment", -1000));
-                        i = L; // done with line
-                        matchedCommentThisPos = true;
-                        break;
-                    } else {
-                        // block comment that should end on the same line (simple mode)
-                        int endIdx = line.indexOf(cd.endsWith, i + s.length());
-                        if (endIdx == -1) {
-                            pre.add(new Candidate(start, L, "comment", -1000));
-                            i = L;
-                            matchedCommentThisPos = true;
-                            break;
-                        } else {
-                            int end = endIdx + cd.endsWith.length();
-                            pre.add(new Candidate(start, end, "comment", -1000));
-                            i = end;
-                            matchedCommentThisPos = true;
-                            break;
-                        }
-                    }
-                }
-            }
-            if (matchedCommentThisPos) continue;
-
             // otherwise move forward
             i++;
         }
+        return 0;
+    }
 
-        // Add pre (strings/comments) into main candidate list
-        all.addAll(pre);
-
-        // We'll track a selected full-line background if any rule indicates it
-        Integer selectedLineBg = null;
-        int selectedLineBgPriority = Integer.MAX_VALUE;
-
-        // Run existing regex-based rules, skipping matches completely inside any pre-token
-        for (int ri = 0; ri < rules.size(); ri++) {
-            Rule r = rules.get(ri);
-            Matcher m = r.pattern.matcher(line);
-            while (m.find()) {
-                int ms = m.start();
-                int me = m.end();
-                if (ms < 0 || me <= ms) continue;
-
-                boolean insidePre = false;
-                for (Candidate pc : pre) {
-                    if (ms >= pc.start && me <= pc.end) {
-                        insidePre = true;
-                        break;
-                    }
-                }
-                if (insidePre) continue;
-
-                // If this rule has a lineBackground defined, mark the full line background
-                if (r.lineBackgroundColor != null) {
-                    // prefer the rule with lowest priority index (earlier in file)
-                    if (r.priority < selectedLineBgPriority) {
-                        selectedLineBgPriority = r.priority;
-                        selectedLineBg = r.lineBackgroundColor;
-                    }
-                }
+    // Index of the longest block start at index i of line, -1 if none starts there
+    private int blockStartAt(CharSequence line, int i) {
+        for (int d = 0; d < blockDefs.size(); d++) {
+            String s = blockDefs.get(d).startsWith;
+            if (s != null && !s.isEmpty() && regionMatches(line, i, s)) return d;
+        }
+        return -1;
+    }
 
-                if (r.groupStyles != null && !r.groupStyles.isEmpty()) {
-                    Iterator<Map.Entry<Integer, String>> it = r.groupStyles.entrySet().iterator();
-                    while (it.hasNext()) {
-                        Map.Entry<Integer, String> ge = it.next();
-                        int gi = ge.getKey();
-                        String style = ge.getValue();
-                        try {
-                            int gs = m.start(gi);
-                            int gei = m.end(gi);
-                            if (gs < 0 || gei <= gs) continue;
-                            if (gs >= L) continue;
-                            if (gei > L) gei = L;
-                            all.add(new Candidate(gs, gei, style, r.priority));
-                        } catch (Exception ex) {
-                            // ignore missing group
-                        }
-                    }
-                } else if (r.type != null) {
-                    int s = ms;
-                    int e = me;
-                    if (s < 0) s = 0;
-                    if (e > L) e = L;
-                    if (s >= e) continue;
-                    all.add(new Candidate(s, e, r.type, r.priority));
-                }
-            }
+    private static boolean regionMatches(CharSequence line, int i, String s) {
+        if (i + s.length() > line.length()) return false;
+        for (int k = 0; k < s.length(); k++) {
+            if (line.charAt(i + k) != s.charAt(k)) return false;
         }
+        return true;
+    }
 
-        // Sort candidates by priority, start, length
-        Collections.sort(all, new Comparator<Candidate>() {
-            public int compare(Candidate a, Candidate b) {
-                if (a.priority != b.priority) return a.priority - b.priority;
-                if (a.start != b.start) return a.start - b.start;
-                return b.length - a.length;
-            }
-        });
+    private static int indexOf(CharSequence line, String s, int from) {
+        if (line instanceof String) return ((String) line).indexOf(s, from);
+        for (int i = Math.max(from, 0); i + s.length() <= line.length(); i++) {
+            if (regionMatches(line, i, s)) return i;
+        }
+        return -1;
+    }
 
-        // Choose non-overlapping tokens for main candidates (strings/comments/other rules)
-        boolean[] taken = new boolean[L];
-        ArrayList<Token> chosen = new ArrayList<Token>();
-        for (int i2 = 0; i2 < all.size(); i2++) {
-            Candidate c = all.get(i2);
-            if (c.start < 0) c.start = 0;
-            if (c.end > L) c.end = L;
-            if (c.start >= c.end) continue;
-            boolean overlap = false;
-            for (int p = c.start; p < c.end; p++) {
-                if (taken[p]) {
-                    overlap = true;
-                    break;
-                }
+    /**
+     * Draws text segments with their respective colors, one drawText per run of chars of the same
+     * color. Lines with right-to-left text go through renderBidi instead.
+     */
+    private void renderTokens(Canvas canvas, String line, int[] tokens, int x, int y) {
+        if (line == null) return;
+        if (hasRtl(line)) {
+            renderBidi(canvas, line, tokens, x, y);
+            return;
+        }
+        int L = line.length();
+        if (charColors.length < L) charColors = new int[Math.max(L, charColors.length * 2)];
+        int[] colorOf = charColors;
+        // default black, a later token over an earlier one (escapes over their string)
+        Arrays.fill(colorOf, 0, L, Color.BLACK);
+        if (tokens != null) {
+            for (int t = 0; t + 2 < tokens.length; t += 3) {
+                int start = Math.max(0, tokens[t]);
+                int end = Math.min(L, tokens[t + 1]);
+                if (start < end) Arrays.fill(colorOf, start, end, tokens[t + 2]);
             }
-            if (overlap) continue;
-
-            Integer col = colors.get(c.style);
-            if (col == null) col = colors.get("default");
-
-            chosen.add(new Token(c.start, c.end, col.intValue()));
-
-            for (int p = c.start; p < c.end; p++) taken[p] = true;
         }
 
-        // Now add override tokens (escape/error) — they are allowed to overlap strings.
-        for (Candidate o : overrides) {
-            int s = o.start;
-            int e = o.end;
-            if (s < 0) s = 0;
-            if (e > L) e = L;
-            if (s >= e) continue;
-            Integer col = colors.get(o.style);
-            if (col == null) col = colors.get("default");
-            chosen.add(new Token(s, e, col.intValue()));
+        runPaint.set(paint);
+        float runX = x;
+        int runStart = 0;
+        for (int i = 1; i <= L; i++) {
+            if (i < L && colorOf[i] == colorOf[runStart]) continue;
+            runPaint.setColor(colorOf[runStart]);
+            canvas.drawText(line, runStart, i, runX, y, runPaint);
+            if (i < L) runX += runPaint.measureText(line, runStart, i);
+            runStart = i;
         }
+    }
 
-        // Sort final tokens by start — but ensure longer (string) spans come before short overrides
-        // where same start
-        Collections.sort(chosen, new Comparator<Token>() {
-            public int compare(Token a, Token b) {
-                if (a.start != b.start) return a.start - b.start;
-                int lenA = a.end - a.start;
-                int lenB = b.end - b.start;
-                return lenB - lenA; // longer first
+    // True if the line has chars written right to left
+    private static boolean hasRtl(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            // nothing below the Hebrew block is right to left
+            if (line.charAt(i) < 0x0590) continue;
+            byte d = Character.getDirectionality(line.codePointAt(i));
+            if (d == Character.DIRECTIONALITY_RIGHT_TO_LEFT
+                    || d == Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC
+                    || d == Character.DIRECTIONALITY_RIGHT_TO_LEFT_EMBEDDING
+                    || d == Character.DIRECTIONALITY_RIGHT_TO_LEFT_OVERRIDE) {
+                return true;
             }
-        });
-
-        return new LineResult(chosen, selectedLineBg);
+        }
+        return false;
     }
 
-    /** Draws text segments with their respective colors. */
+    /** Draws a line with right-to-left text through a bidi layout of colored spans. */
     // Fixed support for Arabic Letters by ChatGPT
-    private void renderTokens(Canvas canvas, String line, List<Token> tokens, int x, int y) {
-        if (line == null) return;
-
+    private void renderBidi(Canvas canvas, String line, int[] tokens, int x, int y) {
         // Build full-line spannable
         SpannableString ss = new SpannableString(line);
 
@@ -686,13 +1538,13 @@ public class MHSyntaxHighlightEngine {
 
         // 2) Apply syntax colors from tokens (these override the default black)
         if (tokens != null) {
-            for (Token t : tokens) {
+            for (int t = 0; t + 2 < tokens.length; t += 3) {
                 try {
-                    int start = Math.max(0, t.start);
-                    int end = Math.min(line.length(), t.end);
+                    int start = Math.max(0, tokens[t]);
+                    int end = Math.min(line.length(), tokens[t + 1]);
                     if (start >= end) continue;
                     ss.setSpan(
-                            new ForegroundColorSpan(t.color),
+                            new ForegroundColorSpan(tokens[t + 2]),
                             start,
                             end,
                             Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
@@ -725,10 +1577,80 @@ public class MHSyntaxHighlightEngine {
         canvas.restore();
     }
 
+    // Scans the lines of text after validStates up to line for their end states, at most
+    // maxLines of them, and returns how many it scanned. Past an edit the scan stops once a line
+    // ends in the same state as before, the rest is unchanged then. Call with lineCache held.
+    private int updateStates(TextBuffer text, int line, int maxLines) {
+        line = Math.min(line, text.getLineCount());
+        int scanned = 0;
+        while (validStates < line && scanned < maxLines) {
+            int l = validStates + 1;
+            int start = l == 1 ? 0 : lineCache.getState(l - 1);
+            int end = scanLine(readStateLine(text, l), start, null, null);
+            scanned++;
+            boolean converged = l > dirtyEnd && l <= staleEnd && lineCache.getState(l) == end;
+            lineCache.setState(l, end);
+            validStates = converged ? staleEnd : l;
+            // the old states below only follow on from the last line scanned
+            dirtyEnd = Math.max(dirtyEnd, l);
+            if (validStates >= staleEnd) {
+                dirtyEnd = 0;
+                staleEnd = 0;
+            }
+        }
+        return scanned;
+    }
+
+    // Line l of text in stateLine, read without making a String
+    private CharSequence readStateLine(TextBuffer text, int l) {
+        int start = text.getLineOffset(l);
+        int length = text.getLineLength(l);
+        if (length > stateChars.length) {
+            stateChars = new char[Math.max(length, stateChars.length * 2)];
+            stateLine = CharBuffer.wrap(stateChars);
+        }
+        text.getChars(start, start + length, stateChars, 0);
+        stateLine.clear();
+        stateLine.limit(length);
+        return stateLine;
+    }
+
+    /**
+     * Drops the cached tokens of the lines an edit touched: oldLineCount lines from startLine
+     * were replaced with newLineCount lines. Entries above startLine stay valid, the entries
+     * below move with their lines and stay valid too unless the edit changed the lexer state they
+     * start in.
+     *
+     * <p>The end states of the lines below are kept until the lines are scanned again, so after
+     * typing the scan only has to re-check the lines the change reached.
+     */
+    public void onLinesChanged(int startLine, int oldLineCount, int newLineCount) {
+        synchronized (lineCache) {
+            lineCache.replaceLines(startLine, oldLineCount, newLineCount);
+            shiftStates(startLine, oldLineCount, newLineCount);
+        }
+    }
+
+    private void shiftStates(int startLine, int oldLineCount, int newLineCount) {
+        int delta = newLineCount - oldLineCount;
+        int oldEnd = startLine + oldLineCount - 1;
+        int newEnd = startLine + newLineCount - 1;
+        // states below the edit that are still worth keeping
+        int known = Math.max(validStates, staleEnd);
+        if (known > oldEnd) {
+            staleEnd = known + delta;
+            dirtyEnd = Math.max(dirtyEnd > oldEnd ? dirtyEnd + delta : dirtyEnd, newEnd);
+        } else {
+            staleEnd = 0;
+            dirtyEnd = 0;
+        }
+        validStates = Math.min(validStates, startLine - 1);
+    }
+
     /** Removes a specific line’s cache entry */
     public void clearLineCache(int lineIndex) {
         synchronized (lineCache) {
-            lineCache.remove(lineIndex);
+            lineCache.put(lineIndex, null);
         }
     }
 
@@ -742,89 +1664,26 @@ public class MHSyntaxHighlightEngine {
         return s.substring(start, end);
     }
 
-    /** Debug helper: returns a list of token descriptions for inspection */
+    /**
+     * Debug helper: returns a list of token descriptions for inspection. The line is tokenized by
+     * tokenizeLine() as if it started outside any block comment or string.
+     */
     public List<String> debugTokenizeLine(String line) {
         ArrayList<String> out = new ArrayList<String>();
-        ArrayList<Candidate> all = new ArrayList<Candidate>();
-        int L = (line == null) ? 0 : line.length();
-        if (L == 0) return out;
+        if (line == null || line.isEmpty()) return out;
 
-        // Same logic as tokenizeLine(), but returns descriptive strings
-        Integer selectedLineBg = null;
-        int selectedLineBgPriority = Integer.MAX_VALUE;
-
-        for (int ri = 0; ri < rules.size(); ri++) {
-            Rule r = rules.get(ri);
-            Matcher m = r.pattern.matcher(line);
-            while (m.find()) {
-                int ms = m.start();
-                int me = m.end();
-                if (ms < 0 || me <= ms) continue;
-                // collect group styles or full match as candidates (no pre skipping here for debug)
-                if (r.lineBackgroundColor != null) {
-                    if (r.priority < selectedLineBgPriority) {
-                        selectedLineBgPriority = r.priority;
-                        selectedLineBg = r.lineBackgroundColor;
-                    }
-                }
-                if (r.groupStyles != null && !r.groupStyles.isEmpty()) {
-                    Iterator<Map.Entry<Integer, String>> it = r.groupStyles.entrySet().iterator();
-                    while (it.hasNext()) {
-                        Map.Entry<Integer, String> ge = it.next();
-                        int gi = ge.getKey();
-                        String style = ge.getValue();
-                        try {
-                            int gs = m.start(gi);
-                            int gei = m.end(gi);
-                            if (gs < 0 || gei <= gs) continue;
-                            if (gs >= L) continue;
-                            if (gei > L) gei = L;
-                            all.add(new Candidate(gs, gei, style, r.priority));
-                        } catch (Exception ex) {
-                        }
-                    }
-                } else if (r.type != null) {
-                    int s = ms;
-                    int e = me;
-                    if (s < 0) s = 0;
-                    if (e > L) e = L;
-                    if (s >= e) continue;
-                    all.add(new Candidate(s, e, r.type, r.priority));
-                }
-            }
+        LineResult result = tokenizeLine(line, 0);
+        int[] tokens = result.tokens;
+        for (int t = 0; t + 2 < tokens.length; t += 3) {
+            out.add(String.format("tok[%d,%d] color=#%06X text=\"%s\"", tokens[t], tokens[t + 1],
+                    0xFFFFFF & tokens[t + 2], safeSubstring(line, tokens[t], tokens[t + 1])));
         }
 
-        // Sort and select non-overlapping matches
-        Collections.sort(all, new Comparator<Candidate>() {
-            public int compare(Candidate a, Candidate b) {
-                if (a.priority != b.priority) return a.priority - b.priority;
-                if (a.start != b.start) return a.start - b.start;
-                return b.length - a.length;
-            }
-        });
-
-        boolean[] taken = new boolean[L];
-        for (int i = 0; i < all.size(); i++) {
-            Candidate c = all.get(i);
-            if (c.start < 0) c.start = 0;
-            if (c.end > L) c.end = L;
-            if (c.start >= c.end) continue;
-            boolean overlap = false;
-            for (int p = c.start; p < c.end; p++) {
-                if (taken[p]) {
-                    overlap = true;
-                    break;
-                }
-            }
-            if (overlap) continue;
-
-            // Add readable debug output
-            out.add(String.format("tok[%d,%d] pr=%d style=%s text=\"%s\"", c.start, c.end, c.priority, c.style, safeSubstring(line, c.start, c.end)));
-            for (int p = c.start; p < c.end; p++) taken[p] = true;
+        if (result.backgroundColor != null) {
+            out.add(String.format("LINE-BG color=%s", String.format("#%06X", (0xFFFFFF & result.backgroundColor))));
         }
-
-        if (selectedLineBg != null) {
-            out.add(String.format("LINE-BG color=%s", String.format("#%06X", (0xFFFFFF & selectedLineBg))));
+        if (result.endState != 0) {
+            out.add(String.format("END-STATE %d", result.endState));
         }
 
         return out;
@@ -35,6 +35,7 @@
 
 package modder.hub.editor.highlight;
 
+import java.util.BitSet;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -50,4 +51,11 @@ public class Rule {
 
     public String lineBackground; // Special case store line background color
     public Integer lineBackgroundColor = null; // parsed int color (cached)
+
+    public BitSet firstChars; // Chars a match can start with (see FirstChars), null if any
+    public BitSet requiredChars; // Chars every match contains, empty if none known
+    KeywordSet keywords; // Matches the rule without its regex, null if it cannot
+    int typeStyle; // Style id of type, -1 if none
+    int[] groups; // Styled capture groups, null if none
+    int[] groupStyleIds; // Style id of each of groups
 }
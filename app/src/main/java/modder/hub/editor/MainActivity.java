@@ -30,23 +30,25 @@ import android.widget.PopupMenu;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import modder.hub.editor.EditView;
 import modder.hub.editor.R;
+import modder.hub.editor.buffer.EditJournal;
 import modder.hub.editor.buffer.GapBuffer;
+import modder.hub.editor.buffer.MappedTextBuffer;
+import modder.hub.editor.buffer.RopeBuffer;
+import modder.hub.editor.buffer.TextBuffer;
+import modder.hub.editor.buffer.TextFileLoader;
+import modder.hub.editor.buffer.TextFileSaver;
 import modder.hub.editor.component.ClipboardPanel;
 import modder.hub.editor.listener.OnTextChangedListener;
 import org.json.JSONArray;
@@ -65,6 +67,19 @@ public class MainActivity extends Activity {
     private SharedPreferences editor_pref;
 
     private Charset mDefaultCharset = StandardCharsets.UTF_8;
+    // kept from the opened file so saving writes it back the same way
+    private boolean mByteOrderMark;
+    private String mLineSeparator = "\n";
+    // logs the edits of the open file so they survive the process being killed
+    private EditJournal mJournal;
+    // the file the editor shows, null while it is loading or when its load failed
+    private String mFilePath;
+
+    // files bigger than this are opened into a RopeBuffer instead of a GapBuffer
+    private static final long LARGE_FILE_SIZE = 8 * 1024 * 1024;
+    // files bigger than this share of the heap are shown read-only, mapped from the file
+    private static final int MAPPED_FILE_HEAP_SHARE = 4;
+
     private String externalPath = File.separator;
 
     private EditText edittext_replace, edittext_find;
@@ -98,6 +113,18 @@ public class MainActivity extends Activity {
         initializeLogic();
     }
 
+    @Override
+    protected void onDestroy() {
+        // unsaved edits stay in the journal and are replayed when the file is opened again
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+        // closes the undo journal files, and a MappedTextBuffer's file and indexing thread
+        editView.getBuffer().close();
+        super.onDestroy();
+    }
+
     private void initialize() {
         mIndeterminateBar = findViewById(R.id.indeterminateBar);
         mIndeterminateBar.setBackground(null);
@@ -226,6 +253,11 @@ public class MainActivity extends Activity {
             undo.getIcon().setTint(Color.GRAY);
             undo.setEnabled(false);
         }
+        // the viewer shows the bytes of a mapped file, writing them back would re-encode them
+        saveMenu.setEnabled(!editView.isViewerMode());
+        if (editView.isViewerMode()) {
+            saveMenu.getIcon().setTint(Color.GRAY);
+        }
         MenuItem redo = menu.findItem(R.id.redo);
         redo.setIcon(R.drawable.ic_redo);
         if (editView.canRedo()) {
@@ -280,6 +312,7 @@ public class MainActivity extends Activity {
                 menuStyle();
                 break;
             case R.id.save:
+                saveFile();
                 break;
             case R.id.delete_line:
                 editView.deleteLine();
@@ -461,33 +494,127 @@ public class MainActivity extends Activity {
         builder.setCancelable(true).show();
     }
 
+    private void saveFile() {
+        if (editView.isViewerMode()) {
+            Toast.makeText(this, "large files are opened read-only", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (mFilePath == null) {
+            // saving a buffer that holds only part of a file would cut the file short
+            Toast.makeText(this, "no file is opened", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new WriteFileThread().execute(mFilePath);
+    }
+
     // read file
     class ReadFileThread extends AsyncTask<String, Integer, Boolean> {
 
+        // set when the text was shown while loading; its journal is started once all is in
+        private File progressiveFile;
+        private String filePath;
+        // set when the journal left by a previous run no longer matched the file
+        private boolean discardedEdits;
+
         @Override
         protected void onPreExecute() {
             // TODO: Implement this method
             super.onPreExecute();
+            mFilePath = null;
             editView.setEditedMode(false);
             mHandler.sendEmptyMessage(0);
+            mIndeterminateBar.setIndeterminate(false);
+            mIndeterminateBar.setProgress(0);
             mIndeterminateBar.setVisibility(View.VISIBLE);
         }
 
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            super.onProgressUpdate(values);
+            mIndeterminateBar.setProgress(values[0]);
+        }
+
         @Override
         protected Boolean doInBackground(String... params) {
             // TODO: Implement this method
+            filePath = params[0];
             Path path = Paths.get(params[0]);
             try {
-                // detect the file charset
-                String charset = UniversalDetector.detectCharset(path.toFile());
-                if (charset != null)
-                    mDefaultCharset = Charset.forName(charset);
+                // decodes straight into the new buffer, the charset is sniffed from the head
+                TextFileLoader loader = new TextFileLoader(path.toFile());
+                loader.setCharsetDetector(new TextFileLoader.CharsetDetector() {
+                    @Override
+                    public Charset detect(byte[] head, int length) {
+                        UniversalDetector detector = new UniversalDetector(null);
+                        detector.handleData(head, 0, length);
+                        detector.dataEnd();
+                        String charset = detector.getDetectedCharset();
+                        if (charset == null || !Charset.isSupported(charset)) {
+                            return null;
+                        }
+                        return Charset.forName(charset);
+                    }
+                });
+                loader.setProgressListener(new TextFileLoader.ProgressListener() {
+                    @Override
+                    public boolean onProgress(long bytesRead, long totalBytes) {
+                        publishProgress((int) (bytesRead * 100 / Math.max(totalBytes, 1)));
+                        return !isCancelled();
+                    }
+                });
 
-                // FIXED: Read entire file as single string (avoids incremental appends/gap shifts)
-                String fullText = readFile(path.toString());
+                if (path.toFile().length()
+                        > Runtime.getRuntime().maxMemory() / MAPPED_FILE_HEAP_SHARE) {
+                    // does not fit into the heap; the viewer reads the pages it shows from the file
+                    MappedTextBuffer mapped = loader.openMappedBuffer();
+                    mDefaultCharset = loader.getCharset();
+                    mByteOrderMark = loader.hasByteOrderMark();
+                    mLineSeparator = loader.getLineSeparator();
+                    if (mJournal != null) {
+                        mJournal.close();
+                        mJournal = null;
+                    }
+                    editView.setBuffer(mapped);
+                    mapped.startIndexing();
+                    // shown read-only, so there is no file to save it to
+                    filePath = null;
+                    return true;
+                }
+                if (!EditJournal.journalFileFor(path.toFile()).isFile()) {
+                    // no edits to recover, so the text can be shown while it is decoded
+                    return loadProgressively(loader, path.toFile());
+                }
+
+                TextBuffer newBuffer;
+                if (path.toFile().length() > LARGE_FILE_SIZE) {
+                    newBuffer = loader.loadRopeBuffer();
+                } else {
+                    newBuffer = loader.loadGapBuffer();
+                }
+                if (newBuffer == null) {
+                    return false;
+                }
+                mDefaultCharset = loader.getCharset();
+                mByteOrderMark = loader.hasByteOrderMark();
+                mLineSeparator = loader.getLineSeparator();
+
+                if (mJournal != null) {
+                    mJournal.close();
+                    mJournal = null;
+                }
+                try {
+                    // edits a killed process did not save are replayed onto the file
+                    EditJournal journal = new EditJournal(path.toFile());
+                    newBuffer = journal.recover(newBuffer);
+                    discardedEdits = journal.hasDiscardedEdits();
+                    journal.start(newBuffer);
+                    mJournal = journal;
+                } catch (Exception e) {
+                    // e.g. a read-only directory; editing works without the journal
+                    e.printStackTrace();
+                }
 
                 // Replace buffer wholesale (like setText, but async)
-                GapBuffer newBuffer = new GapBuffer(fullText);
                 editView.setBuffer(newBuffer); // Assumes mTextView is your EditView; adjust if
                 // needed
 
@@ -499,6 +626,39 @@ public class MainActivity extends Activity {
             return true;
         }
 
+        // Shows the first chunks while the rest is still being decoded
+        private boolean loadProgressively(TextFileLoader loader, File file) throws IOException {
+            if (mJournal != null) {
+                mJournal.close();
+                mJournal = null;
+            }
+            // a GapBuffer sized to the file never has to grow while the chunks come in
+            TextBuffer newBuffer = file.length() > LARGE_FILE_SIZE
+                    ? new RopeBuffer() : new GapBuffer((int) file.length());
+            editView.beginLoading(newBuffer);
+            boolean loaded = loader.loadProgressively(new TextFileLoader.ChunkListener() {
+                @Override
+                public boolean onChunk(String text) {
+                    try {
+                        editView.appendLoadedText(text);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                    return !isCancelled();
+                }
+            });
+            if (!loaded) {
+                // editing stays off, the buffer only holds part of the file
+                return false;
+            }
+            mDefaultCharset = loader.getCharset();
+            mByteOrderMark = loader.hasByteOrderMark();
+            mLineSeparator = loader.getLineSeparator();
+            editView.endLoading();
+            progressiveFile = file;
+            return true;
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
             // TODO: Implement this method
@@ -506,35 +666,96 @@ public class MainActivity extends Activity {
             editView.setEditedMode(true);
             mHandler.sendEmptyMessage(0);
             mIndeterminateBar.setVisibility(View.GONE);
+            mIndeterminateBar.setIndeterminate(true);
+            // EditView.setBuffer() has closed the buffer that was shown before
+            TextBuffer buffer = editView.getBuffer();
+            if (result) {
+                mFilePath = filePath;
+            }
+            if (result && progressiveFile != null) {
+                // every chunk is in the buffer by now; the journal must not log them as edits
+                try {
+                    EditJournal journal = new EditJournal(progressiveFile);
+                    journal.start(buffer);
+                    mJournal = journal;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            if (buffer instanceof MappedTextBuffer && ((MappedTextBuffer) buffer).isTruncated()) {
+                Toast.makeText(getApplicationContext(), "only the first 2 GB are shown",
+                        Toast.LENGTH_SHORT).show();
+            }
+            if (discardedEdits) {
+                Toast.makeText(getApplicationContext(),
+                        "unsaved edits were dropped, the file was changed since",
+                        Toast.LENGTH_LONG).show();
+            }
         }
     }
 
     // write file
     class WriteFileThread extends AsyncTask<String, Integer, Boolean> {
 
+        private TextBuffer buffer;
+
+        @Override
+        protected void onPreExecute() {
+            super.onPreExecute();
+            // taken on the UI thread, the snapshot keeps the editor usable during the write
+            buffer = editView.getBuffer().snapshot();
+            if (mJournal != null) {
+                mJournal.beginSave();
+            }
+            mIndeterminateBar.setIndeterminate(false);
+            mIndeterminateBar.setProgress(0);
+            mIndeterminateBar.setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            super.onProgressUpdate(values);
+            mIndeterminateBar.setProgress(values[0]);
+        }
+
         @Override
         protected Boolean doInBackground(String... params) {
             // TODO: Implement this method
             Path path = Paths.get(params[0]);
 
             try {
-                BufferedWriter bufferWrite = null;
-                bufferWrite = Files.newBufferedWriter(path, mDefaultCharset,
-                        StandardOpenOption.WRITE);
-                bufferWrite.write(editView.getBuffer().toString());
-                bufferWrite.flush();
-                bufferWrite.close();
+                // written to a temp file and renamed over the old one, a failed save keeps it
+                TextFileSaver saver = new TextFileSaver(path.toFile());
+                saver.setCharset(mDefaultCharset);
+                saver.setByteOrderMark(mByteOrderMark);
+                saver.setLineSeparator(mLineSeparator);
+                saver.setProgressListener(new TextFileSaver.ProgressListener() {
+                    @Override
+                    public boolean onProgress(long charsWritten, long totalChars) {
+                        publishProgress((int) (charsWritten * 100 / Math.max(totalChars, 1)));
+                        return !isCancelled();
+                    }
+                });
+                return saver.save(buffer);
             } catch (Exception e) {
                 e.printStackTrace();
+                return false;
+            } finally {
+                buffer.release();
             }
-            return true;
         }
 
         @Override
         protected void onPostExecute(Boolean result) {
             // TODO: Implement this method
             super.onPostExecute(result);
-            Toast.makeText(getApplicationContext(), "saved success!", Toast.LENGTH_SHORT).show();
+            if (mJournal != null) {
+                mJournal.endSave(result);
+            }
+            mIndeterminateBar.setVisibility(View.GONE);
+            mIndeterminateBar.setIndeterminate(true);
+            Toast.makeText(getApplicationContext(), result ? "saved success!" : "save failed!",
+                    Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -706,33 +927,5 @@ public class MainActivity extends Activity {
 		public String Syntax;
 		public String Path;
 	}
-	
-
-    public static String readFile(String path) {
-        StringBuilder sb = new StringBuilder();
-        FileReader fr = null;
-        try {
-            fr = new FileReader(new File(path));
-
-            char[] buff = new char[1024];
-            int length = 0;
-
-            while ((length = fr.read(buff)) > 0) {
-                sb.append(new String(buff, 0, length));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fr != null) {
-                try {
-                    fr.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        return sb.toString();
-    }
 
 }